@@ -19,6 +19,8 @@ import com.google.enterprise.connector.notes.client.NotesEmbeddedObject;
 import lotus.domino.EmbeddedObject;
 import lotus.domino.NotesException;
 
+import java.io.InputStream;
+
 class NotesEmbeddedObjectImpl extends NotesBaseImpl<EmbeddedObject>
     implements NotesEmbeddedObject {
 
@@ -61,4 +63,14 @@ class NotesEmbeddedObjectImpl extends NotesBaseImpl<EmbeddedObject>
       throw new NotesConnectorExceptionImpl(e);
     }
   }
+
+  /** {@inheritDoc} */
+  @Override
+  public InputStream getInputStream() throws NotesConnectorExceptionImpl {
+    try {
+      return getNotesObject().getInputStream();
+    } catch (NotesException e) {
+      throw new NotesConnectorExceptionImpl(e);
+    }
+  }
 }
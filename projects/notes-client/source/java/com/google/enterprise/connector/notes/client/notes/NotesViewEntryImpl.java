@@ -54,4 +54,14 @@ class NotesViewEntryImpl extends NotesBaseImpl<ViewEntry>
       throw new NotesConnectorExceptionImpl(e);
     }
   }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getUniversalID() throws NotesConnectorExceptionImpl {
+    try {
+      return getNotesObject().getUniversalID();
+    } catch (NotesException e) {
+      throw new NotesConnectorExceptionImpl(e);
+    }
+  }
 }
@@ -27,7 +27,6 @@ import junit.framework.TestCase;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Vector;
 import java.util.logging.Logger;
 
 // TODO: We need a method to remove all crawl docs from the
@@ -66,7 +65,7 @@ public class ConnectorFixture extends TestCase {
       connector.maintThread = new NotesMaintenanceThread(null, null);
     }
     if (!allowCrawlerThread) {
-      connector.vecCrawlerThreads = new Vector<NotesCrawlerThread>();
+      connector.crawlerPool = new NotesCrawlerPool(null, null, 0);
     }
     connector.setServer(server);
     connector.setDatabase(database);
@@ -18,8 +18,6 @@ import com.google.enterprise.connector.spi.RepositoryException;
 
 import junit.framework.TestCase;
 
-import java.util.Vector;
-
 public class NotesConnectorTest extends TestCase {
 
   private String server;
@@ -126,7 +124,7 @@ public class NotesConnectorTest extends TestCase {
       connector.setIdPassword(idpassword);
       connector.setServer(server);
       connector.maintThread = new NotesMaintenanceThread(null, null);
-      connector.vecCrawlerThreads = new Vector<NotesCrawlerThread>();
+      connector.crawlerPool = new NotesCrawlerPool(null, null, 0);
       NotesConnectorSession session = (NotesConnectorSession) connector.login();
       assertSame("Didn't get same session back on second call to login",
           session, connector.login());
@@ -148,7 +146,7 @@ public class NotesConnectorTest extends TestCase {
     connector.setIdPassword(idpassword);
     connector.setServer(server);
     connector.maintThread = new NotesMaintenanceThread(null, null);
-    connector.vecCrawlerThreads = new Vector<NotesCrawlerThread>();
+    connector.crawlerPool = new NotesCrawlerPool(null, null, 0);
     try {
       NotesConnectorSession session = (NotesConnectorSession) connector.login();
       connector.shutdown();
@@ -0,0 +1,125 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.enterprise.connector.notes.client.NotesDocument;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.Collection;
+
+/**
+ * An immutable snapshot of the database level access lists stored
+ * in a database document of the connector database. All of the
+ * names are lower-cased.
+ */
+class DatabaseAcl {
+  private static final String DEFAULT_ENTRY = "-default-";
+
+  private final ImmutableSet<String> permitUsers;
+  private final ImmutableSet<String> noAccessUsers;
+  private final ImmutableSet<String> permitGroups;
+
+  /**
+   * Reads the access lists from a database document.
+   */
+  static DatabaseAcl fromDocument(NotesDocument dbDoc)
+      throws RepositoryException {
+    return new DatabaseAcl(
+        dbDoc.getItemValue(NCCONST.NCITM_DBPERMITUSERS),
+        dbDoc.getItemValue(NCCONST.NCITM_DBNOACCESSUSERS),
+        dbDoc.getItemValue(NCCONST.NCITM_DBPERMITGROUPS));
+  }
+
+  DatabaseAcl(Collection<?> permitUsers, Collection<?> noAccessUsers,
+      Collection<?> permitGroups) {
+    this.permitUsers = toLowerCase(permitUsers);
+    this.noAccessUsers = toLowerCase(noAccessUsers);
+    this.permitGroups = toLowerCase(permitGroups);
+  }
+
+  /**
+   * Returns true if the -Default- entry is allowed access.
+   */
+  boolean isDefaultAllowed() {
+    return permitUsers.contains(DEFAULT_ENTRY);
+  }
+
+  /**
+   * Returns the first of the names that is explicitly allowed, or
+   * null if none of them is.
+   */
+  String getAllowedUser(String... userNames) {
+    return findAny(permitUsers, userNames);
+  }
+
+  /**
+   * Returns the first of the names that is explicitly denied, or
+   * null if none of them is.
+   */
+  String getDeniedUser(String... userNames) {
+    return findAny(noAccessUsers, userNames);
+  }
+
+  /**
+   * Returns the first of the groups that is allowed, or null if none
+   * of them is.
+   */
+  String getAllowedGroup(Collection<String> groups) {
+    for (String group : groups) {
+      if (permitGroups.contains(group)) {
+        return group;
+      }
+    }
+    return null;
+  }
+
+  ImmutableSet<String> getPermitUsers() {
+    return permitUsers;
+  }
+
+  ImmutableSet<String> getNoAccessUsers() {
+    return noAccessUsers;
+  }
+
+  ImmutableSet<String> getPermitGroups() {
+    return permitGroups;
+  }
+
+  @Override
+  public String toString() {
+    return "permit users: " + permitUsers + ", no access users: "
+        + noAccessUsers + ", permit groups: " + permitGroups;
+  }
+
+  private static String findAny(ImmutableSet<String> set, String... names) {
+    for (String name : names) {
+      if (name != null && set.contains(name)) {
+        return name;
+      }
+    }
+    return null;
+  }
+
+  private static ImmutableSet<String> toLowerCase(Collection<?> items) {
+    ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    if (items != null) {
+      for (Object item : items) {
+        builder.add(item.toString().toLowerCase());
+      }
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,66 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded, least recently used cache of database ACLs keyed by
+ * replica ID. Entries are invalidated by the database poller when
+ * it detects an ACL change.
+ */
+class DatabaseAclCache {
+  private static final String CLASS_NAME = DatabaseAclCache.class.getName();
+  private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  private final Map<String, DatabaseAcl> cache;
+
+  DatabaseAclCache(final int maxSize) {
+    cache = new LinkedHashMap<String, DatabaseAcl>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, DatabaseAcl> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  synchronized DatabaseAcl get(String replicaId) {
+    return cache.get(replicaId.toLowerCase());
+  }
+
+  synchronized void put(String replicaId, DatabaseAcl acl) {
+    cache.put(replicaId.toLowerCase(), acl);
+  }
+
+  synchronized void invalidate(String replicaId) {
+    if (cache.remove(replicaId.toLowerCase()) != null) {
+      LOGGER.log(Level.FINE, "Invalidated cached ACL for replica {0}",
+          replicaId);
+    }
+  }
+
+  synchronized void invalidateAll() {
+    cache.clear();
+    LOGGER.log(Level.FINE, "Invalidated all cached database ACLs");
+  }
+
+  synchronized int size() {
+    return cache.size();
+  }
+}
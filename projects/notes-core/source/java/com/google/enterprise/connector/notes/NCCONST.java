@@ -129,6 +129,10 @@ public class NCCONST {
   /** The readers of this document */
   public static final String NCITM_DOCAUTHORREADERS = "NC.DocAuthorReaders";
 
+  /** The fingerprints of the attachments, in attachment doc ID order */
+  public static final String NCITM_ATTACHMENTFINGERPRINTS =
+      "NC.AttachmentFingerprints";
+
   public static final String NCITM_CONFLICT = "$Conflict";
 
   /** Users with database access */
@@ -159,6 +163,12 @@ public class NCCONST {
   /** If this is an attachment, we store the path here */
   public static final String ITM_CONTENTPATH = "google.contentpath";
 
+  /**
+   * Set to "true" if this is an attachment whose content is read
+   * from the source document when it is fed, rather than spooled.
+   */
+  public static final String ITM_STREAMCONTENT = "google.streamcontent";
+
   public static final String ITM_DISPLAYURL = "google.displayurl";
   public static final String ITM_DOCID = "google.docid";
   public static final String ITM_ISPUBLIC = "google.ispublic";
@@ -285,12 +295,30 @@ public class NCCONST {
   public static final String TABLE_READERS_PREFIX = "NCIndexedReaders_";
   public static final String TABLE_ATTACHMENTS_PREFIX = "NCIndexedAttachments_";
   public static final int COLUMN_SIZE_UNID = 40;
+  public static final int COLUMN_SIZE_FINGERPRINT = 40;
   public static final int COLUMN_SIZE_REPLICAID = 16;
   public static final int COLUMN_SIZE_READER = 100;
   public static final int COLUMN_SIZE_SERVER = 100;
   public static final int COLUMN_SIZE_HOST = 100;
   public static final int COLUMN_SIZE_PROTOCOL = 5;
 
-  public static final int GC_INVOCATION_INTERVAL = 1000;
+  public static final int DIRECTORY_SWEEP_CHUNK_SIZE = 1000;
+  public static final int DIRECTORY_QUEUE_SIZE = 1000;
+
+  public static final int DATABASE_ACL_CACHE_SIZE = 1000;
+  public static final int SOURCE_DATABASE_CACHE_SIZE = 16;
+  public static final long TEMPLATE_CACHE_REFRESH_INTERVAL = 60 * 1000L;
+  public static final int USER_CACHE_SIZE = 5000;
+  public static final long USER_CACHE_TIME_TO_LIVE = 15 * 60 * 1000L;
+  public static final long DIRECTORY_FULL_UPDATE_INTERVAL =
+      24 * 60 * 60 * 1000L;
+  public static final int CRAWL_QUEUE_WINDOW_SIZE = 50;
+  public static final long CRAWLER_SHUTDOWN_TIMEOUT = 30 * 1000L;
+  public static final long MAINTENANCE_INTERVAL = 60 * 1000L;
+  public static final long POLLER_INTERVAL = 5 * 1000L;
+  public static final long POLLER_MAX_INTERVAL = 5 * 60 * 1000L;
+  public static final int QUEUE_DEPTH_REFRESH_DATABASES = 20;
+  public static final long QUEUE_DEPTH_REFRESH_INTERVAL = 30 * 1000L;
+  public static final long TRAVERSAL_MAX_WAIT = 2000L;
 }
 
@@ -15,7 +15,6 @@
 package com.google.enterprise.connector.notes;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Lists;
 import com.google.enterprise.connector.notes.NotesUserGroupManager.User;
 import com.google.enterprise.connector.notes.client.NotesDatabase;
 import com.google.enterprise.connector.notes.client.NotesDocument;
@@ -29,7 +28,11 @@ import com.google.enterprise.connector.spi.RepositoryException;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Vector;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -106,60 +109,10 @@ class NotesAuthorizationManager implements AuthorizationManager {
           NotesDatabase cdb =
               ns.getDatabase(ncs.getServer(), ncs.getDatabase());
           NotesView securityView = cdb.getView(NCCONST.VIEWSECURITY);
+          Map<String, AuthorizationResponse> responses =
+              authorizeDocids(docIds, user, securityView);
           for (String docId : docIds) {
-            NotesViewNavigator secVN = null;
-            NotesDocument dbdoc = null;
-            try {
-              // Extract the database and UNID from the URL
-              String repId = getRepIdFromDocId(docId);
-              String unid = getUNIDFromDocId(docId);
-              LOGGER.log(Level.FINER, "Authorizing document: {0} : {1}",
-                  new Object[] { repId, unid });
-
-              // Get the category from the security view for this
-              // database. The first document in the category is
-              // ALWAYS the database document.
-              secVN = securityView.createViewNavFromCategory(repId);
-              dbdoc = secVN.getFirstDocument().getDocument();
-              boolean dballow =
-                  checkDatabaseAccess(dbdoc, user);
-
-              // Only check document level security if we are
-              // allowed at the database level. Assume we have
-              // access to the document unless proven
-              // otherwise...
-              boolean docallow = true;
-              if (dballow) {
-                Collection<String> readers = 
-                    ncs.getNotesDocumentManager()
-                        .getDocumentReaders(unid, repId);
-                if (readers.size() > 0) {
-                  docallow = checkDocumentReaders(user, readers, repId);
-                } else {
-                  LOGGER.log(Level.FINEST,
-                      "No document level security for {0}", unid);
-                }
-              }
-              boolean allow = docallow && dballow;
-              LOGGER.log(Level.FINER, "Final auth decision is {0} {1}",
-                  new Object[] { allow, unid });
-              authorized.add(new AuthorizationResponse(allow, docId));
-            } catch (Throwable t) {
-              LOGGER.log(Level.WARNING,
-                  "Failed to complete check for: " + docId, t);
-              authorized.add(new AuthorizationResponse(
-                      AuthorizationResponse.Status.INDETERMINATE, docId));
-            } finally {
-              Util.recycle(dbdoc);
-              Util.recycle(secVN);
-              // Log timing for each document.
-              if (LOGGER.isLoggable(Level.FINER)) {
-                elapsedTimeMillis = System.currentTimeMillis() - startTime;
-                LOGGER.log(Level.FINER, "ElapsedAuthorizationResponseTime: {0}"
-                    + " Documents authorized: {1}",
-                    new Object[] { elapsedTimeMillis, authorized.size() });
-              }
-            }
+            authorized.add(responses.get(docId));
           }
         } finally {
           ncs.closeNotesSession(ns);
@@ -178,6 +131,152 @@ class NotesAuthorizationManager implements AuthorizationManager {
     return authorized;
   }
 
+  /**
+   * Authorizes a batch of documents for a user. The documents are
+   * grouped by database, so that the database access is checked once
+   * per database and the document readers of the whole batch are
+   * looked up in a single query.
+   *
+   * @return a map of docid to authorization response
+   */
+  private Map<String, AuthorizationResponse> authorizeDocids(
+      Collection<String> docIds, User user, NotesView securityView) {
+    Map<String, AuthorizationResponse> responses =
+        new HashMap<String, AuthorizationResponse>(docIds.size());
+
+    // Extract the database and UNID from the URL, and group by database.
+    Map<String, Map<String, String>> docIdsByRepId =
+        new LinkedHashMap<String, Map<String, String>>();
+    for (String docId : docIds) {
+      try {
+        String repId = getRepIdFromDocId(docId);
+        String unid = getUNIDFromDocId(docId);
+        LOGGER.log(Level.FINER, "Authorizing document: {0} : {1}",
+            new Object[] { repId, unid });
+        Map<String, String> unids = docIdsByRepId.get(repId);
+        if (unids == null) {
+          unids = new LinkedHashMap<String, String>();
+          docIdsByRepId.put(repId, unids);
+        }
+        unids.put(docId, unid);
+      } catch (Throwable t) {
+        LOGGER.log(Level.WARNING,
+            "Failed to complete check for: " + docId, t);
+        responses.put(docId, new AuthorizationResponse(
+            AuthorizationResponse.Status.INDETERMINATE, docId));
+      }
+    }
+
+    // Only check document level security if we are allowed at the
+    // database level. A document and its attachments share a UNID,
+    // so the UNIDs are deduplicated.
+    Map<String, Set<String>> allowedUnidsByRepId =
+        new HashMap<String, Set<String>>();
+    for (Map.Entry<String, Map<String, String>> entry
+        : docIdsByRepId.entrySet()) {
+      String repId = entry.getKey();
+      Map<String, String> unids = entry.getValue();
+      try {
+        DatabaseAcl dbAcl = getDatabaseAcl(securityView, repId);
+        if (checkDatabaseAccess(dbAcl, user)) {
+          allowedUnidsByRepId.put(repId,
+              new LinkedHashSet<String>(unids.values()));
+        } else {
+          for (String docId : unids.keySet()) {
+            LOGGER.log(Level.FINER, "Final auth decision is {0} {1}",
+                new Object[] { false, unids.get(docId) });
+            responses.put(docId, new AuthorizationResponse(false, docId));
+          }
+        }
+      } catch (Throwable t) {
+        LOGGER.log(Level.WARNING,
+            "Failed to complete check for database: " + repId, t);
+        for (String docId : unids.keySet()) {
+          responses.put(docId, new AuthorizationResponse(
+              AuthorizationResponse.Status.INDETERMINATE, docId));
+        }
+      }
+    }
+    if (allowedUnidsByRepId.isEmpty()) {
+      return responses;
+    }
+
+    Map<String, Map<String, Set<String>>> readersByRepId;
+    try {
+      readersByRepId = ncs.getNotesDocumentManager()
+          .getDocumentReaders(allowedUnidsByRepId);
+    } catch (Throwable t) {
+      LOGGER.log(Level.WARNING, "Failed to lookup document readers", t);
+      for (String repId : allowedUnidsByRepId.keySet()) {
+        for (String docId : docIdsByRepId.get(repId).keySet()) {
+          responses.put(docId, new AuthorizationResponse(
+              AuthorizationResponse.Status.INDETERMINATE, docId));
+        }
+      }
+      return responses;
+    }
+
+    // Assume we have access to the document unless proven otherwise.
+    for (String repId : allowedUnidsByRepId.keySet()) {
+      Map<String, Set<String>> readersByUnid = readersByRepId.get(repId);
+      for (Map.Entry<String, String> entry
+          : docIdsByRepId.get(repId).entrySet()) {
+        String docId = entry.getKey();
+        String unid = entry.getValue();
+        try {
+          boolean allow = true;
+          Set<String> readers =
+              (readersByUnid == null) ? null : readersByUnid.get(unid);
+          if (readers != null && readers.size() > 0) {
+            allow = checkDocumentReaders(user, readers, repId);
+          } else {
+            LOGGER.log(Level.FINEST,
+                "No document level security for {0}", unid);
+          }
+          LOGGER.log(Level.FINER, "Final auth decision is {0} {1}",
+              new Object[] { allow, unid });
+          responses.put(docId, new AuthorizationResponse(allow, docId));
+        } catch (Throwable t) {
+          LOGGER.log(Level.WARNING,
+              "Failed to complete check for: " + docId, t);
+          responses.put(docId, new AuthorizationResponse(
+              AuthorizationResponse.Status.INDETERMINATE, docId));
+        }
+      }
+    }
+    return responses;
+  }
+
+  /**
+   * Gets the database ACL from the cache, or from the database
+   * document in the security view if it is not cached.
+   */
+  private DatabaseAcl getDatabaseAcl(NotesView securityView, String repId)
+      throws RepositoryException {
+    DatabaseAclCache cache = ncs.getDatabaseAclCache();
+    DatabaseAcl dbAcl = cache.get(repId);
+    if (dbAcl != null) {
+      return dbAcl;
+    }
+    NotesViewNavigator secVN = null;
+    NotesDocument dbdoc = null;
+    try {
+      // Get the category from the security view for this
+      // database. The first document in the category is
+      // ALWAYS the database document.
+      secVN = securityView.createViewNavFromCategory(repId);
+      dbdoc = secVN.getFirstDocument().getDocument();
+      dbAcl = DatabaseAcl.fromDocument(dbdoc);
+      LOGGER.log(Level.FINER, "Loaded database ACL for {0}: {1}",
+          new Object[] { repId, dbAcl });
+      cache.put(repId, dbAcl);
+      return dbAcl;
+    } finally {
+      Util.recycle(dbdoc);
+      Util.recycle(secVN);
+    }
+  }
+
   protected static String getCommonName(String notesName) {
     if (notesName.startsWith("cn=")) {
       int index = notesName.indexOf('/');
@@ -247,19 +346,24 @@ class NotesAuthorizationManager implements AuthorizationManager {
   @VisibleForTesting
   boolean checkDatabaseAccess(NotesDocument dbDoc, User user)
       throws RepositoryException {
+    return checkDatabaseAccess(DatabaseAcl.fromDocument(dbDoc), user);
+  }
+
+  @VisibleForTesting
+  boolean checkDatabaseAccess(DatabaseAcl dbAcl, User user) {
     final String METHOD = "checkDatabaseAccess";
     LOGGER.entering(CLASS_NAME, METHOD);
 
     try {
       String commonName = getCommonName(user.getNotesName());
-      if (checkDenyUser(dbDoc, user.getNotesName(), commonName)) {
+      if (checkDenyUser(dbAcl, user.getNotesName(), commonName)) {
         return false;
       }
       // TODO: why don't we check for deny-by-group?
-      if (checkAllowUser(dbDoc, user.getNotesName(), commonName)) {
+      if (checkAllowUser(dbAcl, user.getNotesName(), commonName)) {
         return true;
       }
-      if (checkAllowGroup(dbDoc, user.getGroups())) {
+      if (checkAllowGroup(dbAcl, user.getGroups())) {
         return true;
       }
     } finally {
@@ -272,82 +376,54 @@ class NotesAuthorizationManager implements AuthorizationManager {
   @VisibleForTesting
   boolean checkAllowGroup(NotesDocument dbdoc, Collection<String> userGroups)
       throws RepositoryException {
-    final String METHOD = "checkAllowGroup";
-    LOGGER.entering(CLASS_NAME, METHOD);
-
-    try {
-      ArrayList<String> allowGroups =
-          toLowerCase(dbdoc.getItemValue(NCCONST.NCITM_DBPERMITGROUPS));
-      LOGGER.log(Level.FINER, "Allow groups are: {0}", allowGroups);
+    return checkAllowGroup(DatabaseAcl.fromDocument(dbdoc), userGroups);
+  }
 
-      for (String group : userGroups) {
-        if (allowGroups.contains(group)) {
-          LOGGER.log(Level.FINEST,
-              "ALLOWED: User is allowed through group {0}", group);
-          return true;
-        }
-      }
-      return false;
-    } finally {
-      LOGGER.exiting(CLASS_NAME, METHOD);
+  private boolean checkAllowGroup(DatabaseAcl dbAcl,
+      Collection<String> userGroups) {
+    LOGGER.log(Level.FINER, "Allow groups are: {0}", dbAcl.getPermitGroups());
+    String group = dbAcl.getAllowedGroup(userGroups);
+    if (group != null) {
+      LOGGER.log(Level.FINEST,
+          "ALLOWED: User is allowed through group {0}", group);
+      return true;
     }
+    return false;
   }
 
   @VisibleForTesting
   boolean checkAllowUser(NotesDocument dbdoc, String... userNames)
       throws RepositoryException {
-    final String METHOD = "checkAllowUser";
-    LOGGER.entering(CLASS_NAME, METHOD);
+    return checkAllowUser(DatabaseAcl.fromDocument(dbdoc), userNames);
+  }
 
-    try {
-      ArrayList<String> allowList =
-          toLowerCase(dbdoc.getItemValue(NCCONST.NCITM_DBPERMITUSERS));
-      boolean result = false;
-      if (allowList.contains("-default-")) {
-        LOGGER.log(Level.FINEST, "ALLOWED: -Default- is allowed");
-        result = true;
-      } else {
-        for (String userName : userNames) {
-          if (allowList.contains(userName)) {
-            LOGGER.log(Level.FINEST,
-                "ALLOWED: User is explictly allowed {0}", userName);
-            result = true;
-            break;
-          }
-        }
-      }
-      return result;
-    } finally {
-      LOGGER.exiting(CLASS_NAME, METHOD);
+  private boolean checkAllowUser(DatabaseAcl dbAcl, String... userNames) {
+    if (dbAcl.isDefaultAllowed()) {
+      LOGGER.log(Level.FINEST, "ALLOWED: -Default- is allowed");
+      return true;
     }
+    String userName = dbAcl.getAllowedUser(userNames);
+    if (userName != null) {
+      LOGGER.log(Level.FINEST,
+          "ALLOWED: User is explictly allowed {0}", userName);
+      return true;
+    }
+    return false;
   }
 
   @VisibleForTesting
   boolean checkDenyUser(NotesDocument dbdoc, String... userNames)
       throws RepositoryException {
-    final String METHOD = "checkDenyUser";
-    LOGGER.entering(CLASS_NAME, METHOD);
-    try {
-      ArrayList<String> denyList =
-          toLowerCase(dbdoc.getItemValue(NCCONST.NCITM_DBNOACCESSUSERS));
-      for (String userName : userNames) {
-        if (denyList.contains(userName)) {
-          LOGGER.log(Level.FINEST,
-              "DENIED: User is explictly denied {0}", userName);
-          return true;
-        }
-      }
-      return false;
-    } finally {
-      LOGGER.exiting(CLASS_NAME, METHOD);
-    }
+    return checkDenyUser(DatabaseAcl.fromDocument(dbdoc), userNames);
   }
 
-  private ArrayList<String> toLowerCase(Vector<?> items) {
-    ArrayList<String> lcList = Lists.newArrayList();
-    for (Object item : items) {
-      lcList.add(item.toString().toLowerCase());
+  private boolean checkDenyUser(DatabaseAcl dbAcl, String... userNames) {
+    String userName = dbAcl.getDeniedUser(userNames);
+    if (userName != null) {
+      LOGGER.log(Level.FINEST,
+          "DENIED: User is explictly denied {0}", userName);
+      return true;
     }
-    return lcList;
+    return false;
   }
 }
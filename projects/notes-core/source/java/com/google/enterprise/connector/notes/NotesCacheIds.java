@@ -0,0 +1,155 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The group and user ids in the user cache, loaded once at the start
+ * of a cache update. New groups and users are assigned ids from the
+ * highest loaded ids, and are held as pending until they are written
+ * to the cache tables in a batch.
+ *
+ * Group and Notes names are expected to be lower case.
+ */
+class NotesCacheIds {
+  private final Map<String, Long> groupIds = new HashMap<String, Long>();
+  private final Map<String, Long> userIds = new HashMap<String, Long>();
+  private final Map<String, String> gsaNames = new HashMap<String, String>();
+  private long lastGroupId = 0L;
+  private long lastUserId = 0L;
+
+  // Pending changes, in the order they were made.
+  private final Map<String, Long> newGroups =
+      new LinkedHashMap<String, Long>();
+  private final Map<String, Long> newUsers = new LinkedHashMap<String, Long>();
+  private final Map<String, String> oldGsaNames =
+      new LinkedHashMap<String, String>();
+
+  /** Adds an existing group record. */
+  void putGroup(String groupName, long groupId) {
+    groupIds.put(groupName, groupId);
+    lastGroupId = Math.max(lastGroupId, groupId);
+  }
+
+  /** Adds an existing user record. */
+  void putUser(String notesName, String gsaName, long userId) {
+    userIds.put(notesName, userId);
+    gsaNames.put(notesName, gsaName);
+    lastUserId = Math.max(lastUserId, userId);
+  }
+
+  /** Gets the id of the named group, or -1 if there is no such group. */
+  long getGroupId(String groupName) {
+    Long groupId = groupIds.get(groupName);
+    return (groupId == null) ? -1L : groupId;
+  }
+
+  /** Gets the id of the named user, or -1 if there is no such user. */
+  long getUserId(String notesName) {
+    Long userId = userIds.get(notesName);
+    return (userId == null) ? -1L : userId;
+  }
+
+  String getGsaName(String notesName) {
+    return gsaNames.get(notesName);
+  }
+
+  /**
+   * Assigns an id to a new group.
+   *
+   * @return the new group id
+   */
+  long addGroup(String groupName) {
+    long groupId = ++lastGroupId;
+    groupIds.put(groupName, groupId);
+    newGroups.put(groupName, groupId);
+    return groupId;
+  }
+
+  /**
+   * Assigns an id to a new user.
+   *
+   * @return the new user id
+   */
+  long addUser(String notesName, String gsaName) {
+    long userId = ++lastUserId;
+    userIds.put(notesName, userId);
+    gsaNames.put(notesName, gsaName);
+    newUsers.put(notesName, userId);
+    return userId;
+  }
+
+  /** Changes the GSA name of an existing user. */
+  void setGsaName(String notesName, String gsaName) {
+    String oldGsaName = gsaNames.put(notesName, gsaName);
+    if (!newUsers.containsKey(notesName)
+        && !oldGsaNames.containsKey(notesName)) {
+      oldGsaNames.put(notesName, oldGsaName);
+    }
+  }
+
+  /** Gets the pending new groups and their ids. */
+  Map<String, Long> getNewGroups() {
+    return newGroups;
+  }
+
+  /** Gets the pending new users and their ids. */
+  Map<String, Long> getNewUsers() {
+    return newUsers;
+  }
+
+  /** Gets the Notes names of the existing users with new GSA names. */
+  Set<String> getChangedUsers() {
+    return oldGsaNames.keySet();
+  }
+
+  boolean hasPendingChanges() {
+    return !newGroups.isEmpty() || !newUsers.isEmpty()
+        || !oldGsaNames.isEmpty();
+  }
+
+  /** Marks the pending changes as written. */
+  void commit() {
+    newGroups.clear();
+    newUsers.clear();
+    oldGsaNames.clear();
+  }
+
+  /**
+   * Discards the pending changes. The ids assigned to the discarded
+   * groups and users are not reused.
+   *
+   * @return the names of the discarded new groups
+   */
+  List<String> rollback() {
+    List<String> discardedGroups = new ArrayList<String>(newGroups.keySet());
+    for (String groupName : discardedGroups) {
+      groupIds.remove(groupName);
+    }
+    for (String notesName : newUsers.keySet()) {
+      userIds.remove(notesName);
+      gsaNames.remove(notesName);
+    }
+    gsaNames.putAll(oldGsaNames);
+    commit();
+    return discardedGroups;
+  }
+}
@@ -24,7 +24,6 @@ import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.Session;
 import com.google.enterprise.connector.util.database.JdbcDatabase;
 
-import java.util.Vector;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,16 +35,24 @@ public class NotesConnector implements Connector,
   private String server = null;
   private String database = null;
   private boolean gsaNamesAreGlobal = true;
+  private int numPollerThreads = 1;
+  private long maintenanceInterval = NCCONST.MAINTENANCE_INTERVAL;
+  private int cacheCommitWindow = 100;
+  private boolean cacheShadowTables = false;
+  private int cacheUpdateThreads = 1;
+  private int numPrefetchLookupThreads = 1;
+  private boolean streamAttachments = false;
   private String connectorName;
   private String policyAclPattern;
   private String globalNamespace;
   private String localNamespace;
-  private boolean shutdown = false;
+  private volatile boolean shutdown = false;
   private boolean deleted = false;
   private NotesConnectorSession ncs = null;
   private NotesPollerNotifier npn = null;
   @VisibleForTesting NotesMaintenanceThread maintThread = null;
-  @VisibleForTesting Vector<NotesCrawlerThread> vecCrawlerThreads = null;
+  @VisibleForTesting NotesCrawlerPool crawlerPool = null;
+  @VisibleForTesting NotesDatabasePollerService pollerService = null;
   private SessionFactory sessionFactory;
   private final Object peopleCacheLock = new Object();
   private ConnectorPersistentStore connectorPersistentStore;
@@ -94,19 +101,17 @@ public class NotesConnector implements Connector,
       maintThread.start();
     }
 
-    if (null == vecCrawlerThreads) {
-      vecCrawlerThreads =
-          new Vector<NotesCrawlerThread>(ncs.getNumCrawlerThreads());
-      for (int i = 0; i < ncs.getNumCrawlerThreads(); i++) {
-        vecCrawlerThreads.add(new NotesCrawlerThread(this, ncs));
-        NotesCrawlerThread tmpThread = vecCrawlerThreads.elementAt(i);
-        tmpThread.setName(NotesCrawlerThread.class.getSimpleName() + i);
-        LOGGER.log(Level.INFO,
-            "Starting crawler thread {0}", tmpThread.getName());
-        tmpThread.start();
-      }
+    if (null == crawlerPool) {
+      crawlerPool =
+          new NotesCrawlerPool(this, ncs, ncs.getNumCrawlerThreads());
+      crawlerPool.start();
+    }
+
+    if (null == pollerService) {
+      pollerService = new NotesDatabasePollerService(this, ncs);
+      pollerService.start();
     }
-    npn.setNumThreads(ncs.getNumCrawlerThreads() + 1);
+    npn.setNumThreads(ncs.getNumCrawlerThreads());
     return ncs;
   }
 
@@ -131,6 +136,53 @@ public class NotesConnector implements Connector,
     this.gsaNamesAreGlobal = gsaNamesAreGlobal;
   }
 
+  public void setNumPollerThreads(int numPollerThreads) {
+    LOGGER.log(Level.CONFIG, "Number of poller threads = {0}",
+        numPollerThreads);
+    this.numPollerThreads = numPollerThreads;
+  }
+
+  public void setMaintenanceInterval(long maintenanceInterval) {
+    if (maintenanceInterval < 1) {
+      LOGGER.log(Level.WARNING, "Invalid maintenance interval {0}; "
+          + "using {1}", new Object[] { maintenanceInterval,
+              NCCONST.MAINTENANCE_INTERVAL });
+      maintenanceInterval = NCCONST.MAINTENANCE_INTERVAL;
+    }
+    LOGGER.log(Level.CONFIG, "Maintenance interval = {0} milliseconds",
+        maintenanceInterval);
+    this.maintenanceInterval = maintenanceInterval;
+  }
+
+  public void setNumPrefetchLookupThreads(int numPrefetchLookupThreads) {
+    LOGGER.log(Level.CONFIG, "Number of prefetch lookup threads = {0}",
+        numPrefetchLookupThreads);
+    this.numPrefetchLookupThreads = numPrefetchLookupThreads;
+  }
+
+  public void setStreamAttachments(boolean streamAttachments) {
+    LOGGER.log(Level.CONFIG, "Stream attachments = {0}", streamAttachments);
+    this.streamAttachments = streamAttachments;
+  }
+
+  public void setCacheCommitWindow(int cacheCommitWindow) {
+    LOGGER.log(Level.CONFIG, "Directory cache commit window = {0}",
+        cacheCommitWindow);
+    this.cacheCommitWindow = cacheCommitWindow;
+  }
+
+  public void setCacheShadowTables(boolean cacheShadowTables) {
+    LOGGER.log(Level.CONFIG, "Directory cache shadow tables = {0}",
+        cacheShadowTables);
+    this.cacheShadowTables = cacheShadowTables;
+  }
+
+  public void setCacheUpdateThreads(int cacheUpdateThreads) {
+    LOGGER.log(Level.CONFIG, "Directory cache update threads = {0}",
+        cacheUpdateThreads);
+    this.cacheUpdateThreads = cacheUpdateThreads;
+  }
+
   public void setGoogleConnectorWorkDir(String googleConnectorWorkDir) {
     LOGGER.log(Level.CONFIG, "Deprecated googleConnectorWorkDir property,"
         + " set to {0}, will be ignored", googleConnectorWorkDir);
@@ -217,6 +269,34 @@ public class NotesConnector implements Connector,
     return gsaNamesAreGlobal;
   }
 
+  public int getNumPollerThreads() {
+    return numPollerThreads;
+  }
+
+  public long getMaintenanceInterval() {
+    return maintenanceInterval;
+  }
+
+  public int getNumPrefetchLookupThreads() {
+    return numPrefetchLookupThreads;
+  }
+
+  public boolean getStreamAttachments() {
+    return streamAttachments;
+  }
+
+  public int getCacheCommitWindow() {
+    return cacheCommitWindow;
+  }
+
+  public boolean getCacheShadowTables() {
+    return cacheShadowTables;
+  }
+
+  public int getCacheUpdateThreads() {
+    return cacheUpdateThreads;
+  }
+
   public String getGoogleConnectorName() {
     return connectorName;
   }
@@ -260,25 +340,54 @@ public class NotesConnector implements Connector,
     return deleted;
   }
 
+  /**
+   * Gets the crawler thread pool, or null if the connector has not
+   * logged in.
+   */
+  NotesCrawlerPool getCrawlerPool() {
+    return crawlerPool;
+  }
+
+  /**
+   * Gets the database poller, or null if the connector has not
+   * logged in.
+   */
+  NotesDatabasePollerService getPollerService() {
+    return pollerService;
+  }
+
   @Override
   public void shutdown() {
-    // There are two possibilities here.  Set a latch variable
-    // and wait is on option.
-    // TODO:  Use signalling to the other threads to get them to shutdown
     LOGGER.log(Level.INFO,
         "Connector is shutting down. Waking all threads!!!");
     shutdown = true;
-    if (null != vecCrawlerThreads) {
-      for (int i = 0; i < vecCrawlerThreads.size() + 1; i++)  {
-        // Notify each CrawlerThread and the MaintenanceThread
-        npn.wakeWorkers();
-      }
+    if (null == npn) {
+      return;
+    }
+    // Threads check the shutdown flag before waiting for work, so
+    // waking them once is enough for them to see it.
+    npn.wakeAll();
+    long deadline =
+        System.currentTimeMillis() + NCCONST.CRAWLER_SHUTDOWN_TIMEOUT;
+    if (null != pollerService) {
+      pollerService.shutdown(
+          Math.max(1L, deadline - System.currentTimeMillis()));
+    }
+    if (null != crawlerPool) {
+      crawlerPool.shutdown(
+          Math.max(1L, deadline - System.currentTimeMillis()));
+    }
+    if (null != maintThread && maintThread.isAlive()) {
       try {
-        Thread.sleep(5000);
-      } catch (Exception e) {
-        LOGGER.log(Level.SEVERE, CLASS_NAME, e);
+        maintThread.join(
+            Math.max(1L, deadline - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (maintThread.isAlive()) {
+        LOGGER.log(Level.WARNING,
+            "Maintenance thread did not finish before the shutdown timeout");
       }
-      npn.wakeWorkers();
     }
   }
 
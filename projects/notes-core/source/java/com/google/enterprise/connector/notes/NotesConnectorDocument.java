@@ -19,6 +19,7 @@ import com.google.common.base.Strings;
 import com.google.enterprise.connector.notes.client.NotesDatabase;
 import com.google.enterprise.connector.notes.client.NotesDateTime;
 import com.google.enterprise.connector.notes.client.NotesDocument;
+import com.google.enterprise.connector.notes.client.NotesEmbeddedObject;
 import com.google.enterprise.connector.notes.client.NotesItem;
 import com.google.enterprise.connector.notes.client.NotesSession;
 import com.google.enterprise.connector.spi.Document;
@@ -36,6 +37,7 @@ import com.google.enterprise.connector.spi.Value;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -60,7 +62,10 @@ public class NotesConnectorDocument implements Document {
   private final NotesSession notesSession;
   private final NotesDatabase connectorDatabase;
   private String unid = null;
-  private FileInputStream fin = null;
+  private InputStream fin = null;
+  private NotesDatabaseCache sourceDbCache = null;
+  private NotesDocument sourceDoc = null;
+  private NotesEmbeddedObject sourceAttachment = null;
   private String docid = null;
   private boolean isAttachment = false;
 
@@ -85,6 +90,22 @@ public class NotesConnectorDocument implements Document {
       // Changed log level to WARNING.
       LOGGER.log(Level.WARNING, CLASS_NAME, e);
     }
+    Util.recycle(sourceAttachment, sourceDoc);
+    sourceAttachment = null;
+    sourceDoc = null;
+  }
+
+  /**
+   * Closes the input stream and recycles the source databases kept
+   * open for streamed attachments. Called before the Notes session is
+   * closed.
+   */
+  public void recycle() {
+    closeInputStream();
+    if (sourceDbCache != null) {
+      sourceDbCache.recycle();
+      sourceDbCache = null;
+    }
   }
 
   public void setCrawlDoc(String unid, NotesDocument backenddoc) {
@@ -362,20 +383,85 @@ public class NotesConnectorDocument implements Document {
       // For unsupported attachments, we don't send content so
       // content path is empty
       if (0 != filePath.length()) {
-        FileInputStream fin = new FileInputStream(filePath);
+        fin = new FileInputStream(filePath);
+      } else if (crawlDoc.hasItem(NCCONST.ITM_STREAMCONTENT)) {
+        fin = openSourceAttachment();
+      }
+      // The stream is closed by closeInputStream after it is fed.
+      if (fin != null) {
         docProps.put(SpiConstants.PROPNAME_CONTENT,
             asList(Value.getBinaryValue(fin)));
+      } else if (crawlDoc.hasItem(NCCONST.ITM_STREAMCONTENT)) {
+        // The attachment is gone, so send the filename as content.
+        putTextItem(SpiConstants.PROPNAME_CONTENT,
+            NCCONST.ITM_GMETAATTACHMENTFILENAME, "");
       } else {
         // The filename should be inthe content
         putTextItem(SpiConstants.PROPNAME_CONTENT, NCCONST.ITM_CONTENT, "");
       }
-      //fin.close();
     } else {
       putTextItem(SpiConstants.PROPNAME_CONTENT,
           NCCONST.ITM_CONTENT, "Document content");
     }
   }
 
+  /*
+   * Opens the content of a streamed attachment from its source
+   * document. If the attachment cannot be streamed, it is spooled
+   * instead, and the spooled file is used if the document is fed
+   * again before it is checkpointed.
+   *
+   * @return the attachment content, or null if the attachment no
+   * longer exists
+   */
+  private InputStream openSourceAttachment()
+      throws RepositoryException, FileNotFoundException {
+    final String METHOD = "openSourceAttachment";
+    LOGGER.entering(CLASS_NAME, METHOD);
+    try {
+      String server = crawlDoc.getItemValueString(NCCONST.NCITM_SERVER);
+      String replicaId = crawlDoc.getItemValueString(NCCONST.NCITM_REPLICAID);
+      String fileName =
+          crawlDoc.getItemValueString(NCCONST.ITM_GMETAATTACHMENTFILENAME);
+      // The attachments in a document list tend to come from the same
+      // databases, so keep them open until the list is checkpointed.
+      if (sourceDbCache == null) {
+        sourceDbCache = new NotesDatabaseCache(notesSession,
+            NCCONST.SOURCE_DATABASE_CACHE_SIZE);
+      }
+      NotesDatabase sourceDb = sourceDbCache.get(server, replicaId);
+      if (sourceDb == null) {
+        throw new RepositoryException("Unable to open database "
+            + server + "!!" + replicaId + " to read attachment " + docid);
+      }
+      sourceDoc = sourceDb.getDocumentByUNID(
+          crawlDoc.getItemValueString(NCCONST.NCITM_UNID));
+      if (sourceDoc != null) {
+        sourceAttachment = sourceDoc.getAttachment(fileName);
+      }
+      if (sourceAttachment == null) {
+        LOGGER.log(Level.FINE, "Attachment no longer exists: {0}", docid);
+        return null;
+      }
+      try {
+        return sourceAttachment.getInputStream();
+      } catch (RepositoryException e) {
+        LOGGER.log(Level.WARNING,
+            "Unable to stream attachment, spooling it instead: " + docid, e);
+      }
+      String filePath = Util.getAttachmentFilePath(
+          notesConnectorSession.getSpoolDir(), connectorDatabase.getReplicaID(),
+          crawlDoc.getUniversalID(), Util.hash(fileName));
+      sourceAttachment.extractFile(filePath);
+      // Record the path so that the checkpoint deletes the file.
+      crawlDoc.replaceItemValue(NCCONST.ITM_CONTENTPATH, filePath);
+      crawlDoc.save(true);
+      return new FileInputStream(filePath);
+    } finally {
+      LOGGER.exiting(CLASS_NAME, METHOD);
+    }
+  }
+
   protected void setDateProperties() throws RepositoryException {
     NotesDateTime dt = (NotesDateTime) crawlDoc
         .getItemValueDateTimeArray(NCCONST.ITM_GMETALASTUPDATE).elementAt(0);
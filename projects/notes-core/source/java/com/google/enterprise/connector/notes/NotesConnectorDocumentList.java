@@ -205,6 +205,9 @@ class NotesConnectorDocumentList implements DocumentList {
     try {
       // If we don't have a new checkpoint we return null
       if (ncdoc != null) {
+        // Close the last document's content first, since checkpointAdd
+        // deletes its spooled file.
+        ncdoc.closeInputStream();
         try {
           //Obtain database connection
           databaseConnection = ncs.getNotesDocumentManager()
@@ -264,6 +267,9 @@ class NotesConnectorDocumentList implements DocumentList {
         LOGGER.log(Level.FINE, "Checkpoint for empty document list.");
       }
       // Without lifecycle methods, use the checkpoint to clean up our session
+      if (ncdoc != null) {
+        ncdoc.recycle();
+      }
       Util.recycle(crawldoc, db);
       if (this.ns != null) {
         ncs.closeNotesSession(ns);
@@ -59,6 +59,12 @@ public class NotesConnectorSession implements Session {
   private String gsaGroupPrefix;
   private boolean retainMetaData = true;
   private final NotesDocumentManager notesDocManager;
+  private final DatabaseAclCache databaseAclCache =
+      new DatabaseAclCache(NCCONST.DATABASE_ACL_CACHE_SIZE);
+  private final NotesTemplateCache templateCache =
+      new NotesTemplateCache(NCCONST.TEMPLATE_CACHE_REFRESH_INTERVAL);
+  private final NotesCrawlQueueDispatcher crawlQueueDispatcher =
+      new NotesCrawlQueueDispatcher(NCCONST.CRAWL_QUEUE_WINDOW_SIZE);
   private NotesUsernameType usernameType = NotesUsernameType.USERNAME;
 
   public NotesConnectorSession(NotesConnector connector,
@@ -249,10 +255,15 @@ public class NotesConnectorSession implements Session {
       }
       LOGGER.log(Level.CONFIG, "deletionBatchSize is {0}", deletionBatchSize);
 
-      // Number of crawler threads to spawn
-      numCrawlerThreads = systemDoc.getItemValueInteger(
-          NCCONST.SITM_NUMCRAWLERTHREADS);
-      if ((numCrawlerThreads < 0) || (numCrawlerThreads > 5)) {
+      // Number of crawler threads to spawn. Without a setting, use
+      // one crawler thread per available processor.
+      if (systemDoc.hasItem(NCCONST.SITM_NUMCRAWLERTHREADS)) {
+        numCrawlerThreads = systemDoc.getItemValueInteger(
+            NCCONST.SITM_NUMCRAWLERTHREADS);
+      } else {
+        numCrawlerThreads = Runtime.getRuntime().availableProcessors();
+      }
+      if (numCrawlerThreads < 0) {
         LOGGER.log(Level.SEVERE,
             "Invalid setting for numCrawlerThreads: {0}", numCrawlerThreads);
         return false;
@@ -436,6 +447,18 @@ public class NotesConnectorSession implements Session {
     return notesDocManager;
   }
 
+  DatabaseAclCache getDatabaseAclCache() {
+    return databaseAclCache;
+  }
+
+  NotesTemplateCache getTemplateCache() {
+    return templateCache;
+  }
+
+  NotesCrawlQueueDispatcher getCrawlQueueDispatcher() {
+    return crawlQueueDispatcher;
+  }
+
   @Override
   public AuthenticationManager getAuthenticationManager() {
     //TODO: Should we always return the same AuthenticationManager?
@@ -0,0 +1,196 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import com.google.enterprise.connector.notes.client.NotesDatabase;
+import com.google.enterprise.connector.notes.client.NotesDocument;
+import com.google.enterprise.connector.notes.client.NotesView;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands out crawl requests from the ($CrawlQ) view to the crawler
+ * threads.
+ *
+ * When the claimed requests run out, one crawler thread reads a
+ * window of requests from the view in a single pass and marks them
+ * as being crawled. The UNIDs of the claimed requests are then taken
+ * by the crawler threads from a bounded queue without locking. Notes
+ * objects can't be shared between threads, so each crawler thread
+ * opens the claimed request using its own session.
+ */
+class NotesCrawlQueueDispatcher {
+  private static final String CLASS_NAME =
+      NotesCrawlQueueDispatcher.class.getName();
+  private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  private final int windowSize;
+  private final BlockingQueue<String> claimedUnids;
+  private final ReentrantLock claimLock = new ReentrantLock();
+
+  NotesCrawlQueueDispatcher(int windowSize) {
+    this.windowSize = windowSize;
+    this.claimedUnids = new LinkedBlockingQueue<String>(windowSize);
+  }
+
+  /**
+   * Gets the next claimed crawl request, claiming a new window of
+   * requests from the crawl queue if needed.
+   *
+   * @param cdb the connector database opened by the calling thread
+   * @param crawlQueue the crawl queue view opened by the calling thread
+   * @return the crawl request, with its state set to
+   *     {@code NCCONST.STATEINCRAWL}, or null if the crawl queue is empty
+   */
+  NotesDocument getNextDocument(NotesDatabase cdb, NotesView crawlQueue)
+      throws RepositoryException {
+    while (true) {
+      String unid = claimedUnids.poll();
+      if (unid == null) {
+        claimLock.lock();
+        try {
+          // Another thread may have claimed a window while we waited.
+          unid = claimedUnids.poll();
+          if (unid == null && claimWindow(crawlQueue) > 0) {
+            unid = claimedUnids.poll();
+          }
+        } finally {
+          claimLock.unlock();
+        }
+        if (unid == null) {
+          return null;
+        }
+      }
+      NotesDocument crawlDoc = getDocumentByUnid(cdb, unid);
+      if (crawlDoc != null) {
+        return crawlDoc;
+      }
+    }
+  }
+
+  /**
+   * Returns any requests that were claimed but not handed out to the
+   * crawl queue, so that they are picked up again after a restart.
+   *
+   * @param cdb the connector database opened by the calling thread
+   */
+  void releaseClaimed(NotesDatabase cdb) {
+    List<String> unids = new ArrayList<String>();
+    claimedUnids.drainTo(unids);
+    for (String unid : unids) {
+      NotesDocument crawlDoc = null;
+      try {
+        crawlDoc = getDocumentByUnid(cdb, unid);
+        if (crawlDoc != null) {
+          crawlDoc.replaceItemValue(NCCONST.NCITM_STATE, NCCONST.STATENEW);
+          crawlDoc.save(true);
+        }
+      } catch (RepositoryException e) {
+        LOGGER.log(Level.WARNING,
+            "Failed to release crawl request: " + unid, e);
+      } finally {
+        Util.recycle(crawlDoc);
+      }
+    }
+    if (unids.size() > 0) {
+      LOGGER.log(Level.FINE, "Released {0} claimed crawl requests",
+          unids.size());
+    }
+  }
+
+  int getClaimedCount() {
+    return claimedUnids.size();
+  }
+
+  /**
+   * Gets the number of crawl requests that have not been handed out,
+   * both those still in the crawl queue and those already claimed.
+   *
+   * @param crawlQueue the crawl queue view opened by the calling thread
+   */
+  int getCrawlQueueDepth(NotesView crawlQueue) throws RepositoryException {
+    crawlQueue.refresh();
+    return crawlQueue.getEntryCount() + getClaimedCount();
+  }
+
+  /**
+   * Reads up to windowSize requests from the crawl queue and marks
+   * them as being crawled. Must be called with the claim lock held
+   * and the claimed queue empty.
+   *
+   * @return the number of requests claimed
+   */
+  private int claimWindow(NotesView crawlQueue) throws RepositoryException {
+    final String METHOD = "claimWindow";
+    LOGGER.entering(CLASS_NAME, METHOD);
+
+    // Read the window before changing any of the documents, so that
+    // the updates don't move our position in the view.
+    List<NotesDocument> window = new ArrayList<NotesDocument>(windowSize);
+    boolean windowRead = false;
+    try {
+      crawlQueue.refresh();
+      NotesDocument crawlDoc = crawlQueue.getFirstDocument();
+      while (crawlDoc != null && window.size() < windowSize) {
+        window.add(crawlDoc);
+        if (window.size() < windowSize) {
+          crawlDoc = crawlQueue.getNextDocument(crawlDoc);
+        }
+      }
+      windowRead = true;
+    } finally {
+      // Nothing has been claimed yet if the read failed.
+      if (!windowRead) {
+        for (NotesDocument doc : window) {
+          Util.recycle(doc);
+        }
+      }
+    }
+
+    int claimed = 0;
+    for (NotesDocument doc : window) {
+      try {
+        doc.replaceItemValue(NCCONST.NCITM_STATE, NCCONST.STATEINCRAWL);
+        doc.save(true);
+        claimedUnids.add(doc.getUniversalID());
+        claimed++;
+      } catch (RepositoryException e) {
+        LOGGER.log(Level.WARNING, "Failed to claim crawl request", e);
+      } finally {
+        Util.recycle(doc);
+      }
+    }
+    LOGGER.log(Level.FINE, "Claimed {0} crawl requests", claimed);
+    LOGGER.exiting(CLASS_NAME, METHOD);
+    return claimed;
+  }
+
+  private NotesDocument getDocumentByUnid(NotesDatabase cdb, String unid) {
+    try {
+      return cdb.getDocumentByUNID(unid);
+    } catch (RepositoryException e) {
+      LOGGER.log(Level.WARNING,
+          "Claimed crawl request not found: " + unid, e);
+      return null;
+    }
+  }
+}
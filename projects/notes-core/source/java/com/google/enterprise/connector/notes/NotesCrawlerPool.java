@@ -0,0 +1,209 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import com.google.enterprise.connector.notes.client.NotesThread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the crawler threads on a fixed size thread pool. Each pool
+ * thread initializes the Notes thread environment once for its
+ * lifetime. A second pool of lookup threads looks up the cached
+ * attachments of the documents being fetched in the H2 database, so
+ * that the lookups overlap with the Notes work of the crawler
+ * threads.
+ */
+class NotesCrawlerPool {
+  private static final String CLASS_NAME = NotesCrawlerPool.class.getName();
+  private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  private final NotesConnector nc;
+  private final NotesConnectorSession ncs;
+  private final int poolSize;
+  private final List<NotesCrawlerThread> crawlers =
+      new ArrayList<NotesCrawlerThread>();
+  private ThreadPoolExecutor executor = null;
+  private ThreadPoolExecutor lookupExecutor = null;
+
+  /**
+   * @param connector the connector
+   * @param session the connector session
+   * @param poolSize the number of crawler threads; may be zero
+   */
+  NotesCrawlerPool(NotesConnector connector, NotesConnectorSession session,
+      int poolSize) {
+    this.nc = connector;
+    this.ncs = session;
+    this.poolSize = poolSize;
+  }
+
+  /**
+   * Starts the crawler threads. Does nothing if the pool has
+   * already been started or has no threads.
+   */
+  synchronized void start() {
+    if (executor != null || poolSize == 0) {
+      return;
+    }
+    int lookupThreads = nc.getNumPrefetchLookupThreads();
+    if (lookupThreads > 0) {
+      // Each crawler thread waits for at most one lookup. Lookups
+      // that do not fit in the queue are run by the crawler thread.
+      lookupExecutor = new ThreadPoolExecutor(lookupThreads, lookupThreads,
+          0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(poolSize),
+          new LookupThreadFactory());
+    }
+    executor = new ThreadPoolExecutor(poolSize, poolSize, 0L,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+        new CrawlerThreadFactory());
+    for (int i = 0; i < poolSize; i++) {
+      NotesCrawlerThread crawler =
+          new NotesCrawlerThread(nc, ncs, lookupExecutor);
+      crawlers.add(crawler);
+      executor.execute(crawler);
+    }
+    LOGGER.log(Level.INFO, "Started {0} crawler threads and {1} lookup threads",
+        new Object[] { poolSize, lookupThreads });
+  }
+
+  /**
+   * Waits for the crawler threads to finish after the connector has
+   * been shut down. Threads that are still running when the timeout
+   * expires are interrupted.
+   *
+   * @param timeout the maximum time to wait in milliseconds
+   * @return true if all of the crawler threads finished
+   */
+  boolean shutdown(long timeout) {
+    ThreadPoolExecutor pool;
+    ThreadPoolExecutor lookupPool;
+    synchronized (this) {
+      pool = executor;
+      lookupPool = lookupExecutor;
+    }
+    if (pool == null) {
+      return true;
+    }
+    pool.shutdown();
+    try {
+      if (pool.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+        LOGGER.log(Level.INFO, "All crawler threads have finished");
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      // The crawler threads run lookups themselves once the lookup
+      // threads are shut down.
+      if (lookupPool != null) {
+        lookupPool.shutdownNow();
+      }
+    }
+    LOGGER.log(Level.WARNING,
+        "Crawler threads did not finish, interrupting: {0}", this);
+    pool.shutdownNow();
+    return false;
+  }
+
+  int getPoolSize() {
+    return poolSize;
+  }
+
+  /** Gets the number of crawler threads that are crawling a document. */
+  synchronized int getActiveCount() {
+    int active = 0;
+    for (NotesCrawlerThread crawler : crawlers) {
+      if (crawler.isBusy()) {
+        active++;
+      }
+    }
+    return active;
+  }
+
+  /** Gets the number of crawler threads that are waiting for work. */
+  synchronized int getIdleCount() {
+    return crawlers.size() - getActiveCount();
+  }
+
+  /**
+   * Gets the number of claimed crawl requests waiting for a crawler
+   * thread.
+   */
+  int getQueuedCount() {
+    if (ncs == null) {
+      return 0;
+    }
+    return ncs.getCrawlQueueDispatcher().getClaimedCount();
+  }
+
+  @Override
+  public String toString() {
+    return "size: " + poolSize + ", active: " + getActiveCount()
+        + ", idle: " + getIdleCount() + ", queued: " + getQueuedCount();
+  }
+
+  /**
+   * Names the pool threads and wraps them in Notes thread
+   * initialization and termination.
+   */
+  private class CrawlerThreadFactory implements ThreadFactory {
+    private int threadCount = 0;
+
+    @Override
+    public Thread newThread(final Runnable r) {
+      Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            NotesThread notesThread =
+                nc.getSessionFactory().getNotesThread();
+            notesThread.sinitThread();
+            try {
+              r.run();
+            } finally {
+              try {
+                notesThread.stermThread();
+              } catch (Throwable t) {
+                LOGGER.log(Level.WARNING, "Error terminating Notes thread", t);
+              }
+            }
+          }
+        }, NotesCrawlerThread.class.getSimpleName() + threadCount++);
+      LOGGER.log(Level.INFO, "Starting crawler thread {0}", thread.getName());
+      return thread;
+    }
+  }
+
+  /**
+   * Names the lookup threads. These threads only use the H2
+   * database, so they do not initialize the Notes thread environment.
+   */
+  private static class LookupThreadFactory implements ThreadFactory {
+    private int threadCount = 0;
+
+    @Override
+    public Thread newThread(Runnable r) {
+      return new Thread(r, "NotesCrawlerLookup" + threadCount++);
+    }
+  }
+}
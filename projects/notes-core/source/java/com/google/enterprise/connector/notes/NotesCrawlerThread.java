@@ -19,7 +19,6 @@ import com.google.common.base.Strings;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.notes.client.NotesDatabase;
 import com.google.enterprise.connector.notes.client.NotesDocument;
-import com.google.enterprise.connector.notes.client.NotesDocumentCollection;
 import com.google.enterprise.connector.notes.client.NotesEmbeddedObject;
 import com.google.enterprise.connector.notes.client.NotesItem;
 import com.google.enterprise.connector.notes.client.NotesRichTextItem;
@@ -32,129 +31,93 @@ import java.io.File;
 import java.net.URLEncoder;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-class NotesCrawlerThread extends Thread {
+/**
+ * Pre-fetches the documents in the crawl queue. Crawler threads are
+ * run by the {@link NotesCrawlerPool}.
+ */
+class NotesCrawlerThread implements Runnable {
   private static final String CLASS_NAME = NotesCrawlerThread.class.getName();
   private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
 
   static final String META_FIELDS_PREFIX = "x.";
 
+  /*
+   * The crawl request items that are sent with attachment documents
+   * and are not derived from the attachment itself.
+   */
+  private static final String[] INHERITED_ITEMS = {
+    NCCONST.ITM_TITLE, NCCONST.ITM_GMETADESCRIPTION,
+    NCCONST.ITM_GMETACATEGORIES, NCCONST.ITM_GMETAWRITERNAME,
+    NCCONST.ITM_GMETAFORM, NCCONST.ITM_ISPUBLIC, NCCONST.NCITM_AUTHTYPE,
+    NCCONST.NCITM_DOCREADERS, NCCONST.NCITM_DOCAUTHORREADERS };
+
   private final NotesConnector nc;
   private final NotesConnectorSession ncs;
+  private final ExecutorService lookupExecutor;
   private NotesSession ns = null;
   private NotesDatabase cdb = null;
   @VisibleForTesting
-  NotesDocument templateDoc = null;
+  NotesTemplateConfig.Template template = null;
   @VisibleForTesting
-  NotesDocument formDoc = null;
-  @VisibleForTesting
-  NotesDocumentCollection formsdc = null;
-  private String openDbRepId = "";
-  private NotesDatabase srcdb = null;
+  NotesTemplateConfig.Form form = null;
+  private NotesDatabaseCache srcdbCache = null;
   private NotesView crawlQueue = null;
-
-  @VisibleForTesting
-  List<MetaField> metaFields;
+  private volatile boolean busy = false;
 
   NotesCrawlerThread(NotesConnector connector, NotesConnectorSession session) {
+    this(connector, session, null);
+  }
+
+  /**
+   * @param connector the connector
+   * @param session the connector session
+   * @param lookupExecutor the executor for looking up cached
+   *     attachments while a document is fetched; may be null
+   */
+  NotesCrawlerThread(NotesConnector connector, NotesConnectorSession session,
+      ExecutorService lookupExecutor) {
     LOGGER.finest("NotesCrawlerThread being created.");
 
     nc = connector;
     ncs = session;
+    this.lookupExecutor = lookupExecutor;
   }
 
-  // Since we are multi-threaded, each thread has its own objects
-  // which are not shared.  Hence the calling thread must pass
-  // the Domino objects to this method.
-  @VisibleForTesting
-  static synchronized NotesDocument getNextFromCrawlQueue(
-      NotesSession ns, NotesView crawlQueue) {
-    try {
-      crawlQueue.refresh();
-      NotesDocument nextDoc = crawlQueue.getFirstDocument();
-      if (nextDoc == null) {
-        return null;
-      }
-      LOGGER.finer("Prefetching document");
-      nextDoc.replaceItemValue(NCCONST.NCITM_STATE, NCCONST.STATEINCRAWL);
-      nextDoc.save(true);
-
-      return nextDoc;
-    } catch (Exception e) {
-      LOGGER.log(Level.SEVERE, "Aborting crawl", e);
-    }
-    return null;
-  }
-
-  protected void loadTemplateDoc(String templateName)
+  /*
+   * Looks up the template in the shared template configuration,
+   * which is only reloaded when the template documents change.
+   */
+  protected void loadTemplate(String templateName)
       throws RepositoryException {
     final String METHOD = "loadTemplate";
     LOGGER.entering(CLASS_NAME, METHOD);
-
-    // Is a template document all ready loaded?
-    if (null != templateDoc) {
-      // Is this the one we need?
-      if (templateName.equals(
-              templateDoc.getItemValueString(NCCONST.TITM_TEMPLATENAME))) {
-        return;
-      }
-      Util.recycle(templateDoc, formsdc, formDoc);
-      templateDoc = null;
-      formsdc = null;
-      formDoc = null;
-    }
-    NotesView vw = cdb.getView(NCCONST.VIEWTEMPLATES);
-    templateDoc = vw.getDocumentByKey(templateName, true);
-    formsdc = templateDoc.getResponses();
-
-    // Parse any configured MetaFields once per template load.
-    Vector templateMetaFields =
-        templateDoc.getItemValue(NCCONST.TITM_METAFIELDS);
-    metaFields = new ArrayList<MetaField>(templateMetaFields.size());
-    for (Object o : templateMetaFields) {
-      metaFields.add(new MetaField((String) o));
-    }
-    if (LOGGER.isLoggable(Level.FINEST)) {
-      LOGGER.finest("template MetaFields: '" + templateMetaFields
-          + "'; parsed MetaFields: " + metaFields);
+    try {
+      template =
+          ncs.getTemplateCache().get(cdb).getTemplate(templateName);
+      form = null;
+    } finally {
+      LOGGER.exiting(CLASS_NAME, METHOD);
     }
-    vw.recycle();
   }
 
-  protected void loadForm(String formName) throws RepositoryException {
-    final String METHOD = "loadForm";
-    LOGGER.entering(CLASS_NAME, METHOD);
-
-    if (null != formDoc) {
-      if (formName == formDoc.getItemValueString(NCCONST.FITM_LASTALIAS)) {
-        return;
-      }
-      formDoc.recycle();
-      formDoc = null;
-    }
-    if (null == formsdc) {
-      return;
-    }
-    formDoc = formsdc.getFirstDocument();
-    while (null != formDoc) {
-      String formDocName = formDoc.getItemValueString(NCCONST.FITM_LASTALIAS);
-      if (formDocName.equals(formName)) {
-        return;
-      }
-      NotesDocument prevDoc = formDoc;
-      formDoc = formsdc.getNextDocument(prevDoc);
-      prevDoc.recycle();
-    }
+  protected void loadForm(String formName) {
+    form = (null == template) ? null : template.getForm(formName);
   }
 
   /*
@@ -274,7 +237,7 @@ class NotesCrawlerThread extends Thread {
 
   // This function will map the fields from the source database
   // to the crawl doc using the configuration specified in
-  // formDoc
+  // form
   protected void mapFields(NotesDocument crawlDoc, NotesDocument srcDoc)
       throws RepositoryException {
     final String METHOD = "mapFields";
@@ -297,19 +260,19 @@ class NotesCrawlerThread extends Thread {
     // We need to generate the title and description using a formula
     String formula;
     // When there is no form configuration use the config from the template
-    if (formDoc != null) {
-      formula = formDoc.getItemValueString(NCCONST.FITM_SEARCHRESULTSFORMULA);
+    if (form != null) {
+      formula = form.getSearchResultsFormula();
     } else {
-      formula = templateDoc.getItemValueString(NCCONST.TITM_SEARCHRESULTSFIELDS);
+      formula = template.getSearchResultsFields();
     }
     evaluateField(crawlDoc, srcDoc, formula, NCCONST.ITM_TITLE, "");
 
     // Again..when there is no form configuration use the config
     // from the template
-    if (formDoc != null) {
-      formula = formDoc.getItemValueString(NCCONST.FITM_DESCRIPTIONFORMULA);
+    if (form != null) {
+      formula = form.getDescriptionFormula();
     } else {
-      formula = templateDoc.getItemValueString(NCCONST.TITM_DESCRIPTIONFIELDS);
+      formula = template.getDescriptionFields();
     }
     evaluateField(crawlDoc, srcDoc, formula, NCCONST.ITM_GMETADESCRIPTION, "");
     LOGGER.exiting(CLASS_NAME, METHOD);
@@ -323,7 +286,7 @@ class NotesCrawlerThread extends Thread {
       throws RepositoryException {
     final String METHOD = "mapMetaFields";
     LOGGER.entering(CLASS_NAME, METHOD);
-    for (MetaField mf : metaFields) {
+    for (MetaField mf : template.getMetaFields()) {
       NotesItem item = null;
       try {
         if (null == mf.getFieldName()) {
@@ -410,10 +373,8 @@ class NotesCrawlerThread extends Thread {
     StringBuffer content = new StringBuffer();
     // If we have a form document then we have a specified list
     // of fields to index
-    if (null != formDoc) {
-      Vector<?> v = formDoc.getItemValue(NCCONST.FITM_FIELDSTOINDEX);
-      for (int i = 0; i < v.size(); i++) {
-        String fieldName = v.elementAt(i).toString();
+    if (null != form) {
+      for (String fieldName : form.getFieldsToIndex()) {
         // Fields beginning with $ are reserved fields in Domino
         // Do not index the Form field ever
         if ((fieldName.charAt(0) == '$')
@@ -474,164 +435,332 @@ class NotesCrawlerThread extends Thread {
     return content.toString();
   }
 
+  /*
+   * Pre-fetches a document in stages: fetching the source document
+   * and mapping its fields, extracting its attachments, assembling
+   * its content, and reconciling its attachments with the H2
+   * database. The cached attachments are looked up on a lookup
+   * thread while the source document is fetched, since Notes objects
+   * cannot be shared with other threads. The lookup must finish
+   * before extractAttachments, which compares the cached fingerprints,
+   * so it only overlaps fetchDoc.
+   */
   protected boolean prefetchDoc(NotesDocument crawlDoc) {
     final String METHOD = "prefetchDoc";
     LOGGER.entering(CLASS_NAME, METHOD);
 
     String notesUrl = null;
+    NotesDocument srcDoc = null;
+    Future<Map<String, String>> cachedAttachLookup = null;
     try {
       notesUrl = crawlDoc.getItemValueString(NCCONST.ITM_GMETANOTESLINK);
       LOGGER.log(Level.FINER, "Prefetching document {0}", notesUrl);
 
       // Get the template for this document
-      loadTemplateDoc(crawlDoc.getItemValueString(NCCONST.NCITM_TEMPLATE));
-      if (null == templateDoc) {
+      loadTemplate(crawlDoc.getItemValueString(NCCONST.NCITM_TEMPLATE));
+      if (null == template) {
         LOGGER.log(Level.FINER, "No template found for document {0}",
             crawlDoc.getItemValueString(NCCONST.ITM_GMETANOTESLINK));
         return false;
       }
 
-      // Check to see if the database we all ready have open is
-      // the right one by comparing replicaids
-      String crawlDocDbRepId = crawlDoc.getItemValueString(
-          NCCONST.NCITM_REPLICAID);
-      if (!crawlDocDbRepId.contentEquals(openDbRepId)) {
-        // Different ReplicaId - Recycle and close the old database
-        if (srcdb != null) {
-          srcdb.recycle();
-          srcdb = null;
-        }
-        // Open the new database
-        srcdb = ns.getDatabase(null, null);
-        srcdb.openByReplicaID(crawlDoc.getItemValueString(
-                NCCONST.NCITM_SERVER), crawlDocDbRepId);
-        openDbRepId = crawlDocDbRepId;
-      }
-
-      // Load our source document
-      NotesDocument srcDoc = srcdb.getDocumentByUNID(
-          crawlDoc.getItemValueString(NCCONST.NCITM_UNID));
-      // Get the form configuration for this document
-      loadForm(srcDoc.getItemValueString(NCCONST.ITMFORM));
-      if (null == formDoc) {
-        LOGGER.log(Level.FINER,
-            "No form definition found.  Using template definition "
-            + "to process document {0}", notesUrl);
+      NotesDocId notesDocId = new NotesDocId(getHTTPURL(crawlDoc));
+      cachedAttachLookup = lookupAttachments(notesDocId);
+
+      srcDoc = fetchDoc(crawlDoc, notesUrl);
+      Map<String, String> cachedAttachments =
+          getCachedAttachments(notesDocId, cachedAttachLookup);
+      Vector<String> docIds = extractAttachments(crawlDoc, srcDoc, notesUrl,
+          cachedAttachments);
+      assembleContent(crawlDoc, srcDoc);
+
+      // Update the status of the document to be fetched.
+      crawlDoc.replaceItemValue(NCCONST.ITM_ACTION, ActionType.ADD.toString());
+
+      // Check attachments against H2 database and create delete requests for
+      // attachments which no longer exist in source document.
+      enqueue(notesDocId, docIds, cachedAttachments);
+
+      return true;
+    } catch (Exception e) {
+      LOGGER.log(Level.SEVERE, "Error prefetching document " + notesUrl, e);
+      if (cachedAttachLookup != null) {
+        cachedAttachLookup.cancel(false);
       }
+      return false;
+    } finally {
+      Util.recycle(srcDoc);
+      LOGGER.exiting(CLASS_NAME, METHOD);
+    }
+  }
+
+  /*
+   * Opens the source document of a crawl request, and maps its
+   * fields, meta fields and readers to the crawl request.
+   */
+  private NotesDocument fetchDoc(NotesDocument crawlDoc, String notesUrl)
+      throws RepositoryException {
+    // The crawl queue interleaves databases, so keep recently used
+    // source databases open rather than reopening them per document
+    String server = crawlDoc.getItemValueString(NCCONST.NCITM_SERVER);
+    String crawlDocDbRepId = crawlDoc.getItemValueString(
+        NCCONST.NCITM_REPLICAID);
+    if (srcdbCache == null) {
+      srcdbCache = new NotesDatabaseCache(ns,
+          NCCONST.SOURCE_DATABASE_CACHE_SIZE);
+    }
+    NotesDatabase srcdb = srcdbCache.get(server, crawlDocDbRepId);
+    if (srcdb == null) {
+      throw new RepositoryException("Unable to open database "
+          + server + "!!" + crawlDocDbRepId);
+    }
 
-      setDocumentReaderNames(crawlDoc, srcDoc);
-      setDocumentSecurity(crawlDoc);
+    // Load our source document
+    NotesDocument srcDoc = srcdb.getDocumentByUNID(
+        crawlDoc.getItemValueString(NCCONST.NCITM_UNID));
+    // Get the form configuration for this document
+    loadForm(srcDoc.getItemValueString(NCCONST.ITMFORM));
+    if (null == form) {
+      LOGGER.log(Level.FINER,
+          "No form definition found.  Using template definition "
+          + "to process document {0}", notesUrl);
+    }
 
-      mapFields(crawlDoc, srcDoc);
-      mapMetaFields(crawlDoc, srcDoc);
+    setDocumentReaderNames(crawlDoc, srcDoc);
+    setDocumentSecurity(crawlDoc);
 
-      // Process the attachments associated with this document
-      // When there are multiple attachments with the same name
-      // Lotus Notes automatically generates unique names for next document
-      Vector<?> va = ns.evaluate("@AttachmentNames", srcDoc);
-      Vector<String> docIds = new Vector<String>();
+    mapFields(crawlDoc, srcDoc);
+    mapMetaFields(crawlDoc, srcDoc);
+    return srcDoc;
+  }
 
-      NotesItem attachItems = crawlDoc.replaceItemValue(
-          NCCONST.ITM_GMETAATTACHMENTS, "");
-      for (int i = 0; i < va.size(); i++) {
-        String attachName = va.elementAt(i).toString();
+  /*
+   * Creates the attachment documents for the attachments of a source
+   * document, extracting their content to the spool directory.
+   * Attachments whose fingerprints match the cached fingerprints are
+   * unchanged since they were last indexed, and are skipped.
+   *
+   * @param cachedAttachments the cached fingerprints of the attachments
+   *     keyed by the hashes of their names, or null if not known
+   * @return the hashes of the names of the attachments with documents
+   */
+  @VisibleForTesting
+  Vector<String> extractAttachments(NotesDocument crawlDoc,
+      NotesDocument srcDoc, String notesUrl,
+      Map<String, String> cachedAttachments) throws RepositoryException {
+    // Process the attachments associated with this document
+    // When there are multiple attachments with the same name
+    // Lotus Notes automatically generates unique names for next document
+    Vector<?> va = ns.evaluate("@AttachmentNames", srcDoc);
+    Vector<String> docIds = new Vector<String>();
+    Vector<String> fingerprints = new Vector<String>();
+
+    // The lengths and modified times are in the same order as the names.
+    Vector<?> lengths = null;
+    Vector<?> modifiedTimes = null;
+    String inheritedStamp = null;
+    if (va.size() > 0) {
+      lengths = ns.evaluate("@AttachmentLengths", srcDoc);
+      modifiedTimes = ns.evaluate("@AttachmentModifiedTimes", srcDoc);
+      if (lengths.size() == va.size() && modifiedTimes.size() == va.size()) {
+        inheritedStamp = getInheritedStamp(crawlDoc);
+      }
+    }
 
-        if (attachName.length() == 0) {
-          continue;
+    NotesItem attachItems = crawlDoc.replaceItemValue(
+        NCCONST.ITM_GMETAATTACHMENTS, "");
+    for (int i = 0; i < va.size(); i++) {
+      String attachName = va.elementAt(i).toString();
+
+      if (attachName.length() == 0) {
+        continue;
+      }
+      String xtn;
+      int period = attachName.lastIndexOf(".");
+      if (period == -1) {
+        xtn = "";
+      } else {
+        xtn = attachName.substring(period + 1);
+      }
+      if (!ncs.isExcludedExtension(xtn.toLowerCase())) {
+        String mimeType = ncs.getMimeType(xtn);
+        String fingerprint = null;
+        if (inheritedStamp != null) {
+          fingerprint = Util.hash(attachName + "\n" + lengths.elementAt(i)
+              + "\n" + modifiedTimes.elementAt(i) + "\n" + mimeType + "\n"
+              + ncs.getMaxFileSize() + "\n" + inheritedStamp);
         }
-        String xtn;
-        int period = attachName.lastIndexOf(".");
-        if (period == -1) {
-          xtn = "";
+        String docId;
+        String attachNameHash = Util.hash(attachName);
+        if (fingerprint != null && cachedAttachments != null
+            && fingerprint.equals(cachedAttachments.get(attachNameHash))) {
+          LOGGER.log(Level.FINER, "Skipping unchanged attachment in {0} : {1}",
+              new Object[] { notesUrl, attachName });
+          docId = attachNameHash;
         } else {
-          xtn = attachName.substring(period + 1);
+          docId = createAttachmentDoc(crawlDoc, srcDoc, attachName, mimeType);
         }
-        if (!ncs.isExcludedExtension(xtn.toLowerCase())) {
-          String docId = createAttachmentDoc(crawlDoc, srcDoc,
-              attachName, ncs.getMimeType(xtn));
-          if (docId != null) {
-            attachItems.appendToTextList(attachName);
-            docIds.add(docId);
-          } else {
-            LOGGER.log(Level.FINER,
-                "Attachment document was not created for {0}", attachName);
-          }
+        if (docId != null) {
+          attachItems.appendToTextList(attachName);
+          docIds.add(docId);
+          fingerprints.add(Strings.nullToEmpty(fingerprint));
         } else {
-          LOGGER.log(Level.FINER, "Excluding attachment in {0} : {1}",
-              new Object[] { notesUrl, attachName });
+          LOGGER.log(Level.FINER,
+              "Attachment document was not created for {0}", attachName);
         }
+      } else {
+        LOGGER.log(Level.FINER, "Excluding attachment in {0} : {1}",
+            new Object[] { notesUrl, attachName });
       }
-      crawlDoc.replaceItemValue(NCCONST.ITM_GMETAALLATTACHMENTS, va);
-      crawlDoc.replaceItemValue(NCCONST.ITM_GMETAATTACHMENTDOCIDS, docIds);
+    }
+    crawlDoc.replaceItemValue(NCCONST.ITM_GMETAALLATTACHMENTS, va);
+    crawlDoc.replaceItemValue(NCCONST.ITM_GMETAATTACHMENTDOCIDS, docIds);
+    crawlDoc.replaceItemValue(NCCONST.NCITM_ATTACHMENTFINGERPRINTS,
+        fingerprints);
+    return docIds;
+  }
 
-      // Get our content after processing attachments
-      // We don't want the document content in the attachment docs
-      // Our content must be stored as non-summary rich text to
-      // avoid the 32/64K limits in Domino
-      NotesRichTextItem contentItem = crawlDoc.createRichTextItem(
-          NCCONST.ITM_CONTENT);
-      String content = getContentFields(srcDoc);
-      contentItem.appendText(content);
-      contentItem.setSummary(false);
+  /*
+   * Gets a string of the crawl request values that are copied to the
+   * attachment documents and sent with them, so that attachments are
+   * sent again when the document's security or metadata changes.
+   */
+  private String getInheritedStamp(NotesDocument crawlDoc)
+      throws RepositoryException {
+    StringBuilder buf = new StringBuilder();
+    for (String itemName : INHERITED_ITEMS) {
+      buf.append(crawlDoc.getItemValue(itemName)).append('\n');
+    }
+    for (MetaField mf : template.getMetaFields()) {
+      if (null != mf.getMetaName()) {
+        buf.append(crawlDoc.getItemValue(META_FIELDS_PREFIX + mf.getMetaName()))
+            .append('\n');
+      }
+    }
+    return buf.toString();
+  }
 
-      // Update the status of the document to be fetched.
-      crawlDoc.replaceItemValue(NCCONST.ITM_ACTION, ActionType.ADD.toString());
-      srcDoc.recycle();
+  /*
+   * Stores the content of a source document in the crawl request.
+   */
+  private void assembleContent(NotesDocument crawlDoc, NotesDocument srcDoc)
+      throws RepositoryException {
+    // Get our content after processing attachments
+    // We don't want the document content in the attachment docs
+    // Our content must be stored as non-summary rich text to
+    // avoid the 32/64K limits in Domino
+    NotesRichTextItem contentItem = crawlDoc.createRichTextItem(
+        NCCONST.ITM_CONTENT);
+    String content = getContentFields(srcDoc);
+    contentItem.appendText(content);
+    contentItem.setSummary(false);
+  }
 
-      // Check attachments against H2 database and create delete requests for
-      // attachments which no longer exist in source document.
-      NotesDocId notesDocId =
-          new NotesDocId(crawlDoc.getItemValueString(NCCONST.ITM_DOCID));
-      enqueue(notesDocId, docIds);
+  /*
+   * Starts looking up the cached attachments of a document. The
+   * lookup runs on the crawler thread if there are no lookup threads
+   * or they are all busy.
+   */
+  private Future<Map<String, String>> lookupAttachments(
+      final NotesDocId notesId) {
+    Callable<Map<String, String>> lookup =
+        new Callable<Map<String, String>>() {
+          @Override
+          public Map<String, String> call() {
+            return getAttachmentFingerprints(notesId);
+          }
+        };
+    if (lookupExecutor != null) {
+      try {
+        return lookupExecutor.submit(lookup);
+      } catch (RejectedExecutionException e) {
+        LOGGER.log(Level.FINEST,
+            "Lookup threads are busy; looking up attachments for {0}",
+            notesId);
+      }
+    }
+    FutureTask<Map<String, String>> task =
+        new FutureTask<Map<String, String>>(lookup);
+    task.run();
+    return task;
+  }
 
-      return true;
-    } catch (Exception e) {
-      LOGGER.log(Level.SEVERE, "Error prefetching document " + notesUrl, e);
-      return false;
+  /*
+   * Waits for the lookup of the cached attachments of a document.
+   *
+   * @return the cached attachments, or null if they are not known
+   */
+  private Map<String, String> getCachedAttachments(NotesDocId notesId,
+      Future<Map<String, String>> cachedAttachLookup) {
+    try {
+      return cachedAttachLookup.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      LOGGER.log(Level.WARNING,
+          "Failed to look up attachments for " + notesId, e.getCause());
+      return null;
+    }
+  }
+
+  /*
+   * Gets the fingerprints of the attachments of a document in the H2
+   * database, keyed by the hashes of the attachment names.
+   */
+  private Map<String, String> getAttachmentFingerprints(NotesDocId notesId) {
+    NotesDocumentManager docMgr = ncs.getNotesDocumentManager();
+    Connection conn = null;
+    try {
+      conn = docMgr.getDatabaseConnection();
+      return docMgr.getAttachmentFingerprints(conn, notesId.getDocId(),
+          notesId.getReplicaId());
+    } catch (SQLException e) {
+      LOGGER.log(Level.SEVERE, "Unable to connect to H2 database", e);
+      return null;
     } finally {
-      LOGGER.exiting(CLASS_NAME, METHOD);
+      if (conn != null) {
+        docMgr.releaseDatabaseConnection(conn);
+      }
     }
   }
 
+  @VisibleForTesting
+  void enqueue(NotesDocId notesId, Vector<String> attachIds) {
+    enqueue(notesId, attachIds, getAttachmentFingerprints(notesId));
+  }
+
   /**
    * Create delete requests for attachments which no longer exist in the
    * source document.
    * 
    * @param notesId google:docid of the parent document
    * @param attachIds hashes of current attachment names
+   * @param cachedAttachments the attachments in the H2 database keyed
+   *     by the hashes of their names, or null if they are not known
    */
-  void enqueue(NotesDocId notesId, Vector<String> attachIds) {
+  void enqueue(NotesDocId notesId, Vector<String> attachIds,
+      Map<String, String> cachedAttachments) {
     LOGGER.log(Level.FINEST, "Send delete requests for attachments which "
         + "no longer exist in source document [UNID: {0}]", notesId);
+    if (cachedAttachments == null) {
+      return;
+    }
     Set<String> curAttachIds = new HashSet<String>(attachIds);
-
-    NotesDocumentManager docMgr = ncs.getNotesDocumentManager();
-    Connection conn = null;
-    try {
-      conn = docMgr.getDatabaseConnection();
-      Set<String> allAttachIds = docMgr.getAttachmentIds(conn,
-          notesId.getDocId(), notesId.getReplicaId());
-      for (String attachId : allAttachIds) {
-        if (!curAttachIds.contains(attachId)) {
-          LOGGER.log(Level.FINEST, "{0} attachment is in cache but not in "
-              + "source document, send delete request to GSA", attachId);
-          try {
-            // Send deletion for each attachment
-            String attachmentUrl = String.format(NCCONST.SITM_ATTACHMENTDOCID,
-                notesId.toString(), attachId);
-            createDeleteRequest(attachmentUrl);
-          } catch (RepositoryException e) {
-            LOGGER.log(Level.WARNING,
-                "Failed to create delete request for attachment: " + attachId);
-          }
+    for (String attachId : cachedAttachments.keySet()) {
+      if (!curAttachIds.contains(attachId)) {
+        LOGGER.log(Level.FINEST, "{0} attachment is in cache but not in "
+            + "source document, send delete request to GSA", attachId);
+        try {
+          // Send deletion for each attachment
+          String attachmentUrl = String.format(NCCONST.SITM_ATTACHMENTDOCID,
+              notesId.toString(), attachId);
+          createDeleteRequest(attachmentUrl);
+        } catch (RepositoryException e) {
+          LOGGER.log(Level.WARNING,
+              "Failed to create delete request for attachment: " + attachId);
         }
       }
-    } catch (SQLException e) {
-      LOGGER.log(Level.SEVERE, "Unable to connect to H2 database", e);
-    } finally {
-      if (conn != null) {
-        docMgr.releaseDatabaseConnection(conn);
-      }
     }
   }
 
@@ -734,9 +863,16 @@ class NotesCrawlerThread extends Thread {
       if (mimeType.length() != 0
           && eo.getFileSize() <= ncs.getMaxFileSize()) {
         attachDoc.replaceItemValue(NCCONST.ITM_MIMETYPE, mimeType);
-        String attachmentPath = getAttachmentFilePath(crawlDoc, attachNameHash);
-        eo.extractFile(attachmentPath);
-        attachDoc.replaceItemValue(NCCONST.ITM_CONTENTPATH, attachmentPath);
+        if (nc.getStreamAttachments()) {
+          // The content is read from the source document when the
+          // attachment document is fed.
+          attachDoc.replaceItemValue(NCCONST.ITM_STREAMCONTENT, "true");
+        } else {
+          String attachmentPath =
+              getAttachmentFilePath(crawlDoc, attachNameHash);
+          eo.extractFile(attachmentPath);
+          attachDoc.replaceItemValue(NCCONST.ITM_CONTENTPATH, attachmentPath);
+        }
       } else {
         // Not a supported attachment so sending meta data only
         // with the filename as content
@@ -775,14 +911,8 @@ class NotesCrawlerThread extends Thread {
   // generate the unique filename
   private String getAttachmentFilePath(NotesDocument crawlDoc,
       String attachName) throws RepositoryException {
-    String dirName = String.format("%s/attachments/%s/%s",
-        ncs.getSpoolDir(),
-        cdb.getReplicaID(),
-        crawlDoc.getUniversalID());
-    new File(dirName).mkdirs();
-    String filePath = String.format("%s/%s", dirName, attachName);
-    // TODO: Ensure that filePath is a valid Windows filepath.
-    return filePath;
+    return Util.getAttachmentFilePath(ncs.getSpoolDir(), cdb.getReplicaID(),
+        crawlDoc.getUniversalID(), attachName);
   }
 
   @VisibleForTesting
@@ -807,12 +937,11 @@ class NotesCrawlerThread extends Thread {
     final String METHOD = "disconnectQueue";
     LOGGER.entering(CLASS_NAME, METHOD);
     try {
-      Util.recycle(templateDoc, formDoc, formsdc, srcdb, crawlQueue, cdb);
-      templateDoc = null;
-      formDoc = null;
-      formsdc = null;
-      openDbRepId = "";
-      srcdb = null;
+      if (srcdbCache != null) {
+        srcdbCache.recycle();
+      }
+      Util.recycle(crawlQueue, cdb);
+      srcdbCache = null;
       crawlQueue = null;
       cdb = null;
 
@@ -825,6 +954,27 @@ class NotesCrawlerThread extends Thread {
     }
   }
 
+  /*
+   * Returns the crawl requests that were claimed but not handed out
+   * to the crawl queue when the connector is shut down.
+   */
+  private void releaseClaimed() {
+    if (ncs.getCrawlQueueDispatcher().getClaimedCount() == 0) {
+      return;
+    }
+    try {
+      connectQueue();
+      ncs.getCrawlQueueDispatcher().releaseClaimed(cdb);
+    } catch (RepositoryException e) {
+      LOGGER.log(Level.WARNING, "Failed to release claimed crawl requests", e);
+    }
+  }
+
+  /** Returns true while this crawler is pre-fetching a document. */
+  boolean isBusy() {
+    return busy;
+  }
+
   @Override
   public void run() {
     NDC.push("Crawler " + nc.getGoogleConnectorName());
@@ -851,18 +1001,21 @@ class NotesCrawlerThread extends Thread {
         }
         LOGGER.log(Level.FINEST, "Connecting to crawl queue.");
         connectQueue();
-        NotesDocument crawlDoc = getNextFromCrawlQueue(ns, crawlQueue);
+        NotesDocument crawlDoc =
+            ncs.getCrawlQueueDispatcher().getNextDocument(cdb, crawlQueue);
         if (crawlDoc == null) {
           LOGGER.log(Level.FINE, 
-              "{0}: Crawl queue is empty. Crawler thread sleeping.", getName());
+              "{0}: Crawl queue is empty. Crawler thread sleeping.",
+              Thread.currentThread().getName());
           // If we have finished processing the queue shutdown our connections
           disconnectQueue();
           npn.waitForWork();
           LOGGER.log(Level.FINE,
               "{0} Crawler thread resuming after crawl queue was empty.",
-              getName());
+              Thread.currentThread().getName());
           continue;
         }
+        busy = true;
         if (prefetchDoc(crawlDoc)) {
           crawlDoc.replaceItemValue(NCCONST.NCITM_STATE, NCCONST.STATEFETCHED);
         } else  {
@@ -870,7 +1023,10 @@ class NotesCrawlerThread extends Thread {
         }
         crawlDoc.save(true);
         crawlDoc.recycle();
+        busy = false;
+        npn.documentFetched();
       } catch (Exception e) {
+        busy = false;
         LOGGER.log(Level.SEVERE, CLASS_NAME, e);
         // Lets say the server we are connected to goes down
         // while we are crawling We don't want to fill up the
@@ -890,6 +1046,7 @@ class NotesCrawlerThread extends Thread {
         }
       }
     }
+    releaseClaimed();
     disconnectQueue();
     LOGGER.log(Level.FINE, "Connector shutdown - NotesCrawlerThread exiting.");
     LOGGER.exiting(CLASS_NAME, METHOD);
@@ -0,0 +1,139 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.notes.client.NotesDatabase;
+import com.google.enterprise.connector.notes.client.NotesSession;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded, least recently used cache of open source databases
+ * keyed by server and replica ID. Notes objects belong to the
+ * session that created them, so each worker keeps its own cache for
+ * its own session, and the cache is not thread safe. Evicted
+ * databases are recycled.
+ */
+class NotesDatabaseCache {
+  private static final String CLASS_NAME = NotesDatabaseCache.class.getName();
+  private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  private final NotesSession ns;
+  private final Map<String, NotesDatabase> cache;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long opens = 0;
+  private long evictions = 0;
+
+  NotesDatabaseCache(NotesSession ns, final int maxSize) {
+    this.ns = ns;
+    this.cache = new LinkedHashMap<String, NotesDatabase>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, NotesDatabase> eldest) {
+        if (size() > maxSize) {
+          LOGGER.log(Level.FINEST, "Evicting database {0}", eldest.getKey());
+          evictions++;
+          Util.recycle(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Gets an open database, opening it if it is not cached.
+   *
+   * @param server the server name
+   * @param replicaId the replica ID
+   * @return the open database, or {@code null} if it could not be opened
+   */
+  NotesDatabase get(String server, String replicaId)
+      throws RepositoryException {
+    final String METHOD = "get";
+    LOGGER.entering(CLASS_NAME, METHOD);
+    try {
+      String key = getKey(server, replicaId);
+      NotesDatabase db = cache.get(key);
+      if (db != null) {
+        hits++;
+        return db;
+      }
+      misses++;
+
+      db = ns.getDatabase(null, null);
+      opens++;
+      if (!db.openByReplicaID(server, replicaId)) {
+        LOGGER.log(Level.FINE, "Unable to open database {0}", key);
+        Util.recycle(db);
+        return null;
+      }
+      cache.put(key, db);
+      return db;
+    } finally {
+      LOGGER.exiting(CLASS_NAME, METHOD);
+    }
+  }
+
+  /**
+   * Recycles all of the cached databases and logs the cache
+   * statistics.
+   */
+  void recycle() {
+    LOGGER.log(Level.FINE, "Database cache statistics: {0} hits, {1} misses, "
+        + "{2} opens, {3} evictions",
+        new Object[] { hits, misses, opens, evictions });
+    for (NotesDatabase db : cache.values()) {
+      Util.recycle(db);
+    }
+    cache.clear();
+  }
+
+  private String getKey(String server, String replicaId) {
+    return server.toLowerCase() + "!!" + replicaId.toLowerCase();
+  }
+
+  @VisibleForTesting
+  int size() {
+    return cache.size();
+  }
+
+  @VisibleForTesting
+  long getHits() {
+    return hits;
+  }
+
+  @VisibleForTesting
+  long getMisses() {
+    return misses;
+  }
+
+  @VisibleForTesting
+  long getOpens() {
+    return opens;
+  }
+
+  @VisibleForTesting
+  long getEvictions() {
+    return evictions;
+  }
+}
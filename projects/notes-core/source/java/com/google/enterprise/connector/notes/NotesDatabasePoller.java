@@ -30,11 +30,20 @@ import com.google.enterprise.connector.spi.SpiConstants.ActionType;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,6 +53,11 @@ class NotesDatabasePoller {
 
   private final NotesConnectorSession notesConnectorSession;
   private final Map<String, Date> lastCrawlCache;
+  private final Map<String, Long> nextPollTimes =
+      Collections.synchronizedMap(new HashMap<String, Long>());
+  private int numThreads = 1;
+  private ExecutorService executor = null;
+  private final AtomicInteger crawlRequestsCreated = new AtomicInteger();
 
   public static void resetDatabases(NotesConnectorSession ncs) {
     final String METHOD = "resetDatabases";
@@ -89,47 +103,68 @@ class NotesDatabasePoller {
     this.lastCrawlCache = lastCrawlCache;
   }
 
-  public void pollDatabases(NotesSession ns, NotesDatabase cdb,
+  /**
+   * Sets the number of threads used to poll the source databases.
+   * With more than one thread, the databases are grouped by server
+   * and each server's databases are polled on their own thread.
+   */
+  void setNumThreads(int numThreads) {
+    this.numThreads = numThreads;
+  }
+
+  /*
+   * Gets the pool of threads used to poll the servers, creating it on
+   * the first poll. The pool is reused by every poll.
+   */
+  @VisibleForTesting
+  synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(numThreads,
+          new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, NotesDatabasePoller.class
+                  .getSimpleName() + threadCount.getAndIncrement());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    }
+    return executor;
+  }
+
+  /** Stops the polling threads. */
+  synchronized void shutdown() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Polls the source databases that are due to be polled.
+   *
+   * @return the earliest time, in milliseconds, at which a source
+   *     database is next due to be polled, or {@code Long.MAX_VALUE}
+   *     if no database is enabled
+   */
+  public long pollDatabases(NotesSession ns, NotesDatabase cdb,
       int maxDepth) {
     final String METHOD = "pollDatabases";
     LOGGER.entering(CLASS_NAME, METHOD);
+    long earliestPollTime = Long.MAX_VALUE;
     try {
-      // TODO: use Date or Calendar to avoid the Notes library
-      // dependency on the operating system's settings for date
-      // formats.
-      NotesDateTime pollTime = ns.createDateTime("1/1/1900");
-      pollTime.setNow();
-
-      NotesView templateView = cdb.getView(NCCONST.VIEWTEMPLATES);
       NotesView srcdbView = cdb.getView(NCCONST.VIEWDATABASES);
       srcdbView.refresh();
-      NotesView vwSubmitQ = cdb.getView(NCCONST.VIEWSUBMITQ);
-      NotesView vwCrawlQ = cdb.getView(NCCONST.VIEWCRAWLQ);
-
-      // TODO: Make this loop shutdown aware
-
       Map<String, Date> nextBatch = new HashMap<String, Date>();
-      NotesDocument srcdbDoc = srcdbView.getFirstDocument();
-      while (null != srcdbDoc) {
-        vwSubmitQ.refresh();
-        vwCrawlQ.refresh();
-        int qDepth = vwSubmitQ.getEntryCount() + vwCrawlQ.getEntryCount();
-        LOGGER.log(Level.FINER,
-            "Total documents in crawl and submit queues is: {0}", qDepth);
-        if (vwSubmitQ.getEntryCount() + vwCrawlQ.getEntryCount() > maxDepth) {
-          LOGGER.log(Level.FINE,
-              "Queue threshold reached.  Suspending polling. size/max={0}/{1}",
-              new Object[] { qDepth, maxDepth });
-          srcdbDoc.recycle();
-          break;
-        }
-        LOGGER.log(Level.FINER, "Source Database Config Document {0}",
-            srcdbDoc.getItemValue(NCCONST.DITM_DBNAME));
-        pollSourceDatabase(ns, cdb, srcdbDoc, templateView, pollTime,
-            nextBatch);
-        NotesDocument prevDoc = srcdbDoc;
-        srcdbDoc = srcdbView.getNextDocument(prevDoc);
-        prevDoc.recycle();
+      if (numThreads > 1) {
+        earliestPollTime =
+            pollDatabasesByServer(srcdbView, maxDepth, nextBatch);
+      } else {
+        earliestPollTime =
+            pollDatabases(ns, cdb, srcdbView, maxDepth, nextBatch);
       }
       // TODO(tdnguyen): Move the cache update and the setting of
       // DITM_LASTUPDATE field to NotesConnectorDocumentList.checkpoint method.
@@ -137,17 +172,304 @@ class NotesDatabasePoller {
         lastCrawlCache.clear();
         lastCrawlCache.putAll(nextBatch);
       }
-
-      vwSubmitQ.recycle();
-      vwCrawlQ.recycle();
-      pollTime.recycle();
-      templateView.recycle();
       srcdbView.recycle();
     } catch (Exception e) {
       LOGGER.log(Level.SEVERE, CLASS_NAME, e);
     } finally {
       LOGGER.exiting(CLASS_NAME, METHOD);
     }
+    return earliestPollTime;
+  }
+
+  /*
+   * Polls the source databases in the order of the databases view.
+   */
+  private long pollDatabases(NotesSession ns, NotesDatabase cdb,
+      NotesView srcdbView, int maxDepth, Map<String, Date> nextBatch)
+      throws RepositoryException {
+    long earliestPollTime = Long.MAX_VALUE;
+    // TODO: use Date or Calendar to avoid the Notes library
+    // dependency on the operating system's settings for date
+    // formats.
+    NotesDateTime pollTime = ns.createDateTime("1/1/1900");
+    pollTime.setNow();
+
+    NotesView templateView = cdb.getView(NCCONST.VIEWTEMPLATES);
+    NotesView vwSubmitQ = cdb.getView(NCCONST.VIEWSUBMITQ);
+    NotesView vwCrawlQ = cdb.getView(NCCONST.VIEWCRAWLQ);
+    QueueDepth queueDepth = new QueueDepth(vwSubmitQ, vwCrawlQ);
+    try {
+      NotesDocument srcdbDoc = srcdbView.getFirstDocument();
+      while (null != srcdbDoc) {
+        if (isShutdown()) {
+          LOGGER.log(Level.FINE,
+              "Connector is shutting down. Suspending polling.");
+          srcdbDoc.recycle();
+          break;
+        }
+        if (queueDepth.isFull(maxDepth)) {
+          // Poll again once the crawler threads have made some progress.
+          earliestPollTime = 0;
+          srcdbDoc.recycle();
+          break;
+        }
+        earliestPollTime = Math.min(earliestPollTime, pollDatabase(ns, cdb,
+            srcdbDoc, templateView, pollTime, nextBatch));
+        queueDepth.databasePolled();
+        NotesDocument prevDoc = srcdbDoc;
+        srcdbDoc = srcdbView.getNextDocument(prevDoc);
+        prevDoc.recycle();
+      }
+    } finally {
+      Util.recycle(vwSubmitQ, vwCrawlQ, pollTime, templateView);
+    }
+    return earliestPollTime;
+  }
+
+  /*
+   * Polls the source databases that are due using a pool of threads,
+   * one server at a time per thread, so that a slow server only
+   * holds up its own databases. Each thread uses its own session.
+   */
+  private long pollDatabasesByServer(NotesView srcdbView, int maxDepth,
+      Map<String, Date> nextBatch) throws RepositoryException {
+    long earliestPollTime = Long.MAX_VALUE;
+    Map<String, List<String>> srcdbDocsByServer =
+        new LinkedHashMap<String, List<String>>();
+    NotesDocument srcdbDoc = srcdbView.getFirstDocument();
+    while (null != srcdbDoc) {
+      Long nextPollTime = getNextPollTime(srcdbDoc);
+      if (nextPollTime != null) {
+        earliestPollTime = Math.min(earliestPollTime, nextPollTime);
+      } else {
+        String server =
+            srcdbDoc.getItemValueString(NCCONST.DITM_SERVER).toLowerCase();
+        List<String> srcdbDocs = srcdbDocsByServer.get(server);
+        if (srcdbDocs == null) {
+          srcdbDocs = new ArrayList<String>();
+          srcdbDocsByServer.put(server, srcdbDocs);
+        }
+        srcdbDocs.add(srcdbDoc.getUniversalID());
+      }
+      NotesDocument prevDoc = srcdbDoc;
+      srcdbDoc = srcdbView.getNextDocument(prevDoc);
+      prevDoc.recycle();
+    }
+    if (srcdbDocsByServer.isEmpty()) {
+      return earliestPollTime;
+    }
+
+    LOGGER.log(Level.FINE, "Polling databases on {0} servers with {1} threads",
+        new Object[] { srcdbDocsByServer.size(),
+            Math.min(numThreads, srcdbDocsByServer.size()) });
+    ExecutorService executor = getExecutor();
+    List<ServerPoller> serverPollers = new ArrayList<ServerPoller>();
+    List<Future<Long>> futures = new ArrayList<Future<Long>>();
+    for (Map.Entry<String, List<String>> entry
+             : srcdbDocsByServer.entrySet()) {
+      ServerPoller serverPoller =
+          new ServerPoller(entry.getKey(), entry.getValue(), maxDepth);
+      serverPollers.add(serverPoller);
+      futures.add(executor.submit(serverPoller));
+    }
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          earliestPollTime = Math.min(earliestPollTime, futures.get(i).get());
+        } catch (ExecutionException e) {
+          LOGGER.log(Level.SEVERE, "Failed to poll databases on server "
+              + serverPollers.get(i).server, e.getCause());
+          earliestPollTime = 0;
+        }
+        nextBatch.putAll(serverPollers.get(i).nextBatch);
+      }
+    } catch (InterruptedException e) {
+      LOGGER.log(Level.WARNING, "Interrupted while polling databases", e);
+      for (Future<Long> future : futures) {
+        future.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+    }
+    return earliestPollTime;
+  }
+
+  /**
+   * Polls the source databases on one server using a new session.
+   */
+  private class ServerPoller implements Callable<Long> {
+    private final String server;
+    private final List<String> srcdbDocs;
+    private final int maxDepth;
+    private final Map<String, Date> nextBatch = new HashMap<String, Date>();
+
+    ServerPoller(String server, List<String> srcdbDocs, int maxDepth) {
+      this.server = server;
+      this.srcdbDocs = srcdbDocs;
+      this.maxDepth = maxDepth;
+    }
+
+    @Override
+    public Long call() throws RepositoryException {
+      long earliestPollTime = Long.MAX_VALUE;
+      NotesSession ns = notesConnectorSession.createNotesSession();
+      NotesDateTime pollTime = null;
+      NotesView templateView = null;
+      NotesView vwSubmitQ = null;
+      NotesView vwCrawlQ = null;
+      try {
+        NotesDatabase cdb = ns.getDatabase(notesConnectorSession.getServer(),
+            notesConnectorSession.getDatabase());
+        pollTime = ns.createDateTime("1/1/1900");
+        pollTime.setNow();
+        templateView = cdb.getView(NCCONST.VIEWTEMPLATES);
+        vwSubmitQ = cdb.getView(NCCONST.VIEWSUBMITQ);
+        vwCrawlQ = cdb.getView(NCCONST.VIEWCRAWLQ);
+        QueueDepth queueDepth = new QueueDepth(vwSubmitQ, vwCrawlQ);
+        for (String unid : srcdbDocs) {
+          if (isShutdown()) {
+            LOGGER.log(Level.FINE,
+                "Connector is shutting down. Suspending polling.");
+            break;
+          }
+          if (queueDepth.isFull(maxDepth)) {
+            earliestPollTime = 0;
+            break;
+          }
+          NotesDocument srcdbDoc = cdb.getDocumentByUNID(unid);
+          try {
+            earliestPollTime = Math.min(earliestPollTime, pollDatabase(ns,
+                cdb, srcdbDoc, templateView, pollTime, nextBatch));
+          } finally {
+            Util.recycle(srcdbDoc);
+          }
+          queueDepth.databasePolled();
+        }
+      } finally {
+        Util.recycle(vwSubmitQ, vwCrawlQ, pollTime, templateView);
+        notesConnectorSession.closeNotesSession(ns);
+      }
+      LOGGER.log(Level.FINE, "Finished polling databases on server {0}",
+          server);
+      return earliestPollTime;
+    }
+  }
+
+  /*
+   * Returns the time at which the database is next due to be polled,
+   * or null if it is due now.
+   */
+  private Long getNextPollTime(NotesDocument srcdbDoc)
+      throws RepositoryException {
+    String replicaId = srcdbDoc.getItemValueString(NCCONST.DITM_REPLICAID);
+    Long nextPollTime = nextPollTimes.get(replicaId);
+    if (nextPollTime != null
+        && nextPollTime > System.currentTimeMillis()) {
+      LOGGER.log(Level.FINER, "Skipping database {0} until {1}",
+          new Object[] { srcdbDoc.getItemValue(NCCONST.DITM_DBNAME),
+              new Date(nextPollTime) });
+      return nextPollTime;
+    }
+    return null;
+  }
+
+  /*
+   * Polls a source database if it is due, and records when it is
+   * next due.
+   */
+  private long pollDatabase(NotesSession ns, NotesDatabase cdb,
+      NotesDocument srcdbDoc, NotesView templateView, NotesDateTime pollTime,
+      Map<String, Date> nextBatch) throws RepositoryException {
+    Long nextPollTime = getNextPollTime(srcdbDoc);
+    if (nextPollTime != null) {
+      return nextPollTime;
+    }
+    LOGGER.log(Level.FINER, "Source Database Config Document {0}",
+        srcdbDoc.getItemValue(NCCONST.DITM_DBNAME));
+    String replicaId = srcdbDoc.getItemValueString(NCCONST.DITM_REPLICAID);
+    long next = pollSourceDatabase(ns, cdb, srcdbDoc, templateView,
+        pollTime, nextBatch);
+    if (next == Long.MAX_VALUE) {
+      // Disabled databases are checked again on every poll.
+      nextPollTimes.remove(replicaId);
+    } else {
+      nextPollTimes.put(replicaId, next);
+    }
+    return next;
+  }
+
+  /**
+   * Estimates the number of documents in the crawl and submit queues
+   * from the crawl requests created since the views were last
+   * counted. Crawler threads only shrink the queues, so the estimate
+   * is an upper bound. The views are refreshed and counted again
+   * every {@link NCCONST#QUEUE_DEPTH_REFRESH_DATABASES} databases,
+   * every {@link NCCONST#QUEUE_DEPTH_REFRESH_INTERVAL} milliseconds,
+   * and before polling is suspended.
+   */
+  private class QueueDepth {
+    private final NotesView vwSubmitQ;
+    private final NotesView vwCrawlQ;
+    private int countedDepth;
+    private int createdAtCount;
+    private int databasesSinceCount;
+    private long countTime;
+
+    QueueDepth(NotesView vwSubmitQ, NotesView vwCrawlQ) {
+      this.vwSubmitQ = vwSubmitQ;
+      this.vwCrawlQ = vwCrawlQ;
+    }
+
+    void databasePolled() {
+      databasesSinceCount++;
+    }
+
+    boolean isFull(int maxDepth) throws RepositoryException {
+      if (databasesSinceCount >= NCCONST.QUEUE_DEPTH_REFRESH_DATABASES
+          || System.currentTimeMillis() - countTime
+              >= NCCONST.QUEUE_DEPTH_REFRESH_INTERVAL) {
+        count();
+      }
+      int qDepth = getEstimate();
+      if (qDepth > maxDepth && databasesSinceCount > 0) {
+        count();
+        qDepth = getEstimate();
+      }
+      if (qDepth > maxDepth) {
+        LOGGER.log(Level.FINE,
+            "Queue threshold reached.  Suspending polling. size/max={0}/{1}",
+            new Object[] { qDepth, maxDepth });
+        return true;
+      }
+      return false;
+    }
+
+    private int getEstimate() {
+      return countedDepth + crawlRequestsCreated.get() - createdAtCount;
+    }
+
+    private void count() throws RepositoryException {
+      createdAtCount = crawlRequestsCreated.get();
+      vwSubmitQ.refresh();
+      vwCrawlQ.refresh();
+      countedDepth = vwSubmitQ.getEntryCount() + vwCrawlQ.getEntryCount();
+      databasesSinceCount = 0;
+      countTime = System.currentTimeMillis();
+      LOGGER.log(Level.FINER,
+          "Total documents in crawl and submit queues is: {0}", countedDepth);
+    }
+  }
+
+  /**
+   * Forgets when each database is next due, so that all databases
+   * are checked on the next poll.
+   */
+  void resetPollTimes() {
+    nextPollTimes.clear();
+  }
+
+  private boolean isShutdown() {
+    NotesConnector connector = notesConnectorSession.getConnector();
+    return connector != null && connector.getShutdown();
   }
 
   @VisibleForTesting
@@ -217,6 +539,8 @@ class NotesDatabasePoller {
       updateTextList(dbdoc, NCCONST.NCITM_DBPERMITUSERS, permitUsers);
       updateTextList(dbdoc, NCCONST.NCITM_DBPERMITGROUPS, permitGroups);
       updateTextList(dbdoc, NCCONST.NCITM_DBNOACCESSGROUPS, noAccessGroups);
+      notesConnectorSession.getDatabaseAclCache().invalidate(
+          dbdoc.getItemValueString(NCCONST.DITM_REPLICAID));
     } catch (Exception e) {
       // TODO: should we return false here?
       LOGGER.log(Level.SEVERE, CLASS_NAME, e);
@@ -294,6 +618,7 @@ class NotesDatabasePoller {
                 gsaPermitGroups, gsaNoAccessUsers, gsaNoAccessGroups });
       }
       aclDoc.save();
+      crawlRequestsCreated.incrementAndGet();
     } finally {
       Util.recycle(aclDoc);
     }
@@ -387,10 +712,18 @@ class NotesDatabasePoller {
    * This function should probably return the number of documents queued
    * that way we can prevent overflowing the database
    */
-  private void pollSourceDatabase(NotesSession ns, NotesDatabase cdb,
+  /**
+   * Polls a source database if its poll interval has elapsed.
+   *
+   * @return the time, in milliseconds, at which the database is next
+   *     due to be polled, or {@code Long.MAX_VALUE} if the database is
+   *     disabled or stopped
+   */
+  private long pollSourceDatabase(NotesSession ns, NotesDatabase cdb,
       NotesDocument srcdbDoc, NotesView templateView, NotesDateTime pollTime,
       Map<String, Date> nextBatch) {
     final String METHOD = "pollSourceDatabase";
+    long nextPollTime = System.currentTimeMillis();
     NotesDateTime lastUpdated = null;
     NotesDateTime searchLastUpdated = null;
     Vector<?> lastUpdatedV = null;
@@ -401,11 +734,11 @@ class NotesDatabasePoller {
       // In either of these states, we skip processing the database
       if (1 != srcdbDoc.getItemValueInteger(NCCONST.DITM_CRAWLENABLED)) {
         LOGGER.log(Level.FINE, "Skipping database - Database is DISABLED.");
-        return;
+        return Long.MAX_VALUE;
       }
       if (1 == srcdbDoc.getItemValueInteger(NCCONST.DITM_STOPPED)) {
         LOGGER.log(Level.FINE, "Skipping database - Database is STOPPED.");
-        return;
+        return Long.MAX_VALUE;
       }
 
       // When was this database last updated?
@@ -438,6 +771,7 @@ class NotesDatabasePoller {
       // What's our poll interval?
       double pollInterval = srcdbDoc.getItemValueInteger(
           NCCONST.DITM_UPDATEFREQUENCY);
+      long pollIntervalMillis = (long) (pollInterval * 60 * 1000);
       double elapsedMinutes = pollTime.timeDifference(lastUpdated) / 60;
       LOGGER.log(Level.FINE, "Time difference is: {0}", elapsedMinutes);
 
@@ -445,11 +779,13 @@ class NotesDatabasePoller {
       if (pollInterval > elapsedMinutes) {
         LOGGER.log(Level.FINE,
             "Skipping database - Poll interval has not yet elapsed.");
+        nextPollTime = lastUpdated.toJavaDate().getTime() + pollIntervalMillis;
         lastUpdated.recycle();
         searchLastUpdated.recycle();
         ns.recycle(lastUpdatedV);
-        return;
+        return nextPollTime;
       }
+      nextPollTime = pollTime.toJavaDate().getTime() + pollIntervalMillis;
 
       // Get modified documents
       NotesDatabase srcdb = ns.getDatabase(null, null);
@@ -465,7 +801,7 @@ class NotesDatabasePoller {
         searchLastUpdated.recycle();
         ns.recycle(lastUpdatedV);
         srcdb.recycle();
-        return;
+        return nextPollTime;
       }
 
       String dbName = srcdbDoc.getItemValueString(NCCONST.DITM_DBNAME);
@@ -473,7 +809,8 @@ class NotesDatabasePoller {
       LOGGER.log(Level.FINE,
           "{0} database is configured using {1} authentication type",
           new Object[] {dbName, authType});
-      if (processACL(ns, cdb, srcdb, srcdbDoc)) {
+      boolean isAclChanged = processACL(ns, cdb, srcdb, srcdbDoc);
+      if (isAclChanged) {
         // Scan database ACLs and update H2 cache
         LOGGER.log(Level.FINE, "Scan ACLs and update H2 for {0} replica",
             srcdb.getReplicaID());
@@ -553,6 +890,7 @@ class NotesDatabasePoller {
         crawlRequestDoc.appendItemValue(NCCONST.ITM_GMETANOTESLINK, notesUrl);
 
         crawlRequestDoc.save();
+        crawlRequestsCreated.incrementAndGet();
         crawlRequestDoc.recycle();  //TEST THIS
         crawlRequestDoc = null;
         if (lastModified.timeDifference(lastUpdated) > 0) {
@@ -569,6 +907,11 @@ class NotesDatabasePoller {
               srcdbDoc.getItemValueString(NCCONST.DITM_DBNAME), lastUpdated});
       srcdbDoc.replaceItemValue(NCCONST.DITM_LASTUPDATE, lastUpdated);
       srcdbDoc.save();
+      if (isAclChanged) {
+        // Drop any ACL that was cached before the new lists were saved.
+        notesConnectorSession.getDatabaseAclCache().invalidate(
+            srcdbDoc.getItemValueString(NCCONST.DITM_REPLICAID));
+      }
 
       // TODO: Handle db.search for case where there are more
       // that 5000 documents
@@ -583,9 +926,11 @@ class NotesDatabasePoller {
       ns.recycle(lastUpdatedV);
     } catch (Exception e) {
       LOGGER.log(Level.SEVERE, CLASS_NAME, e);
+      nextPollTime = System.currentTimeMillis();
     } finally {
       LOGGER.exiting(CLASS_NAME, METHOD);
     }
+    return nextPollTime;
   }
 
   private NotesDocument nextDocument(NotesDocumentCollection dc,
@@ -0,0 +1,189 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.notes.client.NotesDatabase;
+import com.google.enterprise.connector.notes.client.NotesSession;
+import com.google.enterprise.connector.notes.client.NotesView;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polls the source databases for changes on a scheduled thread, so
+ * that polling does not hold up traversal. Each database is polled
+ * when its update frequency has elapsed.
+ */
+class NotesDatabasePollerService {
+  private static final String CLASS_NAME =
+      NotesDatabasePollerService.class.getName();
+  private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  private final NotesConnector nc;
+  private final NotesConnectorSession ncs;
+  private final Map<String, Date> lastCrawlCache;
+  private final NotesDatabasePoller poller;
+  private final Object pollLock = new Object();
+  private volatile long nextPollTime = 0;
+  private ScheduledExecutorService executor = null;
+
+  private final Runnable pollTask = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          poll();
+        } catch (RuntimeException e) {
+          // Don't let an unexpected error cancel the scheduled polls.
+          LOGGER.log(Level.SEVERE, CLASS_NAME, e);
+        }
+      }
+    };
+
+  NotesDatabasePollerService(NotesConnector connector,
+      NotesConnectorSession session) {
+    this.nc = connector;
+    this.ncs = session;
+    this.lastCrawlCache =
+        Collections.synchronizedMap(new HashMap<String, Date>());
+    this.poller = new NotesDatabasePoller(session, lastCrawlCache);
+    this.poller.setNumThreads(connector.getNumPollerThreads());
+  }
+
+  /** Starts polling. Does nothing if polling has already started. */
+  synchronized void start() {
+    if (executor != null) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread =
+                new Thread(r, NotesDatabasePoller.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.scheduleWithFixedDelay(pollTask, 0L, NCCONST.POLLER_INTERVAL,
+        TimeUnit.MILLISECONDS);
+    LOGGER.log(Level.INFO, "Started database poller");
+  }
+
+  /** Polls the source databases as soon as possible. */
+  void requestPoll() {
+    nextPollTime = 0;
+    synchronized (this) {
+      if (executor != null && !executor.isShutdown()) {
+        executor.execute(pollTask);
+      }
+    }
+  }
+
+  /**
+   * Resets the last update time of all the source databases, so that
+   * they are crawled from the beginning, and polls them.
+   */
+  void resetDatabases() {
+    synchronized (pollLock) {
+      NotesDatabasePoller.resetDatabases(ncs);
+      lastCrawlCache.clear();
+      poller.resetPollTimes();
+    }
+    requestPoll();
+  }
+
+  /**
+   * Stops polling and waits for a poll in progress to finish.
+   *
+   * @param timeout the maximum time to wait in milliseconds
+   * @return true if polling stopped before the timeout
+   */
+  boolean shutdown(long timeout) {
+    ScheduledExecutorService pollExecutor;
+    synchronized (this) {
+      pollExecutor = executor;
+    }
+    if (pollExecutor == null) {
+      return true;
+    }
+    pollExecutor.shutdown();
+    try {
+      if (pollExecutor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      poller.shutdown();
+    }
+    LOGGER.log(Level.WARNING,
+        "Database poller did not finish before the shutdown timeout");
+    pollExecutor.shutdownNow();
+    return false;
+  }
+
+  /**
+   * Polls the source databases if any of them are due, and wakes the
+   * crawler threads to process the new crawl requests.
+   */
+  @VisibleForTesting
+  void poll() {
+    final String METHOD = "poll";
+    synchronized (pollLock) {
+      if (nc.getShutdown() || System.currentTimeMillis() < nextPollTime) {
+        return;
+      }
+      LOGGER.entering(CLASS_NAME, METHOD);
+      NotesSession ns = null;
+      try {
+        if (!ncs.getUserGroupManager().isCacheInitialized()) {
+          LOGGER.log(Level.FINE, "Skip polling until cache is initialized");
+          return;
+        }
+        ns = ncs.createNotesSession();
+        NotesDatabase cdb = ns.getDatabase(ncs.getServer(), ncs.getDatabase());
+        long earliestPollTime =
+            poller.pollDatabases(ns, cdb, ncs.getMaxCrawlQDepth());
+        long now = System.currentTimeMillis();
+        nextPollTime = Math.min(earliestPollTime,
+            now + NCCONST.POLLER_MAX_INTERVAL);
+        LOGGER.log(Level.FINE, "Next database poll at {0}",
+            new Date(Math.max(nextPollTime, now)));
+
+        NotesView crawlQueue = cdb.getView(NCCONST.VIEWCRAWLQ);
+        int crawlQueueDepth =
+            ncs.getCrawlQueueDispatcher().getCrawlQueueDepth(crawlQueue);
+        crawlQueue.recycle();
+        ncs.getNotifier().wakeWorkers(crawlQueueDepth);
+      } catch (Exception e) {
+        LOGGER.log(Level.SEVERE, CLASS_NAME, e);
+      } finally {
+        if (ns != null) {
+          ncs.closeNotesSession(ns);
+        }
+        LOGGER.exiting(CLASS_NAME, METHOD);
+      }
+    }
+  }
+}
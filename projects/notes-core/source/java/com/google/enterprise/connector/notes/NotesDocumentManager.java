@@ -28,8 +28,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
@@ -61,6 +65,9 @@ class NotesDocumentManager {
       NotesDocumentManager.class.getName();
   private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
 
+  /** The maximum number of documents in a single readers query. */
+  private static final int MAX_READERS_QUERY_KEYS = 500;
+
   private final NotesConnectorSession ncSession;
   private final JdbcDatabase jdbcDatabase;
   private final DatabaseConnectionPool connectionPool;
@@ -131,7 +138,9 @@ class NotesDocumentManager {
     attachmentsDDL.append("id long auto_increment primary key, ");
     attachmentsDDL.append("attachment_unid varchar(");
     attachmentsDDL.append(NCCONST.COLUMN_SIZE_UNID);
-    attachmentsDDL.append(") not null, ").append("docid long not null");
+    attachmentsDDL.append(") not null, ").append("fingerprint varchar(");
+    attachmentsDDL.append(NCCONST.COLUMN_SIZE_FINGERPRINT).append("), ");
+    attachmentsDDL.append("docid long not null");
     attachmentsDDL.append(", foreign key(docid) references ");
     attachmentsDDL.append(indexedTableName).append("(docid))");
 
@@ -141,14 +150,19 @@ class NotesDocumentManager {
       alterDdl.append("alter table ").append(attachmentsTableName);
       alterDdl.append(" alter column attachment_unid varchar(");
       alterDdl.append(NCCONST.COLUMN_SIZE_UNID).append(") selectivity 100");
+      StringBuilder fingerprintDdl = new StringBuilder();
+      fingerprintDdl.append("alter table ").append(attachmentsTableName);
+      fingerprintDdl.append(" add column if not exists fingerprint varchar(");
+      fingerprintDdl.append(NCCONST.COLUMN_SIZE_FINGERPRINT).append(")");
       Connection conn = null;
       try {
         conn = getDatabaseConnection();
-        Util.executeStatements(conn, true, alterDdl.toString());
-        LOGGER.fine("Alter attachment_unid column in table "
+        Util.executeStatements(conn, true, alterDdl.toString(),
+            fingerprintDdl.toString());
+        LOGGER.fine("Alter attachment_unid and fingerprint columns in table "
             + attachmentsTableName);
       } catch (SQLException e) {
-        throw new RepositoryException("Failed to alter attachment_unid column"
+        throw new RepositoryException("Failed to alter attachment columns"
             + " in table " + attachmentsTableName, e);
       } finally {
         releaseDatabaseConnection(conn);
@@ -290,19 +304,27 @@ class NotesDocumentManager {
         pstmt.executeBatch();
         pstmt.close();
 
-        // Insert attachment names
+        // Insert attachment names and fingerprints
         NotesItem itemAttachmentIds =
             docIndexed.getFirstItem(NCCONST.ITM_GMETAATTACHMENTDOCIDS);
         if (itemAttachmentIds != null) {
           Vector attachmentIds = itemAttachmentIds.getValues();
           if (attachmentIds != null && attachmentIds.size() > 0) {
+            Vector fingerprints = docIndexed.getItemValue(
+                NCCONST.NCITM_ATTACHMENTFINGERPRINTS);
             pstmt = connection.prepareStatement(
                 "insert into " + attachmentsTableName
-                + "(attachment_unid, docid) values(?,?)");
+                + "(attachment_unid, fingerprint, docid) values(?,?,?)");
             for (int i = 0; i < attachmentIds.size(); i++) {
               String attachmentId = (String) attachmentIds.get(i);
+              String fingerprint = null;
+              if (i < fingerprints.size()) {
+                fingerprint = Strings.emptyToNull(
+                    fingerprints.get(i).toString());
+              }
               pstmt.setString(1, attachmentId);
-              pstmt.setLong(2, docid);
+              pstmt.setString(2, fingerprint);
+              pstmt.setLong(3, docid);
               pstmt.addBatch();
               LOGGER.log(Level.FINEST, "Insert attachment: {0}", attachmentId);
             }
@@ -336,7 +358,14 @@ class NotesDocumentManager {
    * The method queries the Indexed table and return a map of document unique id
    * and entries.  The first record is the startUnid if it is
    * existed within the database.
+   *
+   * The query is a keyset seek on the (unid, replicaid) index, so the
+   * cost of a batch does not depend on its position in the table.  When
+   * there are no records after the start key, the collection wraps
+   * around to the first record.
+   *
    * @param startUnid
+   * @param replicaId
    * @param batchSize
    * @return Map<unid,replicaid>
    */
@@ -350,58 +379,22 @@ class NotesDocumentManager {
     Connection conn = null;
     try {
       conn = getDatabaseConnection();
-      //Check startUnid
-      boolean isExisted = false;
       if (!Strings.isNullOrEmpty(startUnid)) {
-        isExisted = hasIndexedDocument(startUnid, replicaId, conn);
-        LOGGER.log(Level.FINE, "Start unique ID#{0} is found", startUnid);
-      }
-      PreparedStatement pstmt = conn.prepareStatement(
-          "select unid, replicaid, server, host, protocol from "
-          + indexedTableName + " order by unid",
-          ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-      ResultSet rs = pstmt.executeQuery();
-      if (isExisted) {
-        //Scroll to the startUnid
-        boolean isFound = false;
-        while (rs.next()) {
-          String unid = rs.getString(1);
-          if (unid.equalsIgnoreCase(startUnid)) {
-            isFound = true;
-            break;
-          }
-        }
-        if (isFound) {
-          if (rs.isLast()) {
-            rs.beforeFirst();
-            LOGGER.log(Level.FINE, "Doc ID#{0}"
-                + " is at the end of collection; reset to first record", startUnid);
-          } else {
-            rs.previous();
-            LOGGER.log(Level.FINE,
-                "Collection started with {0} document ID", startUnid);
-          }
+        boolean isWrapped = getIndexedDocuments(conn, startUnid,
+            Strings.nullToEmpty(replicaId), batchSize, indexedDocEntries);
+        if (isWrapped) {
+          LOGGER.log(Level.FINE, "Doc ID#{0}"
+              + " is at the end of collection; reset to first record",
+              startUnid);
+          indexedDocEntries.clear();
         } else {
           LOGGER.log(Level.FINE,
-              "Document unique id was not found in {0} table",
-              indexedTableName);
-          rs.beforeFirst();
+              "Collection started with {0} document ID", startUnid);
         }
       }
-      int count = 0;
-      while (rs.next() && count < batchSize) {
-        NotesDocId notesId = new NotesDocId();
-        String unid = rs.getString(1);
-        notesId.setDocId(rs.getString(1));
-        notesId.setReplicaId(rs.getString(2));
-        notesId.setServer(rs.getString(3));
-        notesId.setHost(rs.getString(4));
-        notesId.setProtocol(rs.getString(5));
-        indexedDocEntries.put(unid, notesId);
-        count++;
+      if (indexedDocEntries.isEmpty()) {
+        getIndexedDocuments(conn, null, null, batchSize, indexedDocEntries);
       }
-      rs.close();
-      pstmt.close();
     } catch (SQLException e) {
       throw new RepositoryException(
           "Failed to query " + indexedTableName + "table", e);
@@ -414,6 +407,71 @@ class NotesDocumentManager {
     return indexedDocEntries;
   }
 
+  /**
+   * Reads up to batchSize records ordered by (unid, replicaid), starting
+   * at the given key inclusive, or at the first record if startUnid is
+   * null.  Returns true if there is nothing after the start key and the
+   * caller should wrap around to the first record.
+   */
+  private boolean getIndexedDocuments(Connection conn, String startUnid,
+      String replicaId, int batchSize, Map<String, NotesDocId> docEntries)
+      throws SQLException {
+    StringBuilder sql = new StringBuilder();
+    sql.append("select unid, replicaid, server, host, protocol from ");
+    sql.append(indexedTableName);
+    if (startUnid != null) {
+      // Equivalent to (unid, replicaid) >= (?, ?), spelled out so that
+      // the index on (unid, replicaid) is used for the seek.
+      sql.append(" where unid >= ? and (unid > ? or replicaid >= ?)");
+    }
+    sql.append(" order by unid, replicaid limit ?");
+
+    // Read at least two rows so that a start key at the end of the
+    // collection can be told apart from a batch of one.
+    int limit = Math.max(batchSize, 2);
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    try {
+      pstmt = conn.prepareStatement(sql.toString());
+      int index = 1;
+      if (startUnid != null) {
+        pstmt.setString(index++, startUnid);
+        pstmt.setString(index++, startUnid);
+        pstmt.setString(index++, replicaId);
+      }
+      pstmt.setInt(index, limit);
+      rs = pstmt.executeQuery();
+      int count = 0;
+      boolean isStartFound = false;
+      while (rs.next()) {
+        String unid = rs.getString(1);
+        if (count == 0 && startUnid != null) {
+          isStartFound = unid.equalsIgnoreCase(startUnid)
+              && rs.getString(2).equalsIgnoreCase(replicaId);
+        }
+        count++;
+        if (docEntries.size() < batchSize) {
+          NotesDocId notesId = new NotesDocId();
+          notesId.setDocId(unid);
+          notesId.setReplicaId(rs.getString(2));
+          notesId.setServer(rs.getString(3));
+          notesId.setHost(rs.getString(4));
+          notesId.setProtocol(rs.getString(5));
+          docEntries.put(unid, notesId);
+        }
+      }
+      if (startUnid != null && !isStartFound) {
+        LOGGER.log(Level.FINE,
+            "Document unique id was not found in {0} table",
+            indexedTableName);
+      }
+      return startUnid != null && (count == 0 || (count == 1 && isStartFound));
+    } finally {
+      Util.close(rs);
+      Util.close(pstmt);
+    }
+  }
+
   Set<String> getDocumentReaders(String unid, String replicaid)
       throws RepositoryException {
     final String METHOD = "getDocumentReaders";
@@ -450,6 +508,133 @@ class NotesDocumentManager {
     return readers;
   }
 
+  /**
+   * Looks up the readers of a batch of documents using a single
+   * connection. The documents are grouped by replica ID.
+   *
+   * @param unidsByReplicaId map of replica ID to the set of document
+   *     unique IDs
+   * @return map of replica ID to a map of document unique ID to
+   *     readers; documents without readers are not included
+   */
+  Map<String, Map<String, Set<String>>> getDocumentReaders(
+      Map<String, ? extends Set<String>> unidsByReplicaId)
+      throws RepositoryException {
+    final String METHOD = "getDocumentReaders";
+    LOGGER.entering(CLASS_NAME, METHOD);
+
+    // Flatten the (replicaid, unid) keys so that they can be looked
+    // up in chunks of a bounded number of query parameters.
+    List<String[]> keys = new ArrayList<String[]>();
+    for (Map.Entry<String, ? extends Set<String>> entry
+        : unidsByReplicaId.entrySet()) {
+      for (String unid : entry.getValue()) {
+        keys.add(new String[] { entry.getKey(), unid });
+      }
+    }
+
+    Map<String, Map<String, Set<String>>> readers =
+        new HashMap<String, Map<String, Set<String>>>();
+    Connection conn = null;
+    try {
+      conn = getDatabaseConnection();
+      for (int start = 0; start < keys.size();
+           start += MAX_READERS_QUERY_KEYS) {
+        getDocumentReaders(conn, unidsByReplicaId, keys.subList(start,
+            Math.min(start + MAX_READERS_QUERY_KEYS, keys.size())), readers);
+      }
+    } catch (SQLException e) {
+      throw new RepositoryException("Failed to lookup readers for "
+          + keys.size() + " documents", e);
+    } finally {
+      if (conn != null) {
+        releaseDatabaseConnection(conn);
+      }
+    }
+    LOGGER.log(Level.FINE, "Found readers for {0} of {1} documents",
+        new Object[] { countDocuments(readers), keys.size() });
+    LOGGER.exiting(CLASS_NAME, METHOD);
+    return readers;
+  }
+
+  /**
+   * Queries the readers for one chunk of (replicaid, unid) keys. The
+   * query matches the cross product of the replica IDs and unique IDs
+   * in the chunk, using the (unid, replicaid) index, and rows that were
+   * not requested are dropped.
+   */
+  private void getDocumentReaders(Connection conn,
+      Map<String, ? extends Set<String>> unidsByReplicaId,
+      List<String[]> keys, Map<String, Map<String, Set<String>>> readers)
+      throws SQLException {
+    Set<String> replicaIds = new LinkedHashSet<String>();
+    Set<String> unids = new LinkedHashSet<String>();
+    for (String[] key : keys) {
+      replicaIds.add(key[0]);
+      unids.add(key[1]);
+    }
+
+    StringBuilder sql = new StringBuilder();
+    sql.append("select i.replicaid, i.unid, r.reader from ");
+    sql.append(readersTableName).append(" r, ").append(indexedTableName);
+    sql.append(" i where r.docid = i.docid and i.unid in (");
+    appendParameters(sql, unids.size());
+    sql.append(") and i.replicaid in (");
+    appendParameters(sql, replicaIds.size());
+    sql.append(")");
+
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    try {
+      pstmt = conn.prepareStatement(sql.toString());
+      int index = 1;
+      for (String unid : unids) {
+        pstmt.setString(index++, unid);
+      }
+      for (String replicaId : replicaIds) {
+        pstmt.setString(index++, replicaId);
+      }
+      rs = pstmt.executeQuery();
+      while (rs.next()) {
+        String replicaId = rs.getString(1);
+        String unid = rs.getString(2);
+        Set<String> requested = unidsByReplicaId.get(replicaId);
+        if (requested == null || !requested.contains(unid)) {
+          continue;
+        }
+        Map<String, Set<String>> docReaders = readers.get(replicaId);
+        if (docReaders == null) {
+          docReaders = new HashMap<String, Set<String>>();
+          readers.put(replicaId, docReaders);
+        }
+        Set<String> readerSet = docReaders.get(unid);
+        if (readerSet == null) {
+          readerSet = new HashSet<String>();
+          docReaders.put(unid, readerSet);
+        }
+        readerSet.add(rs.getString(3));
+      }
+    } finally {
+      Util.close(rs);
+      Util.close(pstmt);
+    }
+  }
+
+  private static void appendParameters(StringBuilder sql, int count) {
+    for (int i = 0; i < count; i++) {
+      sql.append(i == 0 ? "?" : ", ?");
+    }
+  }
+
+  private static int countDocuments(
+      Map<String, Map<String, Set<String>>> map) {
+    int count = 0;
+    for (Map<String, Set<String>> docs : map.values()) {
+      count += docs.size();
+    }
+    return count;
+  }
+
   boolean hasIndexedDocument(String unid, String replicaid, Connection conn)
       throws RepositoryException {
     final String METHOD = "hasIndexedDocument";
@@ -480,11 +665,22 @@ class NotesDocumentManager {
   }
 
   Set<String> getAttachmentIds(Connection conn, String unid, String replicaid) {
+    return new HashSet<String>(
+        getAttachmentFingerprints(conn, unid, replicaid).keySet());
+  }
+
+  /**
+   * Gets the attachments of a document, mapping the hashes of the
+   * attachment names to their fingerprints. The fingerprint is null
+   * if it was not recorded when the document was indexed.
+   */
+  Map<String, String> getAttachmentFingerprints(Connection conn, String unid,
+      String replicaid) {
     LOGGER.log(Level.FINE,
         "Get attachment names for document [UNID: {0}, REPLICAID: {1}]",
         new Object[] {unid, replicaid});
 
-    Set<String> attachmentNames = new HashSet<String>();
+    Map<String, String> attachmentNames = new HashMap<String, String>();
     if (conn == null) {
       LOGGER.log(Level.WARNING,
           "Failed to lookup attachment names.  Database connection is null");
@@ -493,14 +689,14 @@ class NotesDocumentManager {
 
     try {
       PreparedStatement pstmt = conn.prepareStatement(
-          "select attachment_unid from " + attachmentsTableName
+          "select attachment_unid, fingerprint from " + attachmentsTableName
           + " where docid in (select docid from " + indexedTableName
           + " where unid = ? and replicaid = ?)");
       pstmt.setString(1, unid);
       pstmt.setString(2, replicaid);
       ResultSet rs = pstmt.executeQuery();
       while (rs.next()) {
-        attachmentNames.add(rs.getString(1));
+        attachmentNames.put(rs.getString(1), rs.getString(2));
       }
       rs.close();
       pstmt.close();
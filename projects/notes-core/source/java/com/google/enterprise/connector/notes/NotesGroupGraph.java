@@ -0,0 +1,308 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The group membership graph of the directory. Each group is a node
+ * identified by an int index, and the edges point from a group to
+ * the groups that are its members. The nested groups of every group
+ * are computed in one pass using Tarjan's strongly connected
+ * components algorithm, so groups that are members of each other
+ * are handled without repeated lookups.
+ *
+ * Group names are expected to be lower case.
+ */
+class NotesGroupGraph {
+  private static final int[] NO_NODES = new int[0];
+
+  private final Map<String, Integer> nodesByName =
+      new HashMap<String, Integer>();
+  private final Map<String, Integer> nodesByUnid =
+      new HashMap<String, Integer>();
+  private final List<String> names = new ArrayList<String>();
+  private final List<String> unids = new ArrayList<String>();
+  private int[][] children = new int[16][];
+  private int[] childCounts = new int[16];
+  private long[] groupIds = new long[16];
+
+  private int[][] descendants = null;
+  private int[][] ancestors = null;
+
+  /** Gets the number of groups in the graph. */
+  int size() {
+    return names.size();
+  }
+
+  /**
+   * Adds a group to the graph, or gets the existing group with the
+   * given name.
+   *
+   * @return the index of the group
+   */
+  int addGroup(String groupName) {
+    Integer node = nodesByName.get(groupName);
+    if (node != null) {
+      return node;
+    }
+    int index = names.size();
+    if (index == childCounts.length) {
+      int capacity = index * 2;
+      children = Arrays.copyOf(children, capacity);
+      childCounts = Arrays.copyOf(childCounts, capacity);
+      groupIds = Arrays.copyOf(groupIds, capacity);
+    }
+    names.add(groupName);
+    unids.add(null);
+    children[index] = NO_NODES;
+    groupIds[index] = -1L;
+    nodesByName.put(groupName, index);
+    descendants = null;
+    ancestors = null;
+    return index;
+  }
+
+  /**
+   * Adds a group that was read from the given directory document.
+   *
+   * @return the index of the group
+   */
+  int addGroup(String groupName, String unid) {
+    int node = addGroup(groupName);
+    nodesByUnid.put(unid, node);
+    unids.set(node, unid);
+    return node;
+  }
+
+  /** Adds a group as a member of another group. */
+  void addMember(int parent, int child) {
+    int count = childCounts[parent];
+    if (count == children[parent].length) {
+      children[parent] = Arrays.copyOf(children[parent],
+          Math.max(4, count * 2));
+    }
+    children[parent][count] = child;
+    childCounts[parent] = count + 1;
+    descendants = null;
+    ancestors = null;
+  }
+
+  /** Gets the index of the named group, or -1 if it is not in the graph. */
+  int getNode(String groupName) {
+    Integer node = nodesByName.get(groupName);
+    return (node == null) ? -1 : node;
+  }
+
+  /**
+   * Gets the index of the group read from the given directory
+   * document, or -1 if it is not in the graph.
+   */
+  int getNodeByUnid(String unid) {
+    Integer node = nodesByUnid.get(unid);
+    return (node == null) ? -1 : node;
+  }
+
+  /** Gets the UNIDs of the groups that were read from documents. */
+  Collection<String> getGroupUnids() {
+    return Collections.unmodifiableCollection(nodesByUnid.keySet());
+  }
+
+  String getName(int node) {
+    return names.get(node);
+  }
+
+  /**
+   * Gets the UNID of the directory document of the group, or null
+   * if the group was not read from a document.
+   */
+  String getUnid(int node) {
+    return unids.get(node);
+  }
+
+  /** Gets the cached group id, or -1 if it has not been set. */
+  long getGroupId(int node) {
+    return groupIds[node];
+  }
+
+  void setGroupId(int node, long groupId) {
+    groupIds[node] = groupId;
+  }
+
+  /**
+   * Gets the groups nested in the given group through one or more
+   * levels of membership. A group that is a member of itself, directly
+   * or through other groups, is included.
+   */
+  int[] getDescendants(int node) {
+    if (descendants == null) {
+      computeDescendants();
+    }
+    return descendants[node];
+  }
+
+  /**
+   * Gets the groups that contain the given group through one or more
+   * levels of membership.
+   */
+  int[] getAncestors(int node) {
+    if (ancestors == null) {
+      computeAncestors();
+    }
+    return ancestors[node];
+  }
+
+  /*
+   * Finds the strongly connected components with an iterative
+   * version of Tarjan's algorithm. Each component is completed after
+   * every component reachable from it, so the descendants of a
+   * component are the union of its members' children and their
+   * components' descendants.
+   */
+  private void computeDescendants() {
+    int n = size();
+    int[][] result = new int[n][];
+    int[] index = new int[n];
+    int[] lowlink = new int[n];
+    int[] component = new int[n];
+    boolean[] onStack = new boolean[n];
+    int[] stack = new int[n];
+    int[] callNodes = new int[n];
+    int[] callEdges = new int[n];
+    int[] marks = new int[n];
+    int[] members = new int[n];
+    Arrays.fill(index, -1);
+    Arrays.fill(marks, -1);
+    int nextIndex = 0;
+    int stackSize = 0;
+    int componentCount = 0;
+    int[] buffer = new int[16];
+
+    for (int root = 0; root < n; root++) {
+      if (index[root] != -1) {
+        continue;
+      }
+      int callDepth = 0;
+      callNodes[callDepth] = root;
+      callEdges[callDepth++] = 0;
+      index[root] = lowlink[root] = nextIndex++;
+      stack[stackSize++] = root;
+      onStack[root] = true;
+
+      while (callDepth > 0) {
+        int v = callNodes[callDepth - 1];
+        int edge = callEdges[callDepth - 1];
+        if (edge < childCounts[v]) {
+          callEdges[callDepth - 1]++;
+          int w = children[v][edge];
+          if (index[w] == -1) {
+            index[w] = lowlink[w] = nextIndex++;
+            stack[stackSize++] = w;
+            onStack[w] = true;
+            callNodes[callDepth] = w;
+            callEdges[callDepth++] = 0;
+          } else if (onStack[w]) {
+            lowlink[v] = Math.min(lowlink[v], index[w]);
+          }
+          continue;
+        }
+        callDepth--;
+        if (callDepth > 0) {
+          int u = callNodes[callDepth - 1];
+          lowlink[u] = Math.min(lowlink[u], lowlink[v]);
+        }
+        if (lowlink[v] != index[v]) {
+          continue;
+        }
+
+        // v is the root of a component; pop its members.
+        int c = componentCount++;
+        int memberCount = 0;
+        int w;
+        do {
+          w = stack[--stackSize];
+          onStack[w] = false;
+          component[w] = c;
+          members[memberCount++] = w;
+        } while (w != v);
+
+        // The children of every member are completed components or
+        // members of this component.
+        int size = 0;
+        for (int i = 0; i < memberCount; i++) {
+          int m = members[i];
+          for (int e = 0; e < childCounts[m]; e++) {
+            int child = children[m][e];
+            if (marks[child] != c) {
+              marks[child] = c;
+              if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, size * 2);
+              }
+              buffer[size++] = child;
+            }
+          }
+        }
+        int direct = size;
+        for (int i = 0; i < direct; i++) {
+          int child = buffer[i];
+          if (component[child] == c) {
+            continue;
+          }
+          for (int d : result[child]) {
+            if (marks[d] != c) {
+              marks[d] = c;
+              if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, size * 2);
+              }
+              buffer[size++] = d;
+            }
+          }
+        }
+        int[] closure = Arrays.copyOf(buffer, size);
+        for (int i = 0; i < memberCount; i++) {
+          result[members[i]] = closure;
+        }
+      }
+    }
+    descendants = result;
+  }
+
+  private void computeAncestors() {
+    int n = size();
+    int[] counts = new int[n];
+    for (int node = 0; node < n; node++) {
+      for (int d : getDescendants(node)) {
+        counts[d]++;
+      }
+    }
+    int[][] result = new int[n][];
+    for (int node = 0; node < n; node++) {
+      result[node] = (counts[node] == 0) ? NO_NODES : new int[counts[node]];
+      counts[node] = 0;
+    }
+    for (int node = 0; node < n; node++) {
+      for (int d : descendants[node]) {
+        result[d][counts[d]++] = node;
+      }
+    }
+    ancestors = result;
+  }
+}
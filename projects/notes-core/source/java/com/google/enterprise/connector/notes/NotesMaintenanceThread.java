@@ -80,7 +80,7 @@ class NotesMaintenanceThread extends Thread {
         lastdocid = checkForDeletions(lastdocid, batchsize);
         LOGGER.log(Level.FINE,
             "Maintenance thread sleeping after checking for deletions.");
-        npn.waitForWork();
+        npn.waitForMaintenance(nc.getMaintenanceInterval());
         LOGGER.log(Level.FINE,
             "Maintenance thread resuming to check for deletions.");
       } catch (Exception e) {
@@ -92,7 +92,7 @@ class NotesMaintenanceThread extends Thread {
         if (exceptionCount > 5) {
           LOGGER.log(Level.WARNING,
               "Too many exceptions. Maintenance thread sleeping.");
-          npn.waitForWork();
+          npn.waitForMaintenance(nc.getMaintenanceInterval());
           LOGGER.log(Level.WARNING,
               "Maintenance thread resuming after too many exceptions "
               + "were encountered.");
@@ -129,7 +129,8 @@ class NotesMaintenanceThread extends Thread {
           databaseView.getEntryCount());
 
       NotesDocumentManager docMgr = ncs.getNotesDocumentManager();
-      handler = new DeletionHandler(docMgr, ns, cdb, databaseView);
+      handler = new DeletionHandler(docMgr, ns, cdb, databaseView,
+          ncs.getTemplateCache());
       Map<String, NotesDocId> indexedDocuments;
       if (Strings.isNullOrEmpty(startdocid)) {
         indexedDocuments = docMgr.getIndexedDocuments(null, null, batchsize);
@@ -179,24 +180,31 @@ class NotesMaintenanceThread extends Thread {
     private final NotesSession ns;
     private final NotesDatabase cdb;
     private final NotesView databaseView;
+    private final NotesTemplateCache templateCache;
 
     private NotesDocument dbConfigDoc = null;
     private String dbConfigDocRepId = "";
+    private final NotesDatabaseCache srcDbCache;
     private NotesDatabase srcDb = null;
-    private String openDbRepId = "";
-    private NotesDocument templateDoc = null;
+    private NotesTemplateConfig.Template template = null;
     private NotesDocument sourceDocument = null;
 
     public DeletionHandler(NotesDocumentManager docMgr, NotesSession ns,
-        NotesDatabase cdb, NotesView databaseView) {
+        NotesDatabase cdb, NotesView databaseView,
+        NotesTemplateCache templateCache) {
       this.docMgr = docMgr;
       this.ns = ns;
       this.cdb = cdb;
       this.databaseView = databaseView;
+      this.templateCache = templateCache;
+      this.srcDbCache = new NotesDatabaseCache(ns,
+          NCCONST.SOURCE_DATABASE_CACHE_SIZE);
     }
 
     public void recycleAll() {
-      Util.recycle(dbConfigDoc, srcDb, templateDoc, sourceDocument);
+      Util.recycle(dbConfigDoc, sourceDocument);
+      srcDbCache.recycle();
+      srcDb = null;
     }
 
     public void checkForDeletion(String unid, NotesDocId notesId)
@@ -267,8 +275,8 @@ class NotesMaintenanceThread extends Thread {
 
       String templateName =
           dbConfigDoc.getItemValueString(NCCONST.DITM_TEMPLATE);
-      loadTemplateDoc(templateName);
-      if (templateDoc == null) {
+      loadTemplate(templateName);
+      if (template == null) {
         // The tests check this, so avoid MessageFormat-style.
         LOGGER.log(Level.SEVERE, "Skipping selection criteria check "
             + "because template could not be opened: " + notesId
@@ -290,50 +298,17 @@ class NotesMaintenanceThread extends Thread {
         throws RepositoryException {
       final String METHOD = "openSourceDatabase";
       LOGGER.entering(CLASS_NAME, METHOD);
-      if (openDbRepId.contentEquals(notesId.getReplicaId())) {
-        return true;
-      }
-      //Different replicaId - Recycle and close the old database
-      if (srcDb != null) {
-        srcDb.recycle();
-        srcDb = null;
-        openDbRepId = "";
-      }
-      // Open the new database
-      srcDb = ns.getDatabase(null, null);
-      boolean isSrcDbOpen = srcDb.openByReplicaID(notesId.getServer(),
-          notesId.getReplicaId());
-      if (isSrcDbOpen) {
-        openDbRepId = notesId.getReplicaId();
-      }
+      srcDb = srcDbCache.get(notesId.getServer(), notesId.getReplicaId());
       LOGGER.exiting(CLASS_NAME, METHOD);
-      return isSrcDbOpen;
+      return srcDb != null;
     }
 
-    protected void loadTemplateDoc(String templateName)
+    protected void loadTemplate(String templateName)
         throws RepositoryException {
-      final String METHOD = "loadTemplateDoc";
+      final String METHOD = "loadTemplate";
       LOGGER.entering(CLASS_NAME, METHOD);
       LOGGER.log(Level.FINEST, "Loading template: {0}", templateName);
-      // Is a template document all ready loaded?
-      if (templateDoc != null) {
-        // Is this the one we need?
-        String existingTemplate = templateDoc.getItemValueString(
-            NCCONST.TITM_TEMPLATENAME);
-        LOGGER.log(Level.FINEST, "Existing template is: {0}", templateName);
-        if (templateName.equals(existingTemplate)) {
-          return;
-        }
-        templateDoc.recycle();
-        templateDoc = null;
-      }
-      NotesView vw = cdb.getView(NCCONST.VIEWTEMPLATES);
-      templateDoc = vw.getDocumentByKey(templateName, true);
-      vw.recycle();
-      if (templateDoc != null) {
-        LOGGER.log(Level.FINEST, "Loaded template: {0}",
-            templateDoc.getItemValueString(NCCONST.TITM_TEMPLATENAME));
-      }
+      template = templateCache.get(cdb).getTemplate(templateName);
       LOGGER.exiting(CLASS_NAME, METHOD);
     }
 
@@ -360,8 +335,7 @@ class NotesMaintenanceThread extends Thread {
       final String METHOD = "checkSelectionCriteria";
       LOGGER.entering(CLASS_NAME, METHOD);
 
-      String selectionFormula = templateDoc.getItemValueString(
-          NCCONST.TITM_SEARCHSTRING);
+      String selectionFormula = template.getSearchString();
       // The tests check this, so avoid MessageFormat-style.
       LOGGER.log(Level.FINEST, "Using selection formula: " + selectionFormula);
 
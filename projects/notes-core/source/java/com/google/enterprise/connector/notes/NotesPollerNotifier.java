@@ -14,52 +14,162 @@
 
 package com.google.enterprise.connector.notes;
 
+import com.google.common.annotations.VisibleForTesting;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Signals the crawler threads and the maintenance thread.
+ *
+ * Crawler threads are woken with permits, one per crawl request up
+ * to the number of crawler threads, so that a small crawl queue does
+ * not wake every crawler thread. The maintenance thread waits on its
+ * own schedule and is only woken early when the connector shuts down.
+ */
 class NotesPollerNotifier {
   private static final String CLASS_NAME = NotesPollerNotifier.class.getName();
   private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
   private final NotesConnector nc;
+  private final Object maintenanceLock = new Object();
+  private final Object fetchedLock = new Object();
   private int numThreads = 1;
+  private int permits = 0;
+  private long fetchedCount = 0;
 
   public NotesPollerNotifier(NotesConnector connector) {
     nc = connector;
   }
 
   /**
-   * Wrapper around java.lang.Object wait().
+   * Waits until a permit is available and takes it. Returns
+   * immediately if the connector is shutting down.
    */
   synchronized void waitForWork() {
     try {
-      // If we are shutting down, don't wait
-      if (nc.getShutdown()) {
-        LOGGER.log(Level.INFO, "Connector is shutting down.");
-        return;
+      while (permits == 0) {
+        // If we are shutting down, don't wait
+        if (nc.getShutdown()) {
+          LOGGER.log(Level.INFO, "Connector is shutting down.");
+          return;
+        }
+        LOGGER.log(Level.FINE, "Thread waiting.");
+        wait();
       }
-      LOGGER.log(Level.FINE, "Thread waiting.");
-      wait();
+      permits--;
       LOGGER.log(Level.FINE, "Thread resuming.");
     } catch (InterruptedException e) {
       LOGGER.log(Level.SEVERE, CLASS_NAME, e);
     }
   }
 
+  /**
+   * Sets the number of crawler threads, which limits the number of
+   * outstanding permits.
+   */
   synchronized void setNumThreads(int i) {
     numThreads = i;
   }
 
   /**
-   * Calls java.lang.Object.notifyAll() numThreads times (once
-   * per crawler thread, plus once for the maintenance thread
-   * (see NotesConnector where numThreads is set)).
+   * Wakes up to {@code count} crawler threads. Permits that are
+   * already outstanding count towards the number of woken threads.
+   *
+   * @param count the amount of available work, typically the number
+   *     of documents in the crawl queue
    */
-  synchronized void wakeWorkers() {
-    LOGGER.log(Level.FINE, "Waking worker threads.");
-    for (int i = 0; i < numThreads; i++) {
-      notifyAll();
+  synchronized void wakeWorkers(int count) {
+    int wake = Math.min(count, numThreads - permits);
+    if (wake <= 0) {
+      return;
+    }
+    LOGGER.log(Level.FINE, "Waking {0} worker threads.", wake);
+    permits += wake;
+    for (int i = 0; i < wake; i++) {
+      notify();
+    }
+  }
+
+  /**
+   * Waits for the next scheduled maintenance run. Returns
+   * immediately if the connector is shutting down.
+   *
+   * @param timeout the maximum time to wait in milliseconds
+   */
+  void waitForMaintenance(long timeout) {
+    synchronized (maintenanceLock) {
+      if (nc.getShutdown()) {
+        LOGGER.log(Level.INFO, "Connector is shutting down.");
+        return;
+      }
+      try {
+        maintenanceLock.wait(timeout);
+      } catch (InterruptedException e) {
+        LOGGER.log(Level.SEVERE, CLASS_NAME, e);
+      }
+    }
+  }
+
+  /**
+   * Signals that a crawler thread has finished pre-fetching a
+   * document.
+   */
+  void documentFetched() {
+    synchronized (fetchedLock) {
+      fetchedCount++;
+      fetchedLock.notifyAll();
+    }
+  }
+
+  /** Gets the number of documents pre-fetched so far. */
+  long getFetchedCount() {
+    synchronized (fetchedLock) {
+      return fetchedCount;
     }
   }
-}
 
+  /**
+   * Waits until a document is pre-fetched after the given count was
+   * read, or the timeout expires.
+   *
+   * @param lastFetchedCount a value returned by {@link #getFetchedCount}
+   * @param timeout the maximum time to wait in milliseconds
+   */
+  void waitForFetched(long lastFetchedCount, long timeout) {
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (fetchedLock) {
+      try {
+        long remaining = timeout;
+        while (fetchedCount == lastFetchedCount && remaining > 0
+            && !nc.getShutdown()) {
+          fetchedLock.wait(remaining);
+          remaining = deadline - System.currentTimeMillis();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
 
+  /**
+   * Wakes all of the crawler threads and the maintenance thread, so
+   * that they notice the connector is shutting down.
+   */
+  void wakeAll() {
+    LOGGER.log(Level.FINE, "Waking all threads.");
+    synchronized (this) {
+      notifyAll();
+    }
+    synchronized (maintenanceLock) {
+      maintenanceLock.notifyAll();
+    }
+    synchronized (fetchedLock) {
+      fetchedLock.notifyAll();
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int getPermits() {
+    return permits;
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Monitors a sweep over the directory, which is processed in chunks
+ * of documents. After each chunk, the heap in use and the time taken
+ * by the chunk are logged. A sweep recycles every Notes object it
+ * creates, so the heap should stay flat from one chunk to the next
+ * without forcing a garbage collection.
+ */
+class NotesSweepMonitor {
+  private static final String CLASS_NAME = NotesSweepMonitor.class.getName();
+  private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  private final String sweepName;
+  private final int chunkSize;
+  private final long startTime;
+  private long chunkStartTime;
+  private int documentCount = 0;
+  private int chunkCount = 0;
+  private long maxUsedMemory = 0L;
+
+  /**
+   * @param sweepName the name of the sweep, used in log messages
+   * @param chunkSize the number of documents in each chunk
+   */
+  NotesSweepMonitor(String sweepName, int chunkSize) {
+    this.sweepName = sweepName;
+    this.chunkSize = chunkSize;
+    this.startTime = System.currentTimeMillis();
+    this.chunkStartTime = startTime;
+  }
+
+  /**
+   * Counts a processed document, and logs the heap in use and the
+   * elapsed time at the end of each chunk.
+   *
+   * @return true if the document completed a chunk
+   */
+  boolean processed() {
+    documentCount++;
+    if (documentCount % chunkSize != 0) {
+      return false;
+    }
+    chunkCount++;
+    long now = System.currentTimeMillis();
+    long usedMemory = getUsedMemory();
+    maxUsedMemory = Math.max(maxUsedMemory, usedMemory);
+    LOGGER.log(Level.FINE, "{0}: chunk {1} [{2} documents]: "
+        + "{3}ms, {4}kb heap used",
+        new Object[] { sweepName, chunkCount, documentCount,
+            now - chunkStartTime, usedMemory / 1024 });
+    chunkStartTime = now;
+    return true;
+  }
+
+  /** Logs the totals for the sweep. */
+  void finish() {
+    LOGGER.log(Level.FINE, "{0}: finished [{1} documents] in {2}ms, "
+        + "{3}kb max heap used",
+        new Object[] { sweepName, documentCount,
+            System.currentTimeMillis() - startTime,
+            Math.max(maxUsedMemory, getUsedMemory()) / 1024 });
+  }
+
+  int getDocumentCount() {
+    return documentCount;
+  }
+
+  int getChunkCount() {
+    return chunkCount;
+  }
+
+  /** Gets the largest heap in use at the end of a chunk, in bytes. */
+  long getMaxUsedMemory() {
+    return maxUsedMemory;
+  }
+
+  private static long getUsedMemory() {
+    Runtime rt = Runtime.getRuntime();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.notes.client.NotesDatabase;
+import com.google.enterprise.connector.notes.client.NotesDateTime;
+import com.google.enterprise.connector.notes.client.NotesDocument;
+import com.google.enterprise.connector.notes.client.NotesDocumentCollection;
+import com.google.enterprise.connector.notes.client.NotesView;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the current template configuration for all of the crawler
+ * and maintenance threads. At most once per refresh interval, the
+ * template documents are checked for changes, and a new version of
+ * the configuration is loaded only if they have changed.
+ */
+class NotesTemplateCache {
+  private static final String CLASS_NAME = NotesTemplateCache.class.getName();
+  private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  private final long refreshInterval;
+  private volatile NotesTemplateConfig config = null;
+  private volatile long lastChecked = 0;
+  private String stamp = null;
+
+  /**
+   * @param refreshInterval the minimum time in milliseconds between
+   * checks for changed template documents
+   */
+  NotesTemplateCache(long refreshInterval) {
+    this.refreshInterval = refreshInterval;
+  }
+
+  /**
+   * Gets the current template configuration, first reloading it
+   * if the refresh interval has passed and the template documents
+   * have changed.
+   *
+   * @param cdb the connector configuration database, opened by the
+   * calling thread's session
+   */
+  NotesTemplateConfig get(NotesDatabase cdb) throws RepositoryException {
+    NotesTemplateConfig current = config;
+    if (current == null
+        || currentTimeMillis() - lastChecked > refreshInterval) {
+      current = refresh(cdb);
+    }
+    return current;
+  }
+
+  /** Forces a check for changed template documents on the next get. */
+  void invalidate() {
+    lastChecked = 0;
+  }
+
+  private synchronized NotesTemplateConfig refresh(NotesDatabase cdb)
+      throws RepositoryException {
+    final String METHOD = "refresh";
+    LOGGER.entering(CLASS_NAME, METHOD);
+    // Another thread may have refreshed while we were waiting.
+    if (config != null
+        && currentTimeMillis() - lastChecked <= refreshInterval) {
+      LOGGER.exiting(CLASS_NAME, METHOD);
+      return config;
+    }
+    NotesView vw = null;
+    try {
+      vw = cdb.getView(NCCONST.VIEWTEMPLATES);
+      String newStamp = getStamp(vw);
+      if (config == null || !newStamp.equals(stamp)) {
+        long version = (config == null) ? 1 : config.getVersion() + 1;
+        config = NotesTemplateConfig.load(vw, version);
+        stamp = newStamp;
+        LOGGER.log(Level.FINE, "Loaded template configuration version {0}, "
+            + "{1} templates", new Object[] { version, config.size() });
+      }
+    } catch (RepositoryException e) {
+      if (config == null) {
+        throw e;
+      }
+      LOGGER.log(Level.WARNING, "Unable to check template configuration; "
+          + "using version " + config.getVersion(), e);
+    } finally {
+      Util.recycle(vw);
+      LOGGER.exiting(CLASS_NAME, METHOD);
+    }
+    lastChecked = currentTimeMillis();
+    return config;
+  }
+
+  /*
+   * Gets a string that changes whenever a template or form document
+   * is added, removed or modified, without reading their items.
+   */
+  private String getStamp(NotesView vw) throws RepositoryException {
+    StringBuilder buf = new StringBuilder();
+    NotesDocument templateDoc = vw.getFirstDocument();
+    while (null != templateDoc) {
+      appendStamp(buf, templateDoc);
+      NotesDocumentCollection formsdc = templateDoc.getResponses();
+      try {
+        NotesDocument formDoc = formsdc.getFirstDocument();
+        while (null != formDoc) {
+          buf.append(' ');
+          appendStamp(buf, formDoc);
+          NotesDocument prevDoc = formDoc;
+          formDoc = formsdc.getNextDocument(prevDoc);
+          prevDoc.recycle();
+        }
+      } finally {
+        Util.recycle(formsdc);
+      }
+      buf.append('\n');
+      NotesDocument prevDoc = templateDoc;
+      templateDoc = vw.getNextDocument(prevDoc);
+      prevDoc.recycle();
+    }
+    return buf.toString();
+  }
+
+  private void appendStamp(StringBuilder buf, NotesDocument doc)
+      throws RepositoryException {
+    buf.append(doc.getUniversalID()).append('@');
+    NotesDateTime lastModified = doc.getLastModified();
+    if (lastModified != null) {
+      buf.append(lastModified.toJavaDate().getTime());
+      Util.recycle(lastModified);
+    }
+  }
+
+  @VisibleForTesting
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+}
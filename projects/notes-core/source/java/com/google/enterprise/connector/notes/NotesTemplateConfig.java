@@ -0,0 +1,247 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import com.google.enterprise.connector.notes.NotesCrawlerThread.MetaField;
+import com.google.enterprise.connector.notes.client.NotesDocument;
+import com.google.enterprise.connector.notes.client.NotesDocumentCollection;
+import com.google.enterprise.connector.notes.client.NotesView;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An immutable snapshot of the template and form definitions in the
+ * connector configuration database. The snapshot holds no Notes
+ * objects, so it can be shared by all threads.
+ */
+class NotesTemplateConfig {
+  private static final String CLASS_NAME = NotesTemplateConfig.class.getName();
+  private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  /** The configuration of a template. */
+  static class Template {
+    private final String name;
+    private final String searchString;
+    private final String searchResultsFields;
+    private final String descriptionFields;
+    private final List<MetaField> metaFields;
+    private final Map<String, Form> forms;
+
+    Template(String name, String searchString, String searchResultsFields,
+        String descriptionFields, List<MetaField> metaFields,
+        Map<String, Form> forms) {
+      this.name = name;
+      this.searchString = searchString;
+      this.searchResultsFields = searchResultsFields;
+      this.descriptionFields = descriptionFields;
+      this.metaFields = Collections.unmodifiableList(
+          new ArrayList<MetaField>(metaFields));
+      this.forms = Collections.unmodifiableMap(
+          new HashMap<String, Form>(forms));
+    }
+
+    String getName() {
+      return name;
+    }
+
+    String getSearchString() {
+      return searchString;
+    }
+
+    String getSearchResultsFields() {
+      return searchResultsFields;
+    }
+
+    String getDescriptionFields() {
+      return descriptionFields;
+    }
+
+    List<MetaField> getMetaFields() {
+      return metaFields;
+    }
+
+    /**
+     * Gets the form configuration with the given alias.
+     *
+     * @return the form, or {@code null} if the form is not configured
+     */
+    Form getForm(String formName) {
+      return forms.get(formName);
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /** The configuration of a form within a template. */
+  static class Form {
+    private final String name;
+    private final String searchResultsFormula;
+    private final String descriptionFormula;
+    private final List<String> fieldsToIndex;
+
+    Form(String name, String searchResultsFormula, String descriptionFormula,
+        List<String> fieldsToIndex) {
+      this.name = name;
+      this.searchResultsFormula = searchResultsFormula;
+      this.descriptionFormula = descriptionFormula;
+      this.fieldsToIndex = Collections.unmodifiableList(
+          new ArrayList<String>(fieldsToIndex));
+    }
+
+    String getName() {
+      return name;
+    }
+
+    String getSearchResultsFormula() {
+      return searchResultsFormula;
+    }
+
+    String getDescriptionFormula() {
+      return descriptionFormula;
+    }
+
+    List<String> getFieldsToIndex() {
+      return fieldsToIndex;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private final long version;
+  private final Map<String, Template> templates;
+
+  NotesTemplateConfig(long version, Map<String, Template> templates) {
+    this.version = version;
+    this.templates = Collections.unmodifiableMap(
+        new HashMap<String, Template>(templates));
+  }
+
+  /** Gets the version, which is incremented each time it is reloaded. */
+  long getVersion() {
+    return version;
+  }
+
+  /**
+   * Gets the template with the given name. Like the templates view,
+   * the lookup is not case sensitive.
+   *
+   * @return the template, or {@code null} if there is no such template
+   */
+  Template getTemplate(String templateName) {
+    return templates.get(templateName.toLowerCase());
+  }
+
+  int size() {
+    return templates.size();
+  }
+
+  /**
+   * Reads all of the templates in the templates view.
+   *
+   * @param vw the templates view
+   * @param version the version of the new configuration
+   */
+  static NotesTemplateConfig load(NotesView vw, long version)
+      throws RepositoryException {
+    final String METHOD = "load";
+    LOGGER.entering(CLASS_NAME, METHOD);
+    try {
+      Map<String, Template> templates = new HashMap<String, Template>();
+      NotesDocument templateDoc = vw.getFirstDocument();
+      while (null != templateDoc) {
+        Template template = loadTemplate(templateDoc);
+        String key = template.getName().toLowerCase();
+        if (!templates.containsKey(key)) {
+          templates.put(key, template);
+        }
+        NotesDocument prevDoc = templateDoc;
+        templateDoc = vw.getNextDocument(prevDoc);
+        prevDoc.recycle();
+      }
+      return new NotesTemplateConfig(version, templates);
+    } finally {
+      LOGGER.exiting(CLASS_NAME, METHOD);
+    }
+  }
+
+  private static Template loadTemplate(NotesDocument templateDoc)
+      throws RepositoryException {
+    String templateName =
+        templateDoc.getItemValueString(NCCONST.TITM_TEMPLATENAME);
+
+    // Parse any configured MetaFields once per template load.
+    Vector<?> templateMetaFields =
+        templateDoc.getItemValue(NCCONST.TITM_METAFIELDS);
+    List<MetaField> metaFields =
+        new ArrayList<MetaField>(templateMetaFields.size());
+    for (Object o : templateMetaFields) {
+      metaFields.add(new MetaField((String) o));
+    }
+    if (LOGGER.isLoggable(Level.FINEST)) {
+      LOGGER.finest("template " + templateName + " MetaFields: '"
+          + templateMetaFields + "'; parsed MetaFields: " + metaFields);
+    }
+
+    Map<String, Form> forms = new HashMap<String, Form>();
+    NotesDocumentCollection formsdc = templateDoc.getResponses();
+    try {
+      NotesDocument formDoc = formsdc.getFirstDocument();
+      while (null != formDoc) {
+        String formName = formDoc.getItemValueString(NCCONST.FITM_LASTALIAS);
+        if (!forms.containsKey(formName)) {
+          forms.put(formName, loadForm(formName, formDoc));
+        }
+        NotesDocument prevDoc = formDoc;
+        formDoc = formsdc.getNextDocument(prevDoc);
+        prevDoc.recycle();
+      }
+    } finally {
+      Util.recycle(formsdc);
+    }
+
+    return new Template(templateName,
+        templateDoc.getItemValueString(NCCONST.TITM_SEARCHSTRING),
+        templateDoc.getItemValueString(NCCONST.TITM_SEARCHRESULTSFIELDS),
+        templateDoc.getItemValueString(NCCONST.TITM_DESCRIPTIONFIELDS),
+        metaFields, forms);
+  }
+
+  private static Form loadForm(String formName, NotesDocument formDoc)
+      throws RepositoryException {
+    Vector<?> v = formDoc.getItemValue(NCCONST.FITM_FIELDSTOINDEX);
+    List<String> fieldsToIndex = new ArrayList<String>(v.size());
+    for (Object o : v) {
+      fieldsToIndex.add(o.toString());
+    }
+    return new Form(formName,
+        formDoc.getItemValueString(NCCONST.FITM_SEARCHRESULTSFORMULA),
+        formDoc.getItemValueString(NCCONST.FITM_DESCRIPTIONFORMULA),
+        fieldsToIndex);
+  }
+}
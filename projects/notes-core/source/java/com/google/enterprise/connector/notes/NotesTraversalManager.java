@@ -20,14 +20,11 @@ import com.google.enterprise.connector.notes.client.NotesView;
 import com.google.enterprise.connector.notes.client.NotesViewEntry;
 import com.google.enterprise.connector.notes.client.NotesViewNavigator;
 import com.google.enterprise.connector.spi.DocumentList;
+import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.TraversalManager;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,12 +36,9 @@ public class NotesTraversalManager implements TraversalManager {
 
   private int batchHint = 10;
   private final NotesConnectorSession ncs;
-  private final Map<String, Date> lastCrawlCache;
 
   public NotesTraversalManager(NotesConnectorSession session) {
     ncs = session;
-    lastCrawlCache =
-        Collections.synchronizedMap(new HashMap<String, Date>());
   }
 
   @Override
@@ -55,8 +49,13 @@ public class NotesTraversalManager implements TraversalManager {
   @Override
   public DocumentList startTraversal() {
     // This will reset the start date on all connector
-    NotesDatabasePoller.resetDatabases(ncs);
-    lastCrawlCache.clear();
+    NotesDatabasePollerService pollerService =
+        ncs.getConnector().getPollerService();
+    if (pollerService != null) {
+      pollerService.resetDatabases();
+    } else {
+      NotesDatabasePoller.resetDatabases(ncs);
+    }
     return traverse("0");
   }
 
@@ -69,6 +68,12 @@ public class NotesTraversalManager implements TraversalManager {
    * Utility method to produce a {@code DocumentList} containing the next
    * batch of {@code Document} from the checkpoint.
    *
+   * The source databases are polled by the
+   * {@link NotesDatabasePollerService}, so this only reads the
+   * pre-fetched documents from the submit queue. If there are fewer
+   * than the batch hint and the crawler threads are still working,
+   * it waits for them for up to {@code NCCONST.TRAVERSAL_MAX_WAIT}.
+   *
    * @param checkpoint
    *            a String representing the last document number processed.
    */
@@ -88,36 +93,35 @@ public class NotesTraversalManager implements TraversalManager {
 
       ns = ncs.createNotesSession();
       NotesDatabase cdb = ns.getDatabase(ncs.getServer(), ncs.getDatabase());
-
-      // Poll for changes
-      // TODO:  Consider moving this to the housekeeping thread
-      // Since it takes two polling cycles to get documents into the GSA
-      // if the system is idle
-
-      NotesDatabasePoller dbpoller =
-          new NotesDatabasePoller(ncs, lastCrawlCache);
-      dbpoller.pollDatabases(ns, cdb, ncs.getMaxCrawlQDepth());
-      NotesPollerNotifier npn = ncs.getNotifier();
-      npn.wakeWorkers();
-
-      // Give the worker threads a chance to pre-fetch documents
-      Thread.sleep(2000);
-
-      // Get list of pre-fetched documents and put these in the doclist
+      NotesView crawlQ = cdb.getView(NCCONST.VIEWCRAWLQ);
       NotesView submitQ = cdb.getView(NCCONST.VIEWSUBMITQ);
-      NotesViewNavigator submitQNav = submitQ.createViewNav();
-      NotesViewEntry ve = submitQNav.getFirst();
-      int batchSize = 0;
-      while ((ve != null) && (batchSize < batchHint)) {
-        batchSize++;
-        String unid = ve.getColumnValues().elementAt(1).toString();
-        LOGGER.log(Level.FINEST, "Adding document to list: {0}", unid);
-        unidList.add(unid);
-        NotesViewEntry prevVe = ve;
-        ve = submitQNav.getNext(prevVe);
-        prevVe.recycle();
+      NotesPollerNotifier npn = ncs.getNotifier();
+      NotesCrawlerPool crawlerPool = ncs.getConnector().getCrawlerPool();
+      long deadline = System.currentTimeMillis() + NCCONST.TRAVERSAL_MAX_WAIT;
+      while (true) {
+        long fetchedCount = npn.getFetchedCount();
+        getSubmittedDocuments(submitQ, unidList);
+        if (unidList.size() >= batchHint) {
+          break;
+        }
+
+        // Wake only as many crawler threads as there are crawl requests.
+        int crawlQDepth =
+            ncs.getCrawlQueueDispatcher().getCrawlQueueDepth(crawlQ);
+        int activeCrawlers =
+            (crawlerPool == null) ? 0 : crawlerPool.getActiveCount();
+        LOGGER.log(Level.FINE, "Crawler pool: {0}", crawlerPool);
+        if (crawlQDepth == 0 && activeCrawlers == 0) {
+          break;
+        }
+        npn.wakeWorkers(crawlQDepth);
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          break;
+        }
+        npn.waitForFetched(fetchedCount, remaining);
       }
-      submitQNav.recycle();
+      crawlQ.recycle();
       submitQ.recycle();
     } catch (Exception e) {
       e.printStackTrace();
@@ -134,4 +138,26 @@ public class NotesTraversalManager implements TraversalManager {
     LOGGER.fine("Returning docs: " + unidList.size());
     return new NotesConnectorDocumentList(ncs, unidList);
   }
+
+  /*
+   * Replaces the contents of unidList with up to batchHint UNIDs of
+   * pre-fetched documents from the submit queue.
+   */
+  private void getSubmittedDocuments(NotesView submitQ, List<String> unidList)
+      throws RepositoryException {
+    unidList.clear();
+    submitQ.refresh();
+    NotesViewNavigator submitQNav = submitQ.createViewNav();
+    NotesViewEntry ve = submitQNav.getFirst();
+    while ((ve != null) && (unidList.size() < batchHint)) {
+      String unid = ve.getColumnValues().elementAt(1).toString();
+      LOGGER.log(Level.FINEST, "Adding document to list: {0}", unid);
+      unidList.add(unid);
+      NotesViewEntry prevVe = ve;
+      ve = submitQNav.getNext(prevVe);
+      prevVe.recycle();
+    }
+    Util.recycle(ve);
+    submitQNav.recycle();
+  }
 }
@@ -0,0 +1,143 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.notes.NotesUserGroupManager.User;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded cache of resolved users keyed by GSA name. Entries
+ * expire after a fixed time to live, and the whole cache is
+ * invalidated whenever the user, group, or role tables are updated.
+ */
+class NotesUserCache {
+  private static final String CLASS_NAME = NotesUserCache.class.getName();
+  private static final Logger LOGGER = Logger.getLogger(CLASS_NAME);
+
+  private static class CacheEntry {
+    final User user;
+    final long expiration;
+
+    CacheEntry(User user, long expiration) {
+      this.user = user;
+      this.expiration = expiration;
+    }
+  }
+
+  private final long timeToLive;
+  private final Map<String, CacheEntry> cache;
+  private long generation = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * @param maxSize the maximum number of cached users
+   * @param timeToLive the time to live of an entry in milliseconds
+   */
+  NotesUserCache(final int maxSize, long timeToLive) {
+    this.timeToLive = timeToLive;
+    this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, CacheEntry> eldest) {
+        if (size() > maxSize) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached user, or null if the user is not cached or
+   * the entry has expired.
+   */
+  synchronized User get(String gsaName) {
+    String key = gsaName.toLowerCase();
+    CacheEntry entry = cache.get(key);
+    if (entry != null) {
+      if (entry.expiration > currentTimeMillis()) {
+        hits++;
+        return entry.user;
+      }
+      cache.remove(key);
+      evictions++;
+    }
+    misses++;
+    return null;
+  }
+
+  /**
+   * Returns the current generation of the cache. The generation
+   * changes whenever the cache is invalidated.
+   */
+  synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Caches a user that was looked up while the cache was at the
+   * given generation. The user is not cached if the cache has been
+   * invalidated since then, because it may have been read from
+   * tables that were being updated.
+   */
+  synchronized void put(String gsaName, User user, long lookupGeneration) {
+    if (lookupGeneration != generation) {
+      return;
+    }
+    cache.put(gsaName.toLowerCase(),
+        new CacheEntry(user, currentTimeMillis() + timeToLive));
+  }
+
+  synchronized void invalidateAll() {
+    generation++;
+    LOGGER.log(Level.FINE, "Invalidating user cache: {0}", this);
+    cache.clear();
+  }
+
+  synchronized int size() {
+    return cache.size();
+  }
+
+  synchronized long getHitCount() {
+    return hits;
+  }
+
+  synchronized long getMissCount() {
+    return misses;
+  }
+
+  synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  @VisibleForTesting
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "size: " + cache.size() + ", hits: " + hits + ", misses: "
+        + misses + ", evictions: " + evictions;
+  }
+}
@@ -24,6 +24,7 @@ import com.google.enterprise.connector.notes.client.NotesACLEntry;
 import com.google.enterprise.connector.notes.client.NotesDatabase;
 import com.google.enterprise.connector.notes.client.NotesDateTime;
 import com.google.enterprise.connector.notes.client.NotesDocument;
+import com.google.enterprise.connector.notes.client.NotesDocumentCollection;
 import com.google.enterprise.connector.notes.client.NotesName;
 import com.google.enterprise.connector.notes.client.NotesSession;
 import com.google.enterprise.connector.notes.client.NotesView;
@@ -41,14 +42,29 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -62,6 +78,8 @@ import java.util.logging.Logger;
  *        notesname (Notes username, in canonical format),
  *        gsaname (username used for GSA authentication;
  *                 generated by the connector)
+ *        commonname (the common name portion of notesname, used
+ *                    to look up users by their common name)
  *
  * groups: groupid (primary key)
  *         groupname (Notes group name)
@@ -89,8 +107,9 @@ import java.util.logging.Logger;
  * determine which users are included. The GSA usernames are
  * generated in the connector. Notes usernames are taken from the
  * FULLNAME field in the ($PeopleGroupsFlat) view of the Domino
- * directory; the Notes Name class's getCanonical method is used
- * to generate the cached value.
+ * directory; Util.getCanonicalName, or the Notes Name class's
+ * getCanonical method for names it does not handle, is used to
+ * generate the cached value.
  *
  * The groups table is used to maintain a list of group names. In
  * addition to groups from the Notes directory, this table caches
@@ -132,13 +151,23 @@ class NotesUserGroupManager {
   private NotesSession notesSession;
   private NotesDatabase connectorDatabase;
   private NotesDatabase directoryDatabase;
-  private NotesView peopleGroupsView;
+  private NotesGroupGraph groupGraph;
   private DatabaseConnectionPool connectionPool;
   private boolean originalAutoCommit;
-  private boolean cacheInitialized = false;
+  private volatile boolean cacheInitialized = false;
+  private volatile long lastFullUpdate = 0L;
   private int originalTransactionIsolation;
   private final NotesDomainNames notesDomainNames;
+  private final NotesUserCache userCache = new NotesUserCache(
+      NCCONST.USER_CACHE_SIZE, NCCONST.USER_CACHE_TIME_TO_LIVE);
   private Connection conn;
+  // Held by the thread using the resources above to update the cache.
+  // Readers of the cache use their own connections and do not lock.
+  @VisibleForTesting final Lock updateLock = new ReentrantLock();
+  // The replica ids of the databases whose roles are to be updated
+  // when updateLock is released.
+  @VisibleForTesting final Set<String> queuedRoleUpdates =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
   @VisibleForTesting final String userTableName;
   @VisibleForTesting final String groupTableName;
   @VisibleForTesting final String roleTableName;
@@ -147,6 +176,21 @@ class NotesUserGroupManager {
   @VisibleForTesting final String groupRolesTableName;
   @VisibleForTesting final String groupChildrenTableName;
 
+  // The tables written by updateGroups and updateUsers. These are
+  // the shadow tables while a full update is building them.
+  private String userGroupsWriteTable;
+  private String groupChildrenWriteTable;
+  private boolean batchFailed;
+  // The names of the selected people and of the groups in the
+  // directory, or null if they were not all read during this update.
+  private Set<String> liveUserNames;
+  private Set<String> liveGroupNames;
+  private volatile boolean viewReadFailed;
+  // The group and user ids, loaded at the start of updateUsersGroups.
+  private NotesCacheIds cacheIds;
+  // The groups marked as pseudo-groups during this update.
+  private final Set<Long> pseudoGroupIds = new HashSet<Long>();
+
   NotesUserGroupManager(NotesConnectorSession connectorSession)
       throws RepositoryException {
     this.connectorSession = connectorSession;
@@ -166,6 +210,8 @@ class NotesUserGroupManager {
         jdbcDatabase.makeTableName("grouproles_", connectorName);
     groupChildrenTableName =
         jdbcDatabase.makeTableName("groupchildren_", connectorName);
+    userGroupsWriteTable = userGroupsTableName;
+    groupChildrenWriteTable = groupChildrenTableName;
     if (LOGGER.isLoggable(Level.FINEST)) {
       LOGGER.log(Level.FINEST, "Tables:"
           + "\nuser: " + userTableName
@@ -257,8 +303,30 @@ class NotesUserGroupManager {
     return getUser("notesname", notesName);
   }
 
+  /**
+   * Returns the user with the given GSA name. Resolved users are
+   * cached until the user cache is next updated.
+   */
   public User getUserByGsaName(String gsaName) {
-    return getUser("gsaname", gsaName);
+    if (Strings.isNullOrEmpty(gsaName)) {
+      return null;
+    }
+    User user = userCache.get(gsaName);
+    if (user != null) {
+      LOGGER.log(Level.FINEST, "User cache hit for {0}", gsaName);
+      return user;
+    }
+    long generation = userCache.getGeneration();
+    user = getUser("gsaname", gsaName);
+    if (user != null) {
+      userCache.put(gsaName, user, generation);
+    }
+    return user;
+  }
+
+  @VisibleForTesting
+  NotesUserCache getUserCache() {
+    return userCache;
   }
 
   private User getUser(String field, String value) {
@@ -414,7 +482,7 @@ class NotesUserGroupManager {
           + userTableName + " where notesname = ?",
           ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
       commonNameStmt = connection.prepareStatement("select * from "
-          + userTableName + " where notesname like ?",
+          + userTableName + " where commonname = ?",
           ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
       for (Object userObj : userNames) {
         if (userObj == null) {
@@ -431,9 +499,8 @@ class NotesUserGroupManager {
           }
           LOGGER.log(Level.FINEST, "User not found using: {0}", lookupString);
           // Try converting to canonical format.
-          NotesName notesName = notesSession.createName(userName);
-          if (notesName != null) {
-            lookupString = notesName.getCanonical();
+          lookupString = getCanonicalName(notesSession, userName);
+          if (lookupString != null && !lookupString.equals(userName)) {
             user = getSimpleUser(connection, exactMatchStmt, lookupString);
             if (user != null) {
               users.put(userObj, user);
@@ -442,8 +509,9 @@ class NotesUserGroupManager {
             LOGGER.log(Level.FINEST, "User not found using: {0}", lookupString);
           }
           // If an exact match failed, see if we have a common name.
-          if (!userName.toLowerCase().startsWith("cn=")) {
-            lookupString = "cn=" + userName + "/%";
+          if (userName.indexOf('/') == -1
+              && !userName.toLowerCase().startsWith("cn=")) {
+            lookupString = userName;
             user = getSimpleUser(connection, commonNameStmt, lookupString);
             if (user != null) {
               users.put(userObj, user);
@@ -463,6 +531,35 @@ class NotesUserGroupManager {
     return users;
   }
 
+  /*
+   * Converts a name to canonical format, calling Notes only for
+   * names that Util.getCanonicalName does not handle.
+   */
+  private String getCanonicalName(NotesSession notesSession, String name)
+      throws RepositoryException {
+    String canonicalName = Util.getCanonicalName(name);
+    if (canonicalName != null) {
+      return canonicalName;
+    }
+    NotesName notesName = notesSession.createName(name);
+    if (notesName == null) {
+      return null;
+    }
+    try {
+      return notesName.getCanonical();
+    } finally {
+      Util.recycle(notesName);
+    }
+  }
+
+  /*
+   * Gets the lower case common name of a canonical Notes name, or null
+   * if the name is not canonical.
+   */
+  private static String getCommonName(String notesName) {
+    return NotesAuthorizationManager.getCommonName(notesName.toLowerCase());
+  }
+
   private User getSimpleUser(Connection conn, PreparedStatement pstmt,
       String name) {
     ResultSet rs = null;
@@ -487,39 +584,123 @@ class NotesUserGroupManager {
 
   @VisibleForTesting
   List<String> getViewUnids(NotesDatabase db, String viewName) {
-    long timeStart = System.currentTimeMillis();
-    List<String> unidList = new LinkedList<String>();
-    NotesView view = null;
-    try {
-      if (!db.isOpen()) {
-        LOGGER.log(Level.WARNING, "Cannot open database: {0}",
-            getDatabaseFilePath(db));
-        return unidList;
+    List<String> unidList = new ArrayList<String>();
+    for (String unid : getViewUnidStream(db, viewName)) {
+      unidList.add(unid);
+    }
+    return unidList;
+  }
+
+  /*
+   * Gets the UNIDs of the documents in a view. The UNIDs are read
+   * from the view index as they are iterated, without opening the
+   * documents or holding the whole list in memory.
+   */
+  private Iterable<String> getViewUnidStream(final NotesDatabase db,
+      final String viewName) {
+    return new Iterable<String>() {
+      @Override
+      public Iterator<String> iterator() {
+        final ViewEntryIterator entries = new ViewEntryIterator(db, viewName);
+        return new Iterator<String>() {
+          @Override
+          public boolean hasNext() {
+            return entries.hasNext();
+          }
+
+          @Override
+          public String next() {
+            NotesViewEntry entry = entries.next();
+            try {
+              return entry.getUniversalID();
+            } catch (RepositoryException e) {
+              LOGGER.log(Level.WARNING,
+                  "Unable to read a UNID from " + viewName + " view", e);
+              return null;
+            }
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
       }
-      LOGGER.log(Level.FINEST,
-          "Initialize UNID cache for {0} view in database {1}",
-          new Object[] {viewName, db.getFilePath()});
-      view = db.getView(viewName);
-      view.refresh();
+    };
+  }
 
-      NotesDocument doc = view.getFirstDocument();
-      while (doc != null) {
-        unidList.add(doc.getUniversalID());
-        NotesDocument docNext = view.getNextDocument(doc);
-        doc.recycle();
-        doc = docNext;
+  /*
+   * Iterates over the document entries of a view with a view
+   * navigator. Each entry is recycled when the next one is returned,
+   * and the navigator and view are recycled at the end of the view.
+   * An iteration that is abandoned early leaves them to be recycled
+   * with the Notes session. Errors reading the view are logged, set
+   * viewReadFailed, and end the iteration.
+   */
+  private class ViewEntryIterator implements Iterator<NotesViewEntry> {
+    private final String viewName;
+    private NotesView view;
+    private NotesViewNavigator navigator;
+    private NotesViewEntry currentEntry;
+    private NotesViewEntry nextEntry;
+
+    ViewEntryIterator(NotesDatabase db, String viewName) {
+      this.viewName = viewName;
+      try {
+        if (!db.isOpen()) {
+          LOGGER.log(Level.WARNING, "Cannot open database: {0}",
+              getDatabaseFilePath(db));
+          return;
+        }
+        LOGGER.log(Level.FINEST, "Reading {0} view in database {1}",
+            new Object[] {viewName, db.getFilePath()});
+        view = db.getView(viewName);
+        view.refresh();
+        navigator = view.createViewNav();
+        nextEntry = navigator.getFirstDocument();
+      } catch (RepositoryException e) {
+        LOGGER.log(Level.WARNING, "Unable to read " + viewName + " view", e);
+        viewReadFailed = true;
       }
-    } catch (RepositoryException e) {
-      LOGGER.log(Level.WARNING, "Unable to build the UNID cache for "
-          + viewName + " view", e);
-    } finally {
-      Util.recycle(view);
     }
-    LOGGER.log(Level.FINEST,
-        "UNID cache is initialized for {0} view [{1}]: {2}ms",
-        new Object[] {viewName, unidList.size(),
-            (System.currentTimeMillis() - timeStart)});
-    return unidList;
+
+    @Override
+    public boolean hasNext() {
+      if (nextEntry == null) {
+        close();
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public NotesViewEntry next() {
+      if (nextEntry == null) {
+        throw new NoSuchElementException();
+      }
+      Util.recycle(currentEntry);
+      currentEntry = nextEntry;
+      try {
+        nextEntry = navigator.getNext();
+      } catch (RepositoryException e) {
+        LOGGER.log(Level.WARNING, "Unable to read " + viewName + " view", e);
+        viewReadFailed = true;
+        nextEntry = null;
+      }
+      return currentEntry;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private void close() {
+      Util.recycle(currentEntry, navigator, view);
+      currentEntry = null;
+      navigator = null;
+      view = null;
+    }
   }
 
   public void updateUsersGroups() {
@@ -531,53 +712,134 @@ class NotesUserGroupManager {
    * true, the configure cache update interval is ignored and the
    * user and group cache is updated.
    *
+   * A forced update, and an update after
+   * {@link NCCONST#DIRECTORY_FULL_UPDATE_INTERVAL} has elapsed, rebuilds
+   * the cache from every person and group in the directory. Otherwise,
+   * only the people and groups modified since the last update are
+   * read, along with the groups and people whose membership depends on
+   * them.
+   *
    * @param force if true, force an update
    */
   @VisibleForTesting
-  synchronized void updateUsersGroups(boolean force) {
+  void updateUsersGroups(boolean force) {
     final String METHOD = "updateUsersGroups";
     LOGGER.entering(CLASS_NAME, METHOD);
+    NotesDateTime updateTime = null;
+    Date lastCacheUpdate = null;
+    NotesDateTime modifiedSince = null;
+    updateLock.lock();
     try {
       LOGGER.log(Level.FINE, "Forcing cache update: {0}", force);
       if (!setUpResources(force)) {
         return;
       }
+      // Changes made while the cache is being updated are picked up by
+      // the next update.
+      long updateStart = System.currentTimeMillis();
+      updateTime = notesSession.createDateTime("1/1/1900");
+      updateTime.setNow();
+      loadCacheIds();
 
-      // Pass 0 - Reset domain cache
-      List<String> userUnids =
-          getViewUnids(directoryDatabase, NCCONST.DIRVIEW_VIMUSERS);
-      updateNotesDomainNames(userUnids);
+      if (!force && updateStart - lastFullUpdate
+          < NCCONST.DIRECTORY_FULL_UPDATE_INTERVAL) {
+        lastCacheUpdate = getLastCacheUpdate();
+      }
+      if (lastCacheUpdate == null) {
+        LOGGER.log(Level.FINE, "Updating all people and groups");
 
-      // Pass 1 - Update groups
-      List<String> groupUnids =
-          getViewUnids(directoryDatabase, NCCONST.DIRVIEW_VIMGROUPS);
-      updateGroups(groupUnids);
+        // Pass 0 - Reset domain cache
+        updateNotesDomainNames();
 
-      // Pass 2 - Update people
-      updateUsers(userUnids);
+        boolean useShadowTables =
+            connectorSession.getConnector().getCacheShadowTables();
+        batchFailed = false;
+        try {
+          if (useShadowTables) {
+            createShadowTables();
+          }
+
+          // Pass 1 - Update groups
+          loadGroupGraph();
+          updateGroups(groupGraph.getGroupUnids());
+
+          // Pass 2 - Update people, which depends on the group ids
+          // from pass 1
+          liveUserNames = new HashSet<String>();
+          viewReadFailed = false;
+          int numThreads =
+              connectorSession.getConnector().getCacheUpdateThreads();
+          if (numThreads > 1) {
+            updateUsersInParallel(numThreads);
+          } else {
+            updateUsers(getViewUnidStream(directoryDatabase,
+                NCCONST.DIRVIEW_VIMUSERS));
+          }
+          if (viewReadFailed) {
+            liveUserNames = null;
+          }
+
+          if (useShadowTables) {
+            if (batchFailed) {
+              throw new RepositoryException(
+                  "Failed to build the shadow tables; not replacing the cache");
+            }
+            swapShadowTables();
+          }
+        } finally {
+          if (useShadowTables) {
+            userGroupsWriteTable = userGroupsTableName;
+            groupChildrenWriteTable = groupChildrenTableName;
+            try {
+              recoverShadowTables(conn);
+            } catch (SQLException e) {
+              LOGGER.log(Level.WARNING, "Failed to clean up shadow tables", e);
+            }
+          }
+        }
+        lastFullUpdate = updateStart;
+      } else {
+        LOGGER.log(Level.FINE, "Updating people and groups modified since {0}",
+            lastCacheUpdate);
+        modifiedSince = notesSession.createDateTime(lastCacheUpdate);
+        updateModifiedUsersGroups(
+            getModifiedUnids(NCCONST.DIRFORM_PERSON, modifiedSince),
+            getModifiedUnids(NCCONST.DIRFORM_GROUP, modifiedSince));
+      }
 
       // Pass 3 - Update roles
       // Role update is moved from the maintenance thread to the traversal
       // thread so that the update only occurs when the database ACL is updated.
 
+      commitNewIds();
+
       // Pass 4 - Delete any users that no longer exist
       checkUserDeletions();
 
       // Pass 5 - Delete any groups that no longer exist
       checkGroupDeletions();
 
-      setLastCacheUpdate();
+      setLastCacheUpdate(updateTime);
       setCacheInitialized();
     } catch (Exception e) {
       LOGGER.log(Level.SEVERE, "Failure updating user/group cache", e);
     } finally {
+      Util.recycle(updateTime, modifiedSince);
       releaseResources();
+      updateLock.unlock();
+      userCache.invalidateAll();
+      updateQueuedRoles();
       LOGGER.exiting(CLASS_NAME, METHOD);
     }
   }
 
+  /*
+   * Sets up the Notes session, databases and cache connection used by
+   * the update methods. Other than in tests, these are only used by
+   * the thread holding updateLock.
+   */
   @VisibleForTesting
-  synchronized boolean setUpResources(boolean force)
+  boolean setUpResources(boolean force)
       throws RepositoryException {
     notesSession = connectorSession.createNotesSession();
     connectorDatabase = notesSession.getDatabase(
@@ -588,9 +850,6 @@ class NotesUserGroupManager {
     }
     directoryDatabase = notesSession.getDatabase(
         connectorSession.getServer(), connectorSession.getDirectory());
-    peopleGroupsView = directoryDatabase.getView(
-        NCCONST.DIRVIEW_PEOPLEGROUPFLAT);
-    peopleGroupsView.refresh();
     try {
       connectionPool = connectorSession.getConnector().getJdbcDatabase()
           .getConnectionPool();
@@ -605,9 +864,12 @@ class NotesUserGroupManager {
     return true;
   }
 
-  synchronized void releaseResources() {
-    Util.recycle(peopleGroupsView);
-    peopleGroupsView = null;
+  void releaseResources() {
+    groupGraph = null;
+    cacheIds = null;
+    pseudoGroupIds.clear();
+    liveUserNames = null;
+    liveGroupNames = null;
     Util.recycle(directoryDatabase);
     directoryDatabase = null;
     Util.recycle(connectorDatabase);
@@ -633,6 +895,172 @@ class NotesUserGroupManager {
     return conn;
   }
 
+  private String getShadowTableName(String tableName) {
+    return tableName + "_shadow";
+  }
+
+  private String getOldTableName(String tableName) {
+    return tableName + "_old";
+  }
+
+  /*
+   * Index names are unique across the database, so they include the
+   * table name to keep each connector's indexes apart.
+   */
+  private String getIndexName(String column, String tableName) {
+    return "idx_" + column + "_" + tableName;
+  }
+
+  /*
+   * Creates empty shadow copies of the user/group and group/child
+   * tables, and directs updateGroups and updateUsers to write to
+   * them. Readers keep using the live tables until the shadow tables
+   * are swapped in by swapShadowTables.
+   */
+  private void createShadowTables() throws SQLException {
+    recoverShadowTables(conn);
+    String userGroupsShadow = getShadowTableName(userGroupsTableName);
+    String groupChildrenShadow = getShadowTableName(groupChildrenTableName);
+    Util.executeStatements(conn, true,
+        "create table " + userGroupsShadow + " (userid long, groupid long)",
+        "create table " + groupChildrenShadow + " (parentgroupid long,"
+        + " childgroupid long)");
+    userGroupsWriteTable = userGroupsShadow;
+    groupChildrenWriteTable = groupChildrenShadow;
+    LOGGER.log(Level.FINE, "Created shadow tables: {0}, {1}",
+        new Object[] { userGroupsShadow, groupChildrenShadow });
+  }
+
+  /*
+   * Indexes the shadow tables and renames them to replace the live
+   * tables. The indexes are created before the renames, so the live
+   * tables are only missing for the time it takes to rename them.
+   * Once the old tables and their indexes are dropped, the shadow
+   * indexes take the live index names.
+   *
+   * H2 commits each of these statements on its own, so a failure
+   * part way through is repaired by recoverShadowTables rather than
+   * rolled back.
+   */
+  private void swapShadowTables() throws SQLException {
+    final String METHOD = "swapShadowTables";
+    LOGGER.entering(CLASS_NAME, METHOD);
+
+    String userGroupsShadow = getShadowTableName(userGroupsTableName);
+    String groupChildrenShadow = getShadowTableName(groupChildrenTableName);
+    try {
+      Util.executeStatements(conn, true,
+          "create index " + getIndexName("userid", userGroupsShadow)
+          + " on " + userGroupsShadow + "(userid)",
+          "create index " + getIndexName("groupid", userGroupsShadow)
+          + " on " + userGroupsShadow + "(groupid)",
+          "create index " + getIndexName("parentgroupid", groupChildrenShadow)
+          + " on " + groupChildrenShadow + "(parentgroupid)",
+          "create index " + getIndexName("childgroupid", groupChildrenShadow)
+          + " on " + groupChildrenShadow + "(childgroupid)",
+          "alter table " + userGroupsTableName + " rename to "
+          + getOldTableName(userGroupsTableName),
+          "alter table " + userGroupsShadow + " rename to "
+          + userGroupsTableName,
+          "alter table " + groupChildrenTableName + " rename to "
+          + getOldTableName(groupChildrenTableName),
+          "alter table " + groupChildrenShadow + " rename to "
+          + groupChildrenTableName,
+          "drop table " + getOldTableName(userGroupsTableName),
+          "drop table " + getOldTableName(groupChildrenTableName),
+          "alter index " + getIndexName("userid", userGroupsShadow)
+          + " rename to " + getIndexName("userid", userGroupsTableName),
+          "alter index " + getIndexName("groupid", userGroupsShadow)
+          + " rename to " + getIndexName("groupid", userGroupsTableName),
+          "alter index " + getIndexName("parentgroupid", groupChildrenShadow)
+          + " rename to "
+          + getIndexName("parentgroupid", groupChildrenTableName),
+          "alter index " + getIndexName("childgroupid", groupChildrenShadow)
+          + " rename to "
+          + getIndexName("childgroupid", groupChildrenTableName));
+    } catch (SQLException e) {
+      try {
+        recoverShadowTables(conn);
+      } catch (SQLException e2) {
+        LOGGER.log(Level.WARNING, "Failed to repair the table swap", e2);
+      }
+      throw e;
+    }
+    LOGGER.log(Level.FINE, "Replaced {0} and {1} with the shadow tables",
+        new Object[] { userGroupsTableName, groupChildrenTableName });
+    LOGGER.exiting(CLASS_NAME, METHOD);
+  }
+
+  /*
+   * Repairs the user/group and group/child tables after an update
+   * that stopped before or during swapShadowTables, and drops the
+   * leftover shadow tables.
+   */
+  @VisibleForTesting
+  void recoverShadowTables(Connection conn) throws SQLException {
+    recoverShadowTable(conn, userGroupsTableName, "userid", "groupid");
+    recoverShadowTable(conn, groupChildrenTableName, "parentgroupid",
+        "childgroupid");
+  }
+
+  /*
+   * A failed swap can leave the live table renamed to _old, or leave
+   * the new live table with the shadow index names. If the live table
+   * is missing, the _old table is renamed back; otherwise the _old
+   * table is dropped. The shadow table and any indexes still using
+   * shadow names are dropped, and missing live indexes are recreated.
+   */
+  private void recoverShadowTable(Connection conn, String tableName,
+      String... columns) throws SQLException {
+    JdbcDatabase jdbcDatabase =
+        connectorSession.getConnector().getJdbcDatabase();
+    String oldTable = getOldTableName(tableName);
+    String shadowTable = getShadowTableName(tableName);
+    List<String> statements = new ArrayList<String>();
+    if (jdbcDatabase.verifyTableExists(oldTable, null)) {
+      if (jdbcDatabase.verifyTableExists(tableName, null)) {
+        LOGGER.log(Level.WARNING, "Dropping {0} left by an incomplete update",
+            oldTable);
+        statements.add("drop table " + oldTable);
+      } else {
+        LOGGER.log(Level.WARNING, "Restoring {0} from {1}",
+            new Object[] { tableName, oldTable });
+        statements.add("alter table " + oldTable + " rename to " + tableName);
+      }
+    }
+    statements.add("drop table if exists " + shadowTable);
+    for (String column : columns) {
+      statements.add("drop index if exists "
+          + getIndexName(column, shadowTable));
+    }
+    Util.executeStatements(conn, true,
+        statements.toArray(new String[statements.size()]));
+
+    if (jdbcDatabase.verifyTableExists(tableName, null)) {
+      statements.clear();
+      for (String column : columns) {
+        statements.add("create index if not exists "
+            + getIndexName(column, tableName)
+            + " on " + tableName + "(" + column + ")");
+      }
+      Util.executeStatements(conn, true,
+          statements.toArray(new String[statements.size()]));
+    }
+  }
+
+  /* Drops any shadow and old tables when the cache is cleared. */
+  private void dropShadowTables(Connection conn) {
+    try {
+      Util.executeStatements(conn, true,
+          "drop table if exists " + getShadowTableName(userGroupsTableName),
+          "drop table if exists " + getShadowTableName(groupChildrenTableName),
+          "drop table if exists " + getOldTableName(userGroupsTableName),
+          "drop table if exists " + getOldTableName(groupChildrenTableName));
+    } catch (SQLException e) {
+      LOGGER.log(Level.WARNING, "Failed to drop shadow tables", e);
+    }
+  }
+
   @VisibleForTesting
   NotesSession getNotesSession() {
     return notesSession;
@@ -641,201 +1069,723 @@ class NotesUserGroupManager {
   // Update groups
 
   /**
-   * Loop over the groups in NCCONST.DIRVIEW_PEOPLEGROUPFLAT. For
-   * each group, create a group record and compute nested group
-   * membership (all groups which are contained within this group
-   * via 0 or more intermediate groups).
+   * Loads the membership graph of the access control groups in
+   * NCCONST.DIRVIEW_VIMGROUPS and computes the nested groups of each
+   * group. The names of all of the groups in the view are kept for
+   * checkGroupDeletions.
    */
   @VisibleForTesting
-  void updateGroups(List<String> groupUnids) {
-    final String METHOD = "updateGroups";
+  @SuppressWarnings("unchecked")
+  void loadGroupGraph() throws RepositoryException {
+    final String METHOD = "loadGroupGraph";
     LOGGER.entering(CLASS_NAME, METHOD);
 
     long timeStart = System.currentTimeMillis();
-    int count = 0;
-    for (String unid : groupUnids) {
-      if (count++ % NCCONST.GC_INVOCATION_INTERVAL == 0) {
-        Util.invokeGC();
-      }
-      NotesDocument groupDoc = getDocumentByUnid(directoryDatabase, unid);
-      if (groupDoc == null) {
-        LOGGER.log(Level.FINEST, "Group document [{0}] is not found", unid);
-      } else {
+    NotesGroupGraph graph = new NotesGroupGraph();
+    Map<Integer, Vector<String>> membersByGroup =
+        new LinkedHashMap<Integer, Vector<String>>();
+    Set<String> groupNames = new HashSet<String>();
+    boolean allGroupsRead = true;
+    NotesView groupView = directoryDatabase.getView(NCCONST.DIRVIEW_VIMGROUPS);
+    NotesSweepMonitor monitor =
+        new NotesSweepMonitor(METHOD, NCCONST.DIRECTORY_SWEEP_CHUNK_SIZE);
+    try {
+      groupView.refresh();
+      NotesDocument groupDoc = groupView.getFirstDocument();
+      while (groupDoc != null) {
         String groupName = null;
         try {
           groupName = groupDoc.getItemValueString(NCCONST.GITM_LISTNAME);
           if (Strings.isNullOrEmpty(groupName)) {
-            continue;
-          }
-          // Only process groups
-          if (!isAccessControlGroup(groupDoc)) {
+            // Skip this document.
+          } else if (!isAccessControlGroup(groupDoc)) {
+            addGroupName(groupNames, groupName);
             LOGGER.log(Level.FINEST,
                 "Not a group/access control group: '{0}'", groupName);
-            continue;
+          } else {
+            addGroupName(groupNames, groupName);
+            int node = graph.addGroup(groupName.toLowerCase(),
+                groupDoc.getUniversalID());
+            membersByGroup.put(node,
+                groupDoc.getItemValue(NCCONST.GITM_MEMBERS));
           }
-          updateGroup(groupDoc, groupName);
         } catch (RepositoryException e) {
-          LOGGER.log(Level.WARNING, "Failed to update group cache"
-              + (groupName != null ? " for " + groupName : ""), e);
-        } finally {
-          Util.recycle(groupDoc);
+          LOGGER.log(Level.WARNING, "Failed to read group"
+              + (groupName != null ? " " + groupName : ""), e);
+          allGroupsRead = false;
+        }
+        NotesDocument nextDoc = groupView.getNextDocument(groupDoc);
+        groupDoc.recycle();
+        monitor.processed();
+        groupDoc = nextDoc;
+      }
+    } finally {
+      Util.recycle(groupView);
+      monitor.finish();
+    }
+
+    for (Map.Entry<Integer, Vector<String>> entry
+             : membersByGroup.entrySet()) {
+      int node = entry.getKey();
+      for (String member : entry.getValue()) {
+        String memberName = member.toLowerCase();
+        // Check for wildcard configuration in group membership
+        if (memberName.startsWith("*/")) {
+          graph.addMember(node, graph.addGroup(memberName));
+          for (String subdomain : notesDomainNames.getSubDomainNames(
+                   memberName.substring(1)).keySet()) {
+            graph.addMember(node, graph.addGroup(subdomain));
+          }
+          continue;
+        }
+        // Members that are not access control groups are skipped.
+        int memberNode = graph.getNode(memberName);
+        if (memberNode != -1 && graph.getUnid(memberNode) != null) {
+          graph.addMember(node, memberNode);
         }
       }
     }
-    long timeFinish = System.currentTimeMillis();
-    LOGGER.log(Level.FINE, "Update groups: {0}ms", timeFinish - timeStart);
+    groupGraph = graph;
+    liveGroupNames = allGroupsRead ? groupNames : null;
+    LOGGER.log(Level.FINE, "Load group graph [{0} groups]: {1}ms",
+        new Object[] { graph.size(), System.currentTimeMillis() - timeStart });
+    LOGGER.exiting(CLASS_NAME, METHOD);
   }
 
-  private void updateGroup(NotesDocument groupDoc, String groupName) {
-    LOGGER.log(Level.FINEST, "Processing group {0}", groupName);
-    // Update the group record and the parent/descendent group records.
-    LinkedHashSet<String> processedGroups = new LinkedHashSet<String>();
-    LinkedHashSet<String> nestedGroups = new LinkedHashSet<String>();
-    try {
-      // Find the nested groups.
-      getNestedGroups(groupDoc, groupName, processedGroups, nestedGroups);
-      LOGGER.log(Level.FINEST, "Nested groups for {0} are: {1}",
-          new Object[] { groupName, nestedGroups });
-    } catch (Exception e) {
-      LOGGER.log(Level.WARNING,
-          "Failed to find nested group information for group: " + groupName
-          + "; not updating", e);
-      return;
-    }
+  /**
+   * Loop over the given groups. For each group, create a group
+   * record and store the nested group membership (all groups which
+   * are contained within this group via 0 or more intermediate
+   * groups) from the group graph, loading the graph if needed.
+   */
+  @VisibleForTesting
+  void updateGroups(Iterable<String> groupUnids) {
+    final String METHOD = "updateGroups";
+    LOGGER.entering(CLASS_NAME, METHOD);
+
+    long timeStart = System.currentTimeMillis();
+    PreparedStatement deleteStmt = null;
+    PreparedStatement insertStmt = null;
+    Set<Long> pendingGroups = new HashSet<Long>();
+    int commitWindow = getCommitWindow();
     try {
+      if (groupGraph == null) {
+        loadGroupGraph();
+      }
       conn.setAutoCommit(false);
-      long groupid = verifyGroupExists(groupName, true);
-      if (groupid != -1L) {
-        // Delete previous parent/child records for this group.
-        PreparedStatement pstmt = conn.prepareStatement(
-            "delete from " + groupChildrenTableName
-            + " where parentgroupid = ?");
-        pstmt.setLong(1, groupid);
-        pstmt.executeUpdate();
-
-        // Add new parent/child records for this group.
-        if (nestedGroups.size() > 0) {
-          pstmt = conn.prepareStatement("insert into "
-              + groupChildrenTableName + " (parentgroupid, childgroupid)"
-              + " values (?, ?)");
-          pstmt.setLong(1, groupid);
-          for (String childGroupName : nestedGroups) {
-            long childGroupId = verifyGroupExists(childGroupName, true);
-            if (childGroupId == -1L) {
-              throw new RepositoryException("Missing group record for "
-                  + "child group: " + childGroupName);
-            }
-            pstmt.setLong(2, childGroupId);
-            pstmt.executeUpdate();
-          }
+      deleteStmt = conn.prepareStatement("delete from "
+          + groupChildrenWriteTable + " where parentgroupid = ?");
+      insertStmt = conn.prepareStatement("insert into "
+          + groupChildrenWriteTable + " (parentgroupid, childgroupid)"
+          + " values (?, ?)");
+      for (String unid : groupUnids) {
+        int node = groupGraph.getNodeByUnid(unid);
+        if (node == -1) {
+          LOGGER.log(Level.FINEST,
+              "Group document [{0}] is not an access control group", unid);
+          continue;
+        }
+        updateGroup(node, deleteStmt, insertStmt, pendingGroups);
+        if (pendingGroups.size() >= commitWindow) {
+          executeBatches(pendingGroups, deleteStmt, insertStmt);
         }
-        conn.commit();
       }
+      executeBatches(pendingGroups, deleteStmt, insertStmt);
     } catch (Exception e) {
-      LOGGER.log(Level.WARNING, "Failed to update group information for group: "
-          + groupName + "; not updating", e);
-      try {
-        conn.rollback();
-      } catch (SQLException e1) {
-        LOGGER.log(Level.WARNING, "Rollback failed", e1);
-      }
+      LOGGER.log(Level.WARNING, "Failed to update group cache", e);
+      batchFailed = true;
+      rollback();
     } finally {
+      Util.close(insertStmt);
+      Util.close(deleteStmt);
       try {
         conn.setAutoCommit(true);
       } catch (SQLException e1) {
         LOGGER.log(Level.WARNING, "AutoCommit reset failed", e1);
       }
     }
+    long timeFinish = System.currentTimeMillis();
+    LOGGER.log(Level.FINE, "Update groups: {0}ms", timeFinish - timeStart);
+    LOGGER.exiting(CLASS_NAME, METHOD);
   }
 
-  @SuppressWarnings("unchecked")
-  private void getNestedGroups(NotesDocument groupDoc, String groupName,
-      Set<String> processedGroups, Set<String> nestedGroups)
-      throws RepositoryException {
-    final String METHOD = "getNestedGroups";
-    LOGGER.entering(CLASS_NAME, METHOD);
+  /*
+   * Adds the parent/child records of a group to the statement
+   * batches. The batches are executed by executeBatches, and the
+   * group id is added to pendingGroups until then.
+   */
+  private void updateGroup(int node, PreparedStatement deleteStmt,
+      PreparedStatement insertStmt, Set<Long> pendingGroups)
+      throws SQLException {
+    String groupName = groupGraph.getName(node);
+    LOGGER.log(Level.FINEST, "Processing group {0}", groupName);
+    try {
+      long groupid = getGroupId(node, true);
+      if (groupid == -1L) {
+        return;
+      }
+      int[] nestedGroups = groupGraph.getDescendants(node);
+      long[] childGroupIds = new long[nestedGroups.length];
+      for (int i = 0; i < nestedGroups.length; i++) {
+        childGroupIds[i] = getGroupId(nestedGroups[i], true);
+        if (childGroupIds[i] == -1L) {
+          throw new RepositoryException("Missing group record for "
+              + "child group: " + groupGraph.getName(nestedGroups[i]));
+        }
+      }
+      // The batched deletes are executed before the batched inserts,
+      // so a group can only be batched once.
+      if (pendingGroups.contains(groupid)) {
+        executeBatches(pendingGroups, deleteStmt, insertStmt);
+      }
+
+      // Delete previous parent/child records for this group.
+      deleteStmt.setLong(1, groupid);
+      deleteStmt.addBatch();
+
+      // Add new parent/child records for this group.
+      insertStmt.setLong(1, groupid);
+      for (long childGroupId : childGroupIds) {
+        insertStmt.setLong(2, childGroupId);
+        insertStmt.addBatch();
+      }
+      pendingGroups.add(groupid);
+    } catch (RepositoryException e) {
+      LOGGER.log(Level.WARNING, "Failed to update group information for group: "
+          + groupName + "; not updating", e);
+    }
+  }
 
-    // Check for already processed groups to avoid cycles.
-    if (!processedGroups.add(groupName.toLowerCase())) {
+  /*
+   * Executes the batched deletes and then the batched inserts, and
+   * commits them. If the batches fail, the whole commit window is
+   * rolled back and the cache is left as it was for those users or
+   * groups.
+   */
+  private void executeBatches(Set<Long> pendingIds,
+      PreparedStatement deleteStmt, PreparedStatement insertStmt) {
+    if (pendingIds.isEmpty()) {
       return;
     }
-    Vector<String> groupMembers = groupDoc.getItemValue(NCCONST.GITM_MEMBERS);
-    for (String member : groupMembers) {
-      // Check for wildcard configuration in group membership
-      if (member.startsWith("*/")) {
-        nestedGroups.add(member.toLowerCase());
-        LinkedHashMap<String, Long> subdomains = 
-            notesDomainNames.getSubDomainNames(member.toLowerCase().substring(1));
-        nestedGroups.addAll(subdomains.keySet());
-        continue;
-      }
-      NotesDocument memberDoc = peopleGroupsView.getDocumentByKey(member);
-      if (memberDoc == null) {
-        continue;
+    try {
+      writeNewIds();
+      deleteStmt.executeBatch();
+      insertStmt.executeBatch();
+      conn.commit();
+      if (cacheIds != null) {
+        cacheIds.commit();
       }
+      LOGGER.log(Level.FINEST, "Committed cache records for {0} ids",
+          pendingIds.size());
+    } catch (SQLException e) {
+      LOGGER.log(Level.WARNING, "Failed to update cache records for ids: "
+          + pendingIds, e);
+      batchFailed = true;
       try {
-        if (!isAccessControlGroup(memberDoc)) {
-          continue;
-        }
-        nestedGroups.add(member.toLowerCase());
-        getNestedGroups(memberDoc, member, processedGroups, nestedGroups);
-      } finally {
-        Util.recycle(memberDoc);
+        deleteStmt.clearBatch();
+        insertStmt.clearBatch();
+      } catch (SQLException e1) {
+        LOGGER.log(Level.WARNING, "Failed to clear batch", e1);
       }
+      rollback();
+    } finally {
+      pendingIds.clear();
     }
-    LOGGER.exiting(CLASS_NAME, METHOD);
   }
 
-  /**
-   * Store all wildcard domains in H2 and build a domain cache.
+  /*
+   * Rolls back the current transaction, along with the ids assigned
+   * to new groups and users in it.
    */
-  private void updateNotesDomainNames(List<String> userUnids) {
-    final String METHOD = "updateNotesDomainNames";
-    LOGGER.entering(CLASS_NAME, METHOD);
-
-    long timeStart = System.currentTimeMillis();
-
-    int count = 0;
-    for (String unid : userUnids) {
-      if (count++ % NCCONST.GC_INVOCATION_INTERVAL == 0) {
-        Util.invokeGC();
-      }
-
-      NotesDocument doc = getDocumentByUnid(directoryDatabase, unid);
-      if (doc == null) {
-        LOGGER.log(Level.FINEST, "Document [{0}] is not found in {1} database",
-            new Object[] {unid, getDatabaseFilePath(directoryDatabase)});
-      } else {
-        try {
-          Vector fullNames = doc.getItemValue(NCCONST.PITM_FULLNAME);
-          if (fullNames.size() == 0) {
-            continue;
-          }
-          // Create domains/OUs as groups in H2 if not existed and 
-          // update domain cache
-          List<String> canonicalOUs = notesDomainNames
-              .computeExpandedWildcardDomainNames((String) fullNames.get(0));
-          verifyMultiDomainsExist(canonicalOUs, true);
-        } catch (RepositoryException re) {
-          LOGGER.log(Level.WARNING, 
-              "Failed to update Notes domain names for person document ["
-              + unid + "]", re);
-        } finally {
-          Util.recycle(doc);
+  private void rollback() {
+    try {
+      conn.rollback();
+    } catch (SQLException e) {
+      LOGGER.log(Level.WARNING, "Rollback failed", e);
+    }
+    pseudoGroupIds.clear();
+    if (cacheIds != null) {
+      for (String groupName : cacheIds.rollback()) {
+        int node = (groupGraph == null) ? -1 : groupGraph.getNode(groupName);
+        if (node != -1) {
+          groupGraph.setGroupId(node, -1L);
         }
       }
     }
-
-    long timeFinish = System.currentTimeMillis();
-    LOGGER.log(Level.FINEST, "Update Notes domain cache [{0}ms]: {1}",
-        new Object[] {(timeFinish - timeStart), notesDomainNames});
-    LOGGER.exiting(CLASS_NAME, METHOD);
   }
 
   /*
-   * Helper method to lookup document by UNID.
+   * Loads the ids of all of the groups and users with one scan of
+   * each table, so that verifyGroupExists and verifyUserExists do not
+   * query the database during the update.
    */
-  private NotesDocument getDocumentByUnid(NotesDatabase db, String unid) {
+  private void loadCacheIds() throws SQLException {
+    final String METHOD = "loadCacheIds";
+    LOGGER.entering(CLASS_NAME, METHOD);
+
+    NotesCacheIds ids = new NotesCacheIds();
+    Statement stmt = conn.createStatement();
+    ResultSet rs = null;
+    try {
+      rs = stmt.executeQuery("select groupid, groupname from "
+          + groupTableName);
+      while (rs.next()) {
+        ids.putGroup(rs.getString(2), rs.getLong(1));
+      }
+      rs.close();
+      rs = stmt.executeQuery("select userid, notesname, gsaname from "
+          + userTableName);
+      while (rs.next()) {
+        ids.putUser(rs.getString(2), rs.getString(3), rs.getLong(1));
+      }
+    } finally {
+      Util.close(rs);
+      Util.close(stmt);
+      LOGGER.exiting(CLASS_NAME, METHOD);
+    }
+    cacheIds = ids;
+  }
+
+  /*
+   * Adds the pending new groups and users, and the changed GSA names,
+   * to the cache tables in batches. The ids are assigned by
+   * NotesCacheIds rather than generated by the database; H2 advances
+   * the auto_increment sequence past explicitly inserted ids.
+   */
+  private void writeNewIds() throws SQLException {
+    if (cacheIds == null || !cacheIds.hasPendingChanges()) {
+      return;
+    }
+    PreparedStatement pstmt = null;
+    try {
+      if (!cacheIds.getNewGroups().isEmpty()) {
+        pstmt = conn.prepareStatement("insert into " + groupTableName
+            + " (groupid, groupname, pseudogroup) values (?, ?, ?)");
+        for (Map.Entry<String, Long> group
+                 : cacheIds.getNewGroups().entrySet()) {
+          pstmt.setLong(1, group.getValue());
+          pstmt.setString(2, group.getKey());
+          pstmt.setBoolean(3, pseudoGroupIds.contains(group.getValue()));
+          pstmt.addBatch();
+        }
+        pstmt.executeBatch();
+        pstmt.close();
+      }
+      if (!cacheIds.getNewUsers().isEmpty()) {
+        pstmt = conn.prepareStatement("insert into " + userTableName
+            + " (userid, notesname, gsaname, commonname)"
+            + " values (?, ?, ?, ?)");
+        for (Map.Entry<String, Long> user : cacheIds.getNewUsers().entrySet()) {
+          pstmt.setLong(1, user.getValue());
+          pstmt.setString(2, user.getKey());
+          pstmt.setString(3, cacheIds.getGsaName(user.getKey()));
+          pstmt.setString(4, getCommonName(user.getKey()));
+          pstmt.addBatch();
+        }
+        pstmt.executeBatch();
+        pstmt.close();
+      }
+      if (!cacheIds.getChangedUsers().isEmpty()) {
+        pstmt = conn.prepareStatement("update " + userTableName
+            + " set gsaname = ? where userid = ?");
+        for (String notesName : cacheIds.getChangedUsers()) {
+          pstmt.setString(1, cacheIds.getGsaName(notesName));
+          pstmt.setLong(2, cacheIds.getUserId(notesName));
+          pstmt.addBatch();
+        }
+        pstmt.executeBatch();
+      }
+      LOGGER.log(Level.FINE, "Added {0} groups and {1} users to cache",
+          new Object[] { cacheIds.getNewGroups().size(),
+              cacheIds.getNewUsers().size() });
+    } finally {
+      Util.close(pstmt);
+    }
+  }
+
+  /* Writes and commits any pending new groups and users. */
+  private void commitNewIds() {
+    if (cacheIds == null || !cacheIds.hasPendingChanges()) {
+      return;
+    }
+    try {
+      conn.setAutoCommit(false);
+      writeNewIds();
+      conn.commit();
+      cacheIds.commit();
+    } catch (SQLException e) {
+      LOGGER.log(Level.WARNING, "Failed to add new groups and users to cache",
+          e);
+      rollback();
+    } finally {
+      try {
+        conn.setAutoCommit(true);
+      } catch (SQLException e) {
+        LOGGER.log(Level.WARNING, "AutoCommit reset failed", e);
+      }
+    }
+  }
+
+  /** Gets the number of users or groups to update in each transaction. */
+  private int getCommitWindow() {
+    return Math.max(1, connectorSession.getConnector().getCacheCommitWindow());
+  }
+
+  /*
+   * Gets the group id of a group in the group graph, looking it up
+   * in the groups table the first time.
+   */
+  private long getGroupId(int node, boolean createIfNotExists) {
+    long groupId = groupGraph.getGroupId(node);
+    if (groupId == -1L) {
+      groupId = verifyGroupExists(groupGraph.getName(node), createIfNotExists);
+      groupGraph.setGroupId(node, groupId);
+    }
+    return groupId;
+  }
+
+  /**
+   * Gets the UNIDs of the documents with the given form that have
+   * been modified since the given time.
+   */
+  @VisibleForTesting
+  List<String> getModifiedUnids(String form, NotesDateTime since)
+      throws RepositoryException {
+    List<String> unidList = new ArrayList<String>();
+    NotesDocumentCollection dc = directoryDatabase.search(
+        "Select Form = \"" + form + "\"", since);
+    try {
+      NotesDocument doc = dc.getFirstDocument();
+      while (doc != null) {
+        unidList.add(doc.getUniversalID());
+        NotesDocument nextDoc = dc.getNextDocument(doc);
+        doc.recycle();
+        doc = nextDoc;
+      }
+    } finally {
+      Util.recycle(dc);
+    }
+    LOGGER.log(Level.FINE, "Found {0} modified {1} documents",
+        new Object[] { unidList.size(), form });
+    return unidList;
+  }
+
+  /**
+   * Updates the given modified people and groups, the groups that
+   * contain the modified groups, and the people whose group
+   * membership is affected by the modified groups: their members,
+   * and the members of the groups nested in them, both before and
+   * after the update.
+   */
+  @VisibleForTesting
+  void updateModifiedUsersGroups(List<String> userUnids,
+      List<String> groupUnids) throws RepositoryException {
+    final String METHOD = "updateModifiedUsersGroups";
+    LOGGER.entering(CLASS_NAME, METHOD);
+
+    NotesView usersView = null;
+    try {
+      usersView = directoryDatabase.getView(NCCONST.DIRVIEW_VIMUSERS);
+      usersView.refresh();
+
+      // Pass 0 - Add any new domains
+      updateNotesDomainNames(userUnids);
+
+      // Pass 1 - Update the modified groups and the groups that
+      // contain them
+      Set<String> groupNames = new LinkedHashSet<String>();
+      Set<String> affectedUserUnids = new LinkedHashSet<String>(userUnids);
+      for (String unid : groupUnids) {
+        getModifiedGroup(unid, groupNames, affectedUserUnids, usersView);
+      }
+      // The nested groups before the update come from the cache.
+      Set<Long> affectedGroupIds = getGroupIds(groupNames);
+      getChildGroupsForGroups(new ArrayList<Long>(affectedGroupIds),
+          affectedGroupIds);
+
+      loadGroupGraph();
+      Set<String> affectedGroupUnids = new LinkedHashSet<String>(groupUnids);
+      for (String groupName : groupNames) {
+        int node = groupGraph.getNode(groupName);
+        if (node == -1) {
+          continue;
+        }
+        for (int parentNode : groupGraph.getAncestors(node)) {
+          String unid = groupGraph.getUnid(parentNode);
+          if (unid != null) {
+            affectedGroupUnids.add(unid);
+          }
+        }
+      }
+      LOGGER.log(Level.FINE, "Updating {0} modified and parent groups",
+          affectedGroupUnids.size());
+      updateGroups(new ArrayList<String>(affectedGroupUnids));
+
+      // Pass 2 - Update the modified people and the people in the
+      // modified groups and the groups nested in them
+      for (String groupName : groupNames) {
+        int node = groupGraph.getNode(groupName);
+        if (node == -1) {
+          continue;
+        }
+        affectedGroupIds.add(getGroupId(node, false));
+        for (int childNode : groupGraph.getDescendants(node)) {
+          affectedGroupIds.add(getGroupId(childNode, false));
+        }
+      }
+      affectedGroupIds.remove(-1L);
+      for (String notesName : getUserNamesInGroups(affectedGroupIds)) {
+        String unid = getUnidByKey(usersView, notesName);
+        if (unid != null) {
+          affectedUserUnids.add(unid);
+        }
+      }
+      LOGGER.log(Level.FINE, "Updating {0} modified and affected people",
+          affectedUserUnids.size());
+      updateUsers(new ArrayList<String>(affectedUserUnids));
+    } finally {
+      Util.recycle(usersView);
+      LOGGER.exiting(CLASS_NAME, METHOD);
+    }
+  }
+
+  /*
+   * Adds the name of a modified group and the UNIDs of the people who
+   * are members of it.
+   */
+  @SuppressWarnings("unchecked")
+  private void getModifiedGroup(String unid, Set<String> groupNames,
+      Set<String> userUnids, NotesView usersView) {
+    NotesDocument groupDoc = getDocumentByUnid(directoryDatabase, unid);
+    if (groupDoc == null) {
+      LOGGER.log(Level.FINEST, "Group document [{0}] is not found", unid);
+      return;
+    }
+    try {
+      String groupName = groupDoc.getItemValueString(NCCONST.GITM_LISTNAME);
+      if (Strings.isNullOrEmpty(groupName) || !isAccessControlGroup(groupDoc)) {
+        return;
+      }
+      groupNames.add(groupName.toLowerCase());
+      Vector<String> groupMembers = groupDoc.getItemValue(NCCONST.GITM_MEMBERS);
+      for (String member : groupMembers) {
+        if (member.startsWith("*")) {
+          continue;
+        }
+        String memberUnid = getUnidByKey(usersView, member);
+        if (memberUnid != null) {
+          userUnids.add(memberUnid);
+        }
+      }
+    } catch (RepositoryException e) {
+      LOGGER.log(Level.WARNING, "Failed to read modified group [" + unid + "]",
+          e);
+    } finally {
+      Util.recycle(groupDoc);
+    }
+  }
+
+  /*
+   * Looks up a person or group document by name and returns its UNID,
+   * or null if there is no document with that name.
+   */
+  private String getUnidByKey(NotesView view, String name) {
+    NotesDocument doc = null;
+    try {
+      String key = name;
+      if (Util.isCanonical(name)) {
+        String abbrevFormula = String.format("@Name([ABBREVIATE];\"%s\")",
+            name);
+        key = notesSession.evaluate(abbrevFormula).elementAt(0).toString();
+      }
+      doc = view.getDocumentByKey(key, true);
+      return (doc == null) ? null : doc.getUniversalID();
+    } catch (RepositoryException e) {
+      LOGGER.log(Level.WARNING, "Failed to look up " + name, e);
+      return null;
+    } finally {
+      Util.recycle(doc);
+    }
+  }
+
+  private Set<Long> getGroupIds(Set<String> groupNames) {
+    Set<Long> groupIds = new LinkedHashSet<Long>();
+    for (String groupName : groupNames) {
+      long groupId = verifyGroupExists(groupName, false);
+      if (groupId != -1L) {
+        groupIds.add(groupId);
+      }
+    }
+    return groupIds;
+  }
+
+  private void getChildGroupsForGroups(Collection<Long> groupIds,
+      Set<Long> childGroups) throws RepositoryException {
+    PreparedStatement pstmt = null;
+    try {
+      pstmt = conn.prepareStatement("select childgroupid from "
+          + groupChildrenTableName + " where parentgroupid = ?");
+      for (Long groupId : groupIds) {
+        pstmt.setLong(1, groupId);
+        ResultSet rs = pstmt.executeQuery();
+        try {
+          while (rs.next()) {
+            childGroups.add(rs.getLong(1));
+          }
+        } finally {
+          Util.close(rs);
+        }
+      }
+    } catch (SQLException e) {
+      throw new RepositoryException("Failure getting child groups", e);
+    } finally {
+      Util.close(pstmt);
+    }
+  }
+
+  private Set<String> getUserNamesInGroups(Set<Long> groupIds)
+      throws RepositoryException {
+    Set<String> notesNames = new LinkedHashSet<String>();
+    PreparedStatement pstmt = null;
+    try {
+      pstmt = conn.prepareStatement("select u.notesname from "
+          + userTableName + " u, " + userGroupsTableName + " ug"
+          + " where u.userid = ug.userid and ug.groupid = ?");
+      for (Long groupId : groupIds) {
+        pstmt.setLong(1, groupId);
+        ResultSet rs = pstmt.executeQuery();
+        try {
+          while (rs.next()) {
+            notesNames.add(rs.getString(1));
+          }
+        } finally {
+          Util.close(rs);
+        }
+      }
+    } catch (SQLException e) {
+      throw new RepositoryException("Failure getting group members", e);
+    } finally {
+      Util.close(pstmt);
+    }
+    return notesNames;
+  }
+
+  /**
+   * Store all wildcard domains in H2 and build a domain cache.
+   */
+  private void updateNotesDomainNames() {
+    final String METHOD = "updateNotesDomainNames";
+    LOGGER.entering(CLASS_NAME, METHOD);
+
+    long timeStart = System.currentTimeMillis();
+
+    NotesSweepMonitor monitor =
+        new NotesSweepMonitor(METHOD, NCCONST.DIRECTORY_SWEEP_CHUNK_SIZE);
+    ViewEntryIterator entries =
+        new ViewEntryIterator(directoryDatabase, NCCONST.DIRVIEW_VIMUSERS);
+    while (entries.hasNext()) {
+      NotesViewEntry entry = entries.next();
+      try {
+        String fullName = getPersonFullName(entry);
+        if (fullName != null) {
+          updateNotesDomainNames(fullName);
+        }
+      } catch (RepositoryException re) {
+        LOGGER.log(Level.WARNING,
+            "Failed to update Notes domain names for person", re);
+      } finally {
+        // Write the new domain groups for each chunk of people.
+        if (monitor.processed()) {
+          commitNewIds();
+        }
+      }
+    }
+    commitNewIds();
+    monitor.finish();
+
+    long timeFinish = System.currentTimeMillis();
+    LOGGER.log(Level.FINEST, "Update Notes domain cache [{0}ms]: {1}",
+        new Object[] {(timeFinish - timeStart), notesDomainNames});
+    LOGGER.exiting(CLASS_NAME, METHOD);
+  }
+
+  /**
+   * Store the wildcard domains of the given people in H2 and add them
+   * to the domain cache.
+   */
+  private void updateNotesDomainNames(List<String> userUnids) {
+    final String METHOD = "updateNotesDomainNames";
+    LOGGER.entering(CLASS_NAME, METHOD);
+
+    for (String unid : userUnids) {
+      NotesDocument doc = getDocumentByUnid(directoryDatabase, unid);
+      if (doc == null) {
+        LOGGER.log(Level.FINEST, "Document [{0}] is not found in {1} database",
+            new Object[] {unid, getDatabaseFilePath(directoryDatabase)});
+        continue;
+      }
+      try {
+        Vector fullNames = doc.getItemValue(NCCONST.PITM_FULLNAME);
+        if (fullNames.size() > 0) {
+          updateNotesDomainNames(fullNames.get(0).toString());
+        }
+      } catch (RepositoryException re) {
+        LOGGER.log(Level.WARNING,
+            "Failed to update Notes domain names for person document ["
+            + unid + "]", re);
+      } finally {
+        Util.recycle(doc);
+      }
+    }
+    commitNewIds();
+    LOGGER.exiting(CLASS_NAME, METHOD);
+  }
+
+  private void updateNotesDomainNames(String fullName)
+      throws RepositoryException {
+    // Create domains/OUs as groups in H2 if not existed and
+    // update domain cache
+    List<String> canonicalOUs =
+        notesDomainNames.computeExpandedWildcardDomainNames(fullName);
+    verifyMultiDomainsExist(canonicalOUs, true);
+  }
+
+  /*
+   * Gets the Notes name of a person from the first column of
+   * NCCONST.DIRVIEW_VIMUSERS. The person document is only opened when
+   * the column does not hold a canonical name.
+   */
+  private String getPersonFullName(NotesViewEntry entry)
+      throws RepositoryException {
+    Vector columnValues = entry.getColumnValues();
+    if (columnValues.size() > 0) {
+      Object value = columnValues.get(0);
+      if (value instanceof Vector && ((Vector) value).size() > 0) {
+        value = ((Vector) value).get(0);
+      }
+      if (value instanceof String && Util.isCanonical((String) value)) {
+        return (String) value;
+      }
+    }
+    NotesDocument doc = entry.getDocument();
+    if (doc == null) {
+      return null;
+    }
+    try {
+      Vector fullNames = doc.getItemValue(NCCONST.PITM_FULLNAME);
+      if (fullNames.size() == 0) {
+        return null;
+      }
+      return fullNames.get(0).toString();
+    } finally {
+      Util.recycle(doc);
+    }
+  }
+
+  /*
+   * Helper method to lookup document by UNID.
+   */
+  private NotesDocument getDocumentByUnid(NotesDatabase db, String unid) {
     try {
       return db.getDocumentByUNID(unid);
     } catch (RepositoryException e) {
@@ -921,6 +1871,15 @@ class NotesUserGroupManager {
     PreparedStatement pstmt = null;
     ResultSet generatedKeys = null;
     try {
+      if (cacheIds != null) {
+        String key = groupName.toLowerCase();
+        long groupId = cacheIds.getGroupId(key);
+        if (groupId == -1L && createIfNotExists) {
+          groupId = cacheIds.addGroup(key);
+          LOGGER.log(Level.FINE, "New {0} group is added to cache", groupName);
+        }
+        return groupId;
+      }
       pstmt = conn.prepareStatement(
           "select * from " + groupTableName + " where groupname = ?",
           ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE);
@@ -973,195 +1932,564 @@ class NotesUserGroupManager {
    * records.
    */
   @VisibleForTesting
-  void updateUsers(List<String> userUnids) {
+  void updateUsers(Iterable<String> userUnids) {
     final String METHOD = "updateUsers";
     LOGGER.entering(CLASS_NAME, METHOD);
 
     long timeStart = System.currentTimeMillis();
-    NotesView serverAccessView = null;
+    PersonReader reader = null;
+    UserWriter writer = new UserWriter();
+    Set<String> unselectedUserNames = null;
     try {
-      String userSelectionFormula = connectorSession.getUserSelectionFormula();
-      String userNameFormula = connectorSession.getUserNameFormula();
-      LOGGER.log(Level.FINEST,
-          "User selection formula is: {0}\nUser name formula is: {1}",
-          new Object[] { userSelectionFormula, userNameFormula });
-      serverAccessView = directoryDatabase.getView(
-          NCCONST.DIRVIEW_SERVERACCESS);
-      serverAccessView.refresh();
-
-      int count = 0;
+      reader = new PersonReader(notesSession, directoryDatabase, METHOD);
+      unselectedUserNames = reader.getUnselectedUserNames();
+      writer.open();
       for (String unid : userUnids) {
         NotesDocument personDoc = getDocumentByUnid(directoryDatabase, unid);
         if (personDoc == null) {
           LOGGER.log(Level.FINEST, "Person document [{0}] is not found", unid);
-        } else {
-          String notesName = null;
-          try {
-            if (count++ % NCCONST.GC_INVOCATION_INTERVAL == 0) {
-              Util.invokeGC();
-            }
-            if (!personDoc.getItemValueString(NCCONST.ITMFORM).contentEquals(
-                    NCCONST.DIRFORM_PERSON)) {
-              continue;
-            }
-            // The first value in this field is the Notes name; other
-            // names may be present.
-            Vector nameVector = personDoc.getItemValue(NCCONST.PITM_FULLNAME);
-            if (nameVector.size() == 0) {
-              continue;
-            }
-            String storedName = nameVector.firstElement().toString();
-            notesName = notesSession.createName(storedName)
-                .getCanonical().toLowerCase();
-            LOGGER.log(Level.FINEST,
-                "Processing user: {0}; name from directory was: {1}",
-                new Object[] { notesName, storedName});
-            // Get their PVI
-            String pvi = evaluatePvi(userNameFormula, personDoc);
-            if (0 == pvi.length()) {
-              LOGGER.log(Level.WARNING,
-                  "Could not evaluate PVI username for: {0}", notesName);
-              continue;
-            }
-            LOGGER.log(Level.FINEST, "PVI: {0}", pvi);
-            // Does this person match the selection formula?
-            boolean selected = checkPersonSelectionFormula(userSelectionFormula,
-                personDoc);
-            if (!selected) {
-              LOGGER.log(Level.FINEST, "User not selected: {0}", notesName);
-              continue;
-            }
-            updateUser(personDoc, notesName, pvi, serverAccessView);
-            // Log user info
-            if (LOGGER.isLoggable(Level.FINE)) {
-              User user = getUser("gsaname", pvi);
-              LOGGER.log(Level.FINE, "All groups for {0}: {1}",
-                  new Object[] { user, user.getGroups() });
-            }
-          } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Failed to update user cache"
-                + (notesName != null ? " for " + notesName : ""), e);
-          } finally {
-            Util.recycle(personDoc);
+          writer.write(PersonUpdate.INCOMPLETE);
+          continue;
+        }
+        PersonUpdate update = reader.read(personDoc);
+        if (update != null) {
+          writer.write(update);
+        }
+      }
+      writer.flush();
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING, "Error processing users", e);
+      batchFailed = true;
+      liveUserNames = null;
+      rollback();
+    } finally {
+      writer.close();
+      if (reader != null) {
+        reader.recycle();
+      }
+    }
+    // A full update deletes the people who are not selected along
+    // with the deleted people in checkUserDeletions. Otherwise, these
+    // are modified people who are no longer selected.
+    if (liveUserNames == null && unselectedUserNames != null) {
+      for (String notesName : unselectedUserNames) {
+        try {
+          removeUser(notesName);
+        } catch (SQLException e) {
+          LOGGER.log(Level.WARNING,
+              "Failed to remove unselected user " + notesName, e);
+        }
+      }
+    }
+    long timeFinish = System.currentTimeMillis();
+    LOGGER.log(Level.FINE, "Update users: {0}ms", timeFinish - timeStart);
+    LOGGER.exiting(CLASS_NAME, METHOD);
+  }
+
+  /*
+   * Updates all of the users in NCCONST.DIRVIEW_VIMUSERS, reading the
+   * person documents with several threads. Each reader has its own
+   * Notes session, walks the view index, and reads every numThreads-th
+   * person. The user records are written by the calling thread, which
+   * keeps the cache connection and the group and user ids to itself.
+   */
+  private void updateUsersInParallel(int numThreads) {
+    updateUsersInParallel(numThreads, NCCONST.DIRECTORY_QUEUE_SIZE);
+  }
+
+  @VisibleForTesting
+  void updateUsersInParallel(int numThreads, int queueSize) {
+    final String METHOD = "updateUsersInParallel";
+    LOGGER.entering(CLASS_NAME, METHOD);
+
+    long timeStart = System.currentTimeMillis();
+    LOGGER.log(Level.FINE, "Reading people with {0} threads", numThreads);
+    BlockingQueue<PersonUpdate> queue =
+        new ArrayBlockingQueue<PersonUpdate>(queueSize);
+    AtomicBoolean aborted = new AtomicBoolean(false);
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+        new ThreadFactory() {
+          private int threadCount = 0;
+
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r,
+                NotesUserGroupManager.class.getSimpleName() + threadCount++);
           }
+        });
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    UserWriter writer = new UserWriter();
+    try {
+      for (int i = 0; i < numThreads; i++) {
+        futures.add(executor.submit(
+            new UserReader(i, numThreads, queue, aborted)));
+      }
+      executor.shutdown();
+      writer.open();
+      int readers = numThreads;
+      while (readers > 0) {
+        PersonUpdate update = queue.take();
+        if (update == PersonUpdate.END) {
+          readers--;
+        } else {
+          writer.write(update);
+        }
+      }
+      writer.flush();
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          futures.get(i).get();
+        } catch (ExecutionException e) {
+          LOGGER.log(Level.SEVERE, "Failed to read people in partition " + i,
+              e.getCause());
+          batchFailed = true;
+          liveUserNames = null;
         }
       }
+    } catch (InterruptedException e) {
+      LOGGER.log(Level.WARNING, "Interrupted while updating users", e);
+      batchFailed = true;
+      liveUserNames = null;
+      rollback();
+      Thread.currentThread().interrupt();
     } catch (Exception e) {
       LOGGER.log(Level.WARNING, "Error processing users", e);
+      batchFailed = true;
+      liveUserNames = null;
+      rollback();
     } finally {
-      Util.recycle(serverAccessView);
+      // Tell the readers that nobody is taking from the queue, so
+      // that none of them blocks on it after being interrupted.
+      aborted.set(true);
+      executor.shutdownNow();
+      queue.clear();
+      writer.close();
       LOGGER.exiting(CLASS_NAME, METHOD);
     }
     long timeFinish = System.currentTimeMillis();
     LOGGER.log(Level.FINE, "Update users: {0}ms", timeFinish - timeStart);
   }
 
-  private void updateUser(NotesDocument personDoc,
-      String notesName, String pvi, NotesView serverAccessView) {
+  /*
+   * Reads one partition of the people in NCCONST.DIRVIEW_VIMUSERS
+   * with a new session, and queues them for the writer. The queue
+   * always ends with PersonUpdate.END, even if the reader fails,
+   * unless the update has been aborted.
+   */
+  private class UserReader implements Callable<Void> {
+    private final int partition;
+    private final int numPartitions;
+    private final BlockingQueue<PersonUpdate> queue;
+    private final AtomicBoolean aborted;
+
+    UserReader(int partition, int numPartitions,
+        BlockingQueue<PersonUpdate> queue, AtomicBoolean aborted) {
+      this.partition = partition;
+      this.numPartitions = numPartitions;
+      this.queue = queue;
+      this.aborted = aborted;
+    }
+
+    @Override
+    public Void call() throws RepositoryException, InterruptedException {
+      NotesSession ns = null;
+      NotesDatabase directory = null;
+      PersonReader reader = null;
+      try {
+        ns = connectorSession.createNotesSession();
+        directory = ns.getDatabase(connectorSession.getServer(),
+            connectorSession.getDirectory());
+        reader = new PersonReader(ns, directory, "readUsers" + partition);
+        ViewEntryIterator entries =
+            new ViewEntryIterator(directory, NCCONST.DIRVIEW_VIMUSERS);
+        for (int index = 0; entries.hasNext(); index++) {
+          NotesViewEntry entry = entries.next();
+          if (index % numPartitions != partition) {
+            continue;
+          }
+          PersonUpdate update = reader.read(entry.getDocument());
+          if (update != null) {
+            queue.put(update);
+          }
+        }
+      } finally {
+        if (reader != null) {
+          reader.recycle();
+        }
+        Util.recycle(directory);
+        if (ns != null) {
+          connectorSession.closeNotesSession(ns);
+        }
+        if (!aborted.get()) {
+          try {
+            queue.put(PersonUpdate.END);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+      return null;
+    }
+  }
+
+  /*
+   * The Notes data needed to update the cache records of a user.
+   */
+  private static class PersonUpdate {
+    /** Marks the end of the people queued by a reader. */
+    static final PersonUpdate END = new PersonUpdate(null, null);
+
+    /** Marks a person who could not be read. */
+    static final PersonUpdate INCOMPLETE = new PersonUpdate(null, null);
+
+    final String notesName;
+
+    /** The PVI of the user, or empty if the user is not to be updated. */
+    final String pvi;
+
+    /** The groups listing the user in NCCONST.DIRVIEW_SERVERACCESS. */
+    final List<String> accessGroupNames = new ArrayList<String>();
+
+    /**
+     * The groups listing each of the user's wildcard names in
+     * NCCONST.DIRVIEW_SERVERACCESS, keyed by wildcard name.
+     */
+    final Map<String, List<String>> wildcardGroupNames =
+        new LinkedHashMap<String, List<String>>();
+
+    PersonUpdate(String notesName, String pvi) {
+      this.notesName = notesName;
+      this.pvi = pvi;
+    }
+  }
+
+  /*
+   * Reads people from the directory with one Notes session. Readers
+   * use only their own Notes objects, so that each reader thread can
+   * have one.
+   */
+  private class PersonReader {
+    private final NotesSession session;
+    private final NotesView serverAccessView;
+    private final String userSelectionFormula;
+    private final String userNameFormula;
+    private final Set<String> unselectedUserNames = new HashSet<String>();
+    private final NotesSweepMonitor monitor;
+    private final Map<String, List<String>> wildcardGroupNames =
+        new HashMap<String, List<String>>();
+
+    PersonReader(NotesSession session, NotesDatabase directory,
+        String sweepName) throws RepositoryException {
+      this.session = session;
+      this.userSelectionFormula = connectorSession.getUserSelectionFormula();
+      this.userNameFormula = connectorSession.getUserNameFormula();
+      LOGGER.log(Level.FINEST,
+          "User selection formula is: {0}\nUser name formula is: {1}",
+          new Object[] { userSelectionFormula, userNameFormula });
+      this.monitor =
+          new NotesSweepMonitor(sweepName, NCCONST.DIRECTORY_SWEEP_CHUNK_SIZE);
+      this.serverAccessView = directory.getView(NCCONST.DIRVIEW_SERVERACCESS);
+      serverAccessView.refresh();
+    }
+
+    /**
+     * Reads a person document, and recycles it.
+     *
+     * @return the data for the user, null if the person is not
+     * selected, or PersonUpdate.INCOMPLETE if the person cannot be read
+     */
+    PersonUpdate read(NotesDocument personDoc) {
+      String notesName = null;
+      try {
+        if (!personDoc.getItemValueString(NCCONST.ITMFORM).contentEquals(
+                NCCONST.DIRFORM_PERSON)) {
+          return null;
+        }
+        // The first value in this field is the Notes name; other
+        // names may be present.
+        Vector nameVector = personDoc.getItemValue(NCCONST.PITM_FULLNAME);
+        if (nameVector.size() == 0) {
+          return null;
+        }
+        String storedName = nameVector.firstElement().toString();
+        notesName = getCanonicalName(session, storedName);
+        if (notesName == null) {
+          return null;
+        }
+        notesName = notesName.toLowerCase();
+        LOGGER.log(Level.FINEST,
+            "Processing user: {0}; name from directory was: {1}",
+            new Object[] { notesName, storedName});
+        // Does this person match the selection formula?
+        boolean selected = checkPersonSelectionFormula(session,
+            userSelectionFormula, personDoc);
+        if (!selected) {
+          LOGGER.log(Level.FINEST, "User not selected: {0}", notesName);
+          unselectedUserNames.add(notesName);
+          return null;
+        }
+        // Get their PVI. A selected person without one is not updated,
+        // but is not deleted either.
+        String pvi = evaluatePvi(session, userNameFormula, personDoc);
+        if (0 == pvi.length()) {
+          LOGGER.log(Level.WARNING,
+              "Could not evaluate PVI username for: {0}", notesName);
+          return new PersonUpdate(notesName, pvi);
+        }
+        LOGGER.log(Level.FINEST, "PVI: {0}", pvi);
+        PersonUpdate update = new PersonUpdate(notesName, pvi);
+        getAccessGroupNames(notesName, update.accessGroupNames);
+        getAccessGroupNames(getCommonName(notesName),
+            update.accessGroupNames);
+        for (String ou : getDomainNames(notesName)) {
+          String wildcardName = "*/" + ou;
+          update.wildcardGroupNames.put(wildcardName,
+              getWildcardGroupNames(wildcardName));
+        }
+        update.wildcardGroupNames.put("*", getWildcardGroupNames("*"));
+        return update;
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING, "Failed to read person document"
+            + (notesName != null ? " for " + notesName : ""), e);
+        return PersonUpdate.INCOMPLETE;
+      } finally {
+        Util.recycle(personDoc);
+        monitor.processed();
+      }
+    }
+
+    /** Gets the lower case names of the people read and not selected. */
+    Set<String> getUnselectedUserNames() {
+      return unselectedUserNames;
+    }
+
+    void recycle() {
+      Util.recycle(serverAccessView);
+      monitor.finish();
+    }
+
+    private void getAccessGroupNames(String userName, List<String> groupNames)
+        throws RepositoryException {
+      if (Strings.isNullOrEmpty(userName)) {
+        return;
+      }
+      NotesViewNavigator nvnAccess = null;
+      NotesViewEntry nveAccessEntry = null;
+      try {
+        nvnAccess = serverAccessView.createViewNavFromCategory(userName);
+        for (nveAccessEntry = nvnAccess.getFirst();
+             nveAccessEntry != null;
+             nveAccessEntry = getNextViewEntry(nvnAccess, nveAccessEntry)) {
+          NotesDocument accessdoc = null;
+          try {
+            accessdoc = nveAccessEntry.getDocument();
+            groupNames.add(accessdoc.getItemValueString(NCCONST.GITM_LISTNAME));
+          } finally {
+            Util.recycle(accessdoc);
+          }
+        }
+      } finally {
+        Util.recycle(nveAccessEntry);
+        Util.recycle(nvnAccess);
+      }
+    }
+
+    /*
+     * Gets the groups with the given wildcard name as a member. The
+     * wildcard names are shared by many people, so the groups are
+     * looked up once per reader.
+     */
+    private List<String> getWildcardGroupNames(String wildcardName) {
+      wildcardName = wildcardName.toLowerCase();
+      List<String> groupNames = wildcardGroupNames.get(wildcardName);
+      if (groupNames != null) {
+        return groupNames;
+      }
+      groupNames = new ArrayList<String>();
+      NotesViewNavigator viewNav = null;
+      NotesViewEntry entry = null;
+      try {
+        viewNav = serverAccessView.createViewNavFromCategory(wildcardName);
+        for (entry = viewNav.getFirst(); entry != null;
+             entry = getNextViewEntry(viewNav, entry)) {
+          NotesDocument groupDoc = entry.getDocument();
+          try {
+            groupNames.add(groupDoc.getItemValueString(NCCONST.GITM_LISTNAME));
+          } finally {
+            Util.recycle(groupDoc);
+          }
+        }
+        wildcardGroupNames.put(wildcardName, groupNames);
+      } catch (RepositoryException e) {
+        LOGGER.log(Level.WARNING, "Failed to lookup groups for " + wildcardName
+            + " in " + NCCONST.DIRVIEW_SERVERACCESS + " view", e);
+      } finally {
+        Util.recycle(entry);
+        Util.recycle(viewNav);
+      }
+      return groupNames;
+    }
+  }
+
+  /*
+   * Writes user records to the cache in batches, committed in windows
+   * of users.
+   */
+  private class UserWriter {
+    private final Set<Long> pendingUsers = new HashSet<Long>();
+    private final int commitWindow = getCommitWindow();
+    private PreparedStatement deleteStmt;
+    private PreparedStatement insertStmt;
+    private boolean opened = false;
+
+    void open() throws SQLException {
+      conn.setAutoCommit(false);
+      opened = true;
+      deleteStmt = conn.prepareStatement("delete from " + userGroupsWriteTable
+          + " where userid = ?");
+      insertStmt = conn.prepareStatement("insert into " + userGroupsWriteTable
+          + " (userid, groupid) values(?, ?)");
+    }
+
+    void write(PersonUpdate update) {
+      if (update == PersonUpdate.INCOMPLETE) {
+        liveUserNames = null;
+        return;
+      }
+      if (liveUserNames != null) {
+        liveUserNames.add(update.notesName);
+      }
+      if (update.pvi.length() == 0) {
+        return;
+      }
+      try {
+        updateUser(update, deleteStmt, insertStmt, pendingUsers);
+        if (pendingUsers.size() >= commitWindow) {
+          executeBatches(pendingUsers, deleteStmt, insertStmt);
+        }
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING,
+            "Failed to update user cache for " + update.notesName, e);
+      }
+    }
+
+    void flush() {
+      executeBatches(pendingUsers, deleteStmt, insertStmt);
+    }
+
+    void close() {
+      Util.close(insertStmt);
+      Util.close(deleteStmt);
+      if (opened) {
+        try {
+          conn.setAutoCommit(true);
+        } catch (SQLException e1) {
+          LOGGER.log(Level.WARNING, "Reset AutoCommit failed", e1);
+        }
+      }
+    }
+  }
+
+  /*
+   * Adds the user/group records of a user to the statement batches.
+   * The user and any DN-based groups are created in the current
+   * transaction, which is committed along with the batches by
+   * executeBatches.
+   */
+  private void updateUser(PersonUpdate update,
+      PreparedStatement deleteStmt, PreparedStatement insertStmt,
+      Set<Long> pendingUsers) throws RepositoryException, SQLException {
     final String METHOD = "updateUser";
     LOGGER.entering(CLASS_NAME, METHOD);
 
-    PreparedStatement pstmt = null;
     try {
-      conn.setAutoCommit(false);
-
       // Create the user record (if needed).
-      long userId = verifyUserExists(notesName, pvi, true);
+      long userId = verifyUserExists(update.notesName, update.pvi, true);
       Set<Long> parentGroups = new LinkedHashSet<Long>();
-      getParentGroupsForUser(notesName, parentGroups, serverAccessView);
-      getParentGroupsForUser(NotesAuthorizationManager.getCommonName(notesName),
-          parentGroups, serverAccessView);
+      for (String groupName : update.accessGroupNames) {
+        getParentGroupsForAccessGroup(groupName, parentGroups);
+      }
       // getGroupsFromDN will add the DN-based groups to the
       // group cache if they don't exist, so we want it in the
       // transaction.
-      getGroupsFromDN(notesName, parentGroups, serverAccessView);
+      getGroupsFromDN(update, parentGroups);
+      LOGGER.log(Level.FINE, "All group ids for {0}: {1}",
+          new Object[] { update.notesName, parentGroups });
+      // The batched deletes are executed before the batched inserts,
+      // so a user can only be batched once.
+      if (pendingUsers.contains(userId)) {
+        executeBatches(pendingUsers, deleteStmt, insertStmt);
+      }
       // Delete previous user/group records for this user.
-      pstmt = conn.prepareStatement(
-          "delete from " + userGroupsTableName
-          + " where userid = ?");
-      pstmt.setLong(1, userId);
-      pstmt.executeUpdate();
+      deleteStmt.setLong(1, userId);
+      deleteStmt.addBatch();
       // Update user/group records.
-      pstmt = conn.prepareStatement("insert into " + userGroupsTableName
-          + " (userid, groupid) values(?, ?)");
-      pstmt.setLong(1, userId);
+      insertStmt.setLong(1, userId);
       for (Long groupId : parentGroups) {
-        pstmt.setLong(2, groupId);
-        pstmt.executeUpdate();
-      }
-      conn.commit();
-    } catch (Exception e) {
-      LOGGER.log(Level.WARNING,
-          "Error updating user data for: " + notesName, e);
-      try {
-        conn.rollback();
-      } catch (SQLException e1) {
-        LOGGER.log(Level.WARNING, "Rollback failed", e1);
+        insertStmt.setLong(2, groupId);
+        insertStmt.addBatch();
       }
-      Util.close(pstmt);
+      pendingUsers.add(userId);
     } finally {
-      try {
-        conn.setAutoCommit(true);
-      } catch (SQLException e1) {
-        LOGGER.log(Level.WARNING, "Reset AutoCommit failed", e1);
-      }
       LOGGER.exiting(CLASS_NAME, METHOD);
     }
   }
 
-  @SuppressWarnings("unchecked")
-  private void getParentGroupsForUser(String userName,
-      Set<Long> parentGroups, NotesView serverAccessView)
-      throws RepositoryException {
-    final String METHOD = "getParentGroupsForUser";
-    LOGGER.entering(CLASS_NAME, METHOD);
-
-    if (Strings.isNullOrEmpty(userName)) {
+  private void getParentGroupsForAccessGroup(String groupName,
+      Set<Long> parentGroups) {
+    if (getParentGroupsFromGraph(groupName, parentGroups)) {
       return;
     }
-    NotesViewNavigator nvnAccess = null;
-    NotesViewEntry nveAccessEntry = null;
+    PreparedStatement pstmt = null;
     try {
-      nvnAccess = serverAccessView.createViewNavFromCategory(userName);
-      for (nveAccessEntry = nvnAccess.getFirst();
-           nveAccessEntry != null;
-           nveAccessEntry = getNextViewEntry(nvnAccess, nveAccessEntry)) {
-        NotesDocument accessdoc = null;
-        try {
-          accessdoc = nveAccessEntry.getDocument();
-          String groupName =
-              accessdoc.getItemValueString(NCCONST.GITM_LISTNAME);
-          PreparedStatement pstmt = null;
-          try {
-            pstmt = conn.prepareStatement("select groupId from "
-                + groupTableName + " where groupName = ?");
-            pstmt.setString(1, groupName.toLowerCase());
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-              long id = rs.getLong(1);
-              parentGroups.add(id);
-              getParentGroupsForGroup(id, parentGroups);
-            } else {
-              LOGGER.log(Level.WARNING,
-                  "No group record for group: {0}", groupName);
-            }
-          } catch (Exception e) {
-            LOGGER.log(Level.WARNING,
-                "Failure looking up group record for " + groupName, e);
-          } finally {
-            Util.close(pstmt);
-          }
-        } finally {
-          Util.recycle(accessdoc);
-        }
+      pstmt = conn.prepareStatement("select groupId from "
+          + groupTableName + " where groupName = ?");
+      pstmt.setString(1, groupName.toLowerCase());
+      ResultSet rs = pstmt.executeQuery();
+      if (rs.next()) {
+        long id = rs.getLong(1);
+        parentGroups.add(id);
+        getParentGroupsForGroup(id, parentGroups);
+      } else {
+        LOGGER.log(Level.WARNING,
+            "No group record for group: {0}", groupName);
       }
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING,
+          "Failure looking up group record for " + groupName, e);
     } finally {
-      Util.recycle(nveAccessEntry);
-      Util.recycle(nvnAccess);
-      LOGGER.exiting(CLASS_NAME, METHOD);
+      Util.close(pstmt);
     }
   }
 
+  /*
+   * Adds the group and the groups that contain it from the group
+   * graph. Returns false if the group is not in the graph.
+   */
+  private boolean getParentGroupsFromGraph(String groupName,
+      Set<Long> parentGroups) {
+    if (groupGraph == null) {
+      return false;
+    }
+    int node = groupGraph.getNode(groupName.toLowerCase());
+    if (node == -1) {
+      return false;
+    }
+    long id = getGroupId(node, false);
+    if (id == -1L) {
+      LOGGER.log(Level.WARNING, "No group record for group: {0}", groupName);
+      return true;
+    }
+    parentGroups.add(id);
+    for (int parentNode : groupGraph.getAncestors(node)) {
+      long parentId = getGroupId(parentNode, false);
+      if (parentId != -1L) {
+        parentGroups.add(parentId);
+      }
+    }
+    return true;
+  }
+
   private void getParentGroupsForGroup(long groupId,
       Set<Long> parentGroups) throws RepositoryException {
     final String METHOD = "getParentGroupsForGroup";
@@ -1189,15 +2517,25 @@ class NotesUserGroupManager {
     }
   }
 
-  private void getGroupsFromDN(String dn, Set<Long> groups, 
-      NotesView serverAccessView) {
+  /*
+   * Gets the OUs of a DN, from the longest to the shortest.
+   */
+  private static List<String> getDomainNames(String dn) {
+    // TODO: use the Name class to parse the name?
+    List<String> domainNames = new ArrayList<String>();
+    for (int index = dn.indexOf('/'); index != -1; index = dn.indexOf('/')) {
+      dn = dn.substring(index + 1);
+      domainNames.add(dn);
+    }
+    return domainNames;
+  }
+
+  private void getGroupsFromDN(PersonUpdate update, Set<Long> groups) {
     final String METHOD = "getGroupsFromDN";
     LOGGER.entering(CLASS_NAME, METHOD);
 
-    // TODO: use the Name class to parse the name?
-    for (int index = dn.indexOf('/'); index != -1; index = dn.indexOf('/')) {
+    for (String ou : getDomainNames(update.notesName)) {
       try {
-        String ou = dn.substring(index + 1);
         LOGGER.log(Level.FINER, "Group list adding OU {0}", ou);
         long groupId = verifyDomainExists(ou, true);
         if (groupId != -1L) {
@@ -1205,67 +2543,48 @@ class NotesUserGroupManager {
           groups.add(groupId);
         }
         // Prepend wildcard to each OU
-        mapWildcardGroup("*/" + ou, groups, serverAccessView);
-        dn = ou;
+        String wildcardName = "*/" + ou;
+        mapWildcardGroup(wildcardName,
+            update.wildcardGroupNames.get(wildcardName), groups);
       } catch (Exception e) {
-        LOGGER.log(Level.WARNING, "Error creating group from dn: " + dn, e);
+        LOGGER.log(Level.WARNING, "Error creating group from dn: " + ou, e);
       }
     }
-    mapWildcardGroup("*", groups, serverAccessView);
+    mapWildcardGroup("*", update.wildcardGroupNames.get("*"), groups);
     LOGGER.exiting(CLASS_NAME, METHOD);
   }
 
-  private void mapWildcardGroup(String wildcardName, Set<Long> groups,
-      NotesView serverAccessView) {
-    long wildcardGroupId = verifyDomainExists(wildcardName, true);
-    if (wildcardGroupId != -1L) {
-      markAsPseudoGroup(wildcardGroupId, wildcardName);
-      groups.add(wildcardGroupId);
-      getGroupsWithWildcardMembers(wildcardName.toLowerCase(), groups, 
-          serverAccessView);
-    }
-  }
-
-  private void getGroupsWithWildcardMembers(String wildcardName, 
-      Set<Long> groups, NotesView serverAccessView) {
-    final String METHOD = "getGroupsWithWildcardMembers";
-    LOGGER.entering(CLASS_NAME, METHOD);
-
-    if (Strings.isNullOrEmpty(wildcardName)) {
-      return;
-    }
-    NotesViewNavigator viewNav = null;
-    NotesViewEntry entry = null;
-    try {
-      viewNav = serverAccessView.createViewNavFromCategory(wildcardName);
-      NotesViewEntry nextEntry;
-      entry = viewNav.getFirst();
-      while (entry != null) {
-        String groupName = 
-            entry.getDocument().getItemValueString(NCCONST.GITM_LISTNAME);
+  private void mapWildcardGroup(String wildcardName,
+      List<String> memberGroupNames, Set<Long> groups) {
+    long wildcardGroupId = verifyDomainExists(wildcardName, true);
+    if (wildcardGroupId != -1L) {
+      markAsPseudoGroup(wildcardGroupId, wildcardName);
+      groups.add(wildcardGroupId);
+      if (memberGroupNames != null) {
         // Verify group in H2 and add group
-        long groupId = verifyGroupExists(groupName, true);
-        if (groupId != -1L) {
-          groups.add(new Long(groupId));
+        for (String groupName : memberGroupNames) {
+          long groupId = verifyGroupExists(groupName, true);
+          if (groupId != -1L) {
+            groups.add(groupId);
+          }
         }
-        nextEntry = viewNav.getNext(entry);
-        entry.recycle();
-        entry = nextEntry;
       }
-    } catch (RepositoryException e) {
-      LOGGER.log(Level.WARNING, "Failed to lookup groups for " + wildcardName
-          + " in " + NCCONST.DIRVIEW_SERVERACCESS + " view", e);
-    } finally {
-      Util.recycle(entry);
-      Util.recycle(viewNav);
     }
-    LOGGER.exiting(CLASS_NAME, METHOD);
   }
 
+  /*
+   * Marks a group as a pseudo-group once per update. New groups are
+   * marked when writeNewIds inserts them.
+   */
   private void markAsPseudoGroup(long groupId, String groupName) {
     final String METHOD = "markAsPseudoGroup";
     LOGGER.entering(CLASS_NAME, METHOD);
 
+    if (!pseudoGroupIds.add(groupId) || (cacheIds != null
+        && cacheIds.getNewGroups().containsKey(groupName.toLowerCase()))) {
+      LOGGER.exiting(CLASS_NAME, METHOD);
+      return;
+    }
     Statement stmt = null;
     try {
       LOGGER.log(Level.FINEST, "Marking group as pseudo-group: {0}/{1}",
@@ -1292,6 +2611,28 @@ class NotesUserGroupManager {
     LOGGER.entering(CLASS_NAME, METHOD);
 
     try {
+      if (cacheIds != null && notesName != null) {
+        String key = notesName.toLowerCase();
+        long userId = cacheIds.getUserId(key);
+        if (userId != -1L) {
+          // See if we need to update the pvi
+          if (pvi != null
+              && !pvi.toLowerCase().equals(cacheIds.getGsaName(key))) {
+            cacheIds.setGsaName(key, pvi.toLowerCase());
+          }
+          return userId;
+        }
+        if (!createIfNotExists) {
+          return -1L;
+        }
+        if (pvi == null) {
+          throw new RepositoryException(
+              "Failed to create user record without a PVI for " + notesName);
+        }
+        LOGGER.log(Level.FINE, "New user {0} [{1}] is added to cache",
+            new Object[] { key, pvi.toLowerCase() });
+        return cacheIds.addUser(key, pvi.toLowerCase());
+      }
       String userLookupSql;
       String key;
       if (notesName != null) {
@@ -1330,10 +2671,11 @@ class NotesUserGroupManager {
         rs = null;
         pstmt = conn.prepareStatement(
             "insert into " + userTableName
-            + "(notesname, gsaname) values (?, ?)",
+            + "(notesname, gsaname, commonname) values (?, ?, ?)",
             Statement.RETURN_GENERATED_KEYS);
         pstmt.setString(1, notesName.toLowerCase());
         pstmt.setString(2, pvi.toLowerCase());
+        pstmt.setString(3, getCommonName(notesName));
         int rows = pstmt.executeUpdate();
         if (rows == 0) {
           throw new RepositoryException(
@@ -1388,37 +2730,10 @@ class NotesUserGroupManager {
            connectorCrawlDatabaseDoc != null;
            connectorCrawlDatabaseDoc = getNextDocument(
                connectorCrawlDatabaseView, connectorCrawlDatabaseDoc)) {
-        NotesDatabase crawlDatabase = null;
-        String databaseName = null;
-        try {
-          databaseName = connectorCrawlDatabaseDoc.getItemValueString(
-              NCCONST.DITM_DBNAME);
-          String replicaId = connectorCrawlDatabaseDoc.getItemValueString(
-              NCCONST.DITM_REPLICAID);
-          LOGGER.log(Level.FINE,
-              "Updating roles for database: {0}", databaseName);
-          replicaIds.add(replicaId);
-
-          // TODO: is there anything that would cause us to skip
-          // checking roles for this database? Or remove all
-          // role-related records for this database?
-
-          crawlDatabase = notesSession.getDatabase(null, null);
-          crawlDatabase.openByReplicaID(
-              connectorCrawlDatabaseDoc.getItemValueString(NCCONST.DITM_SERVER),
-              replicaId);
-          if (!crawlDatabase.isOpen()) {
-            LOGGER.log(Level.FINE,
-                "Database could not be opened: {0}", databaseName);
-            continue;
-          }
-          updateRolesForDatabase(crawlDatabase, replicaId);
-        } catch (Exception e) {
-          LOGGER.log(Level.WARNING,
-              "Error updating roles for database: " + databaseName, e);
-        } finally {
-          Util.recycle(crawlDatabase);
-        }
+        String replicaId = connectorCrawlDatabaseDoc.getItemValueString(
+            NCCONST.DITM_REPLICAID);
+        replicaIds.add(replicaId);
+        updateRolesForDatabase(connectorCrawlDatabaseDoc, replicaId);
       }
       checkDatabaseDeletions(replicaIds);
     } catch (Exception e) {
@@ -1426,17 +2741,126 @@ class NotesUserGroupManager {
     } finally {
       Util.recycle(connectorCrawlDatabaseDoc);
       Util.recycle(connectorCrawlDatabaseView);
+      userCache.invalidateAll();
       LOGGER.exiting(CLASS_NAME, METHOD);
     }
   }
 
-  synchronized void updateRoles(NotesDatabase db) throws RepositoryException {
+  /*
+   * Opens the database described by a document in
+   * NCCONST.VIEWDATABASES and updates its roles.
+   */
+  private void updateRolesForDatabase(NotesDocument connectorCrawlDatabaseDoc,
+      String replicaId) {
+    NotesDatabase crawlDatabase = null;
+    String databaseName = null;
     try {
-      setUpResources(true);
-      updateRolesForDatabase(db, db.getReplicaID());
+      databaseName = connectorCrawlDatabaseDoc.getItemValueString(
+          NCCONST.DITM_DBNAME);
+      LOGGER.log(Level.FINE,
+          "Updating roles for database: {0}", databaseName);
+
+      // TODO: is there anything that would cause us to skip
+      // checking roles for this database? Or remove all
+      // role-related records for this database?
+
+      crawlDatabase = notesSession.getDatabase(null, null);
+      crawlDatabase.openByReplicaID(
+          connectorCrawlDatabaseDoc.getItemValueString(NCCONST.DITM_SERVER),
+          replicaId);
+      if (!crawlDatabase.isOpen()) {
+        LOGGER.log(Level.FINE,
+            "Database could not be opened: {0}", databaseName);
+        return;
+      }
+      updateRolesForDatabase(crawlDatabase, replicaId);
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING,
+          "Error updating roles for database: " + databaseName, e);
     } finally {
-      releaseResources();
+      Util.recycle(crawlDatabase);
+    }
+  }
+
+  /**
+   * Updates the roles of a database whose ACL has changed. If a cache
+   * update is running, the database is queued, and its roles are
+   * updated when the cache update is finished, rather than waiting
+   * for it here.
+   */
+  void updateRoles(NotesDatabase db) throws RepositoryException {
+    String replicaId = db.getReplicaID();
+    if (updateLock.tryLock()) {
+      try {
+        setUpResources(true);
+        updateRolesForDatabase(db, replicaId);
+      } finally {
+        releaseResources();
+        updateLock.unlock();
+        userCache.invalidateAll();
+      }
+    } else {
+      LOGGER.log(Level.FINE, "User cache update is running; "
+          + "queueing role update for database {0}", replicaId);
+      queuedRoleUpdates.add(replicaId);
+    }
+    updateQueuedRoles();
+  }
+
+  /*
+   * Updates the roles of the databases queued by updateRoles, unless
+   * another thread holds the lock. A thread that releases the lock
+   * calls this method, so a queued database is not left waiting for
+   * the next ACL change.
+   */
+  private void updateQueuedRoles() {
+    final String METHOD = "updateQueuedRoles";
+    LOGGER.entering(CLASS_NAME, METHOD);
+
+    while (!queuedRoleUpdates.isEmpty() && updateLock.tryLock()) {
+      NotesView connectorCrawlDatabaseView = null;
+      NotesDocument connectorCrawlDatabaseDoc = null;
+      Set<String> replicaIds = new HashSet<String>(queuedRoleUpdates);
+      queuedRoleUpdates.removeAll(replicaIds);
+      boolean updated = false;
+      try {
+        setUpResources(true);
+        connectorCrawlDatabaseView =
+            connectorDatabase.getView(NCCONST.VIEWDATABASES);
+        if (connectorCrawlDatabaseView == null) {
+          throw new RepositoryException(
+              "Unable to open view " + NCCONST.VIEWDATABASES);
+        }
+        connectorCrawlDatabaseView.refresh();
+        for (connectorCrawlDatabaseDoc =
+                 connectorCrawlDatabaseView.getFirstDocument();
+             connectorCrawlDatabaseDoc != null;
+             connectorCrawlDatabaseDoc = getNextDocument(
+                 connectorCrawlDatabaseView, connectorCrawlDatabaseDoc)) {
+          String replicaId = connectorCrawlDatabaseDoc.getItemValueString(
+              NCCONST.DITM_REPLICAID);
+          if (replicaIds.contains(replicaId)) {
+            updateRolesForDatabase(connectorCrawlDatabaseDoc, replicaId);
+          }
+        }
+        updated = true;
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING, "Error updating queued roles", e);
+      } finally {
+        Util.recycle(connectorCrawlDatabaseDoc);
+        Util.recycle(connectorCrawlDatabaseView);
+        releaseResources();
+        updateLock.unlock();
+        userCache.invalidateAll();
+      }
+      if (!updated) {
+        // Leave the databases queued for the next thread to release
+        // the lock.
+        queuedRoleUpdates.addAll(replicaIds);
+        break;
+      }
     }
+    LOGGER.exiting(CLASS_NAME, METHOD);
   }
 
   private void updateRolesForDatabase(NotesDatabase crawlDatabase,
@@ -1446,9 +2870,15 @@ class NotesUserGroupManager {
 
     NotesACL acl = null;
     NotesACLEntry aclEntry = null;
+    PreparedStatement userRolesStmt = null;
+    PreparedStatement groupRolesStmt = null;
     try {
       conn.setAutoCommit(false);
       deleteRolesForDatabase(databaseReplicaId);
+      userRolesStmt = conn.prepareStatement("insert into " + userRolesTableName
+          + " (userid, roleid) values(?, ?)");
+      groupRolesStmt = conn.prepareStatement("insert into "
+          + groupRolesTableName + " (groupid, roleid) values(?, ?)");
       acl = crawlDatabase.getACL();
       for (aclEntry = acl.getFirstEntry();
            aclEntry != null;
@@ -1459,16 +2889,20 @@ class NotesUserGroupManager {
         int roleType = aclEntry.getUserType();
         switch (roleType) {
           case NotesACLEntry.TYPE_PERSON:
-            updateRolesForUser(aclEntry.getName(), databaseReplicaId, roles);
+            updateRolesForUser(aclEntry.getName(), databaseReplicaId, roles,
+                userRolesStmt);
             break;
           case NotesACLEntry.TYPE_SERVER:
           case NotesACLEntry.TYPE_SERVER_GROUP:
             break;
           default: // Treat all other cases as groups.
-            updateRolesForGroup(aclEntry.getName(), databaseReplicaId, roles);
+            updateRolesForGroup(aclEntry.getName(), databaseReplicaId, roles,
+                groupRolesStmt);
             break;
         }
       }
+      userRolesStmt.executeBatch();
+      groupRolesStmt.executeBatch();
       conn.commit();
     } catch (Exception e) {
       try {
@@ -1484,6 +2918,8 @@ class NotesUserGroupManager {
       } catch (SQLException e) {
         LOGGER.log(Level.WARNING, "Failed to reset autocommit", e);
       }
+      Util.close(groupRolesStmt);
+      Util.close(userRolesStmt);
       Util.recycle(aclEntry);
       Util.recycle(acl);
       LOGGER.exiting(CLASS_NAME, METHOD);
@@ -1522,7 +2958,8 @@ class NotesUserGroupManager {
   }
 
   private void updateRolesForUser(String notesName, String databaseReplicaId,
-      Vector roles) throws SQLException, RepositoryException {
+      Vector roles, PreparedStatement pstmt)
+      throws SQLException, RepositoryException {
     final String METHOD = "updateRolesForUser";
     LOGGER.entering(CLASS_NAME, METHOD);
 
@@ -1535,25 +2972,18 @@ class NotesUserGroupManager {
         return;
       }
       long userId = users.get(notesName).getUserId();
-      PreparedStatement pstmt = null;
-      try {
-        pstmt = conn.prepareStatement("insert into " + userRolesTableName
-            + " (userid, roleid) values(?, ?)");
-        pstmt.setLong(1, userId);
-        for (Object role : roles) {
-          String roleName = role.toString();
-          long roleId = verifyRoleExists(roleName, databaseReplicaId, true);
-          if (roleId != -1L) {
-            pstmt.setLong(2, roleId);
-            pstmt.executeUpdate();
-          } else {
-            throw new RepositoryException("Failed to update user role: "
-                + databaseReplicaId + "/" + roleName + " for user "
-                + notesName);
-          }
+      pstmt.setLong(1, userId);
+      for (Object role : roles) {
+        String roleName = role.toString();
+        long roleId = verifyRoleExists(roleName, databaseReplicaId, true);
+        if (roleId != -1L) {
+          pstmt.setLong(2, roleId);
+          pstmt.addBatch();
+        } else {
+          throw new RepositoryException("Failed to update user role: "
+              + databaseReplicaId + "/" + roleName + " for user "
+              + notesName);
         }
-      } finally {
-        Util.close(pstmt);
       }
     } finally {
       LOGGER.exiting(CLASS_NAME, METHOD);
@@ -1561,7 +2991,8 @@ class NotesUserGroupManager {
   }
 
   private void updateRolesForGroup(String groupName, String databaseReplicaId,
-      Vector roles) throws SQLException, RepositoryException {
+      Vector roles, PreparedStatement pstmt)
+      throws SQLException, RepositoryException {
     final String METHOD = "updateRolesForGroup";
     LOGGER.entering(CLASS_NAME, METHOD);
 
@@ -1572,25 +3003,18 @@ class NotesUserGroupManager {
             "ACL group not in connector group cache: {0}", groupName);
         return;
       }
-      PreparedStatement pstmt = null;
-      try {
-        pstmt = conn.prepareStatement("insert into " + groupRolesTableName
-            + " (groupid, roleid) values(?, ?)");
-        pstmt.setLong(1, groupId);
-        for (Object role : roles) {
-          String roleName = role.toString();
-          long roleId = verifyRoleExists(roleName, databaseReplicaId, true);
-          if (roleId != -1L) {
-            pstmt.setLong(2, roleId);
-            pstmt.executeUpdate();
-          } else {
-            throw new RepositoryException("Failed to update user role: "
-                + databaseReplicaId + "/" + roleName + " for group "
-                + groupName);
-          }
+      pstmt.setLong(1, groupId);
+      for (Object role : roles) {
+        String roleName = role.toString();
+        long roleId = verifyRoleExists(roleName, databaseReplicaId, true);
+        if (roleId != -1L) {
+          pstmt.setLong(2, roleId);
+          pstmt.addBatch();
+        } else {
+          throw new RepositoryException("Failed to update user role: "
+              + databaseReplicaId + "/" + roleName + " for group "
+              + groupName);
         }
-      } finally {
-        Util.close(pstmt);
       }
     } finally {
       LOGGER.exiting(CLASS_NAME, METHOD);
@@ -1701,155 +3125,207 @@ class NotesUserGroupManager {
   // Delete data
 
   /**
-   * Check each user in the cache against the view
-   * NCCONST.DIRVIEW_VIMUSERS. If the cached user is not in the
-   * Notes view, delete them from the cache.
+   * Check each user in the cache against the people in the view
+   * NCCONST.DIRVIEW_VIMUSERS. If the cached user is not one of them,
+   * delete them from the cache. A full update has already read every
+   * person, and leaves out the people who do not meet the user
+   * selection formula. Otherwise the names are read from the view
+   * index here, and the people who are no longer selected are removed
+   * by updateUsers when their modified documents are read.
    */
   @VisibleForTesting
   void checkUserDeletions() {
     final String METHOD = "checkUserDeletions";
     LOGGER.entering(CLASS_NAME, METHOD);
 
-    NotesView usersView = null;
+    Set<String> userNames = liveUserNames;
+    if (userNames == null) {
+      userNames = getDirectoryUserNames();
+    }
+    if (userNames == null) {
+      LOGGER.log(Level.WARNING, "Unable to read all of the people in the "
+          + "directory; not checking for deleted users");
+      LOGGER.exiting(CLASS_NAME, METHOD);
+      return;
+    }
+    List<Long> usersToDelete = new ArrayList<Long>();
     Statement stmt = null;
-    ArrayList<Long> usersToDelete = new ArrayList<Long>();
     try {
-      String userSelectionFormula = connectorSession.getUserSelectionFormula();
-
-      // TODO: why do we have to use this view and an abbreviated
-      // full name as opposed to just using the people/groups view
-      // we use elsewhere?
-      usersView = directoryDatabase.getView(NCCONST.DIRVIEW_VIMUSERS);
-      usersView.refresh();
-      stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-          ResultSet.CONCUR_READ_ONLY);
+      stmt = conn.createStatement();
       ResultSet rs = stmt.executeQuery("select userid,notesname from "
           + userTableName);
       while (rs.next()) {
-        long userId;
-        String fullName;
-        try {
-          userId = rs.getLong(1);
-          fullName = rs.getString(2);
-        } catch (SQLException e) {
-          LOGGER.log(Level.WARNING, "Failure reading user table data", e);
-          continue;
-        }
-        try {
-          String abbrevFormula = String.format("@Name([ABBREVIATE];\"%s\")",
-              fullName);
-          String key = notesSession.evaluate(abbrevFormula).elementAt(0)
-              .toString();
-          NotesDocument notesUserDoc = usersView.getDocumentByKey(key);
-          if (notesUserDoc == null) {
-            // This person or group no longer exists. Remove them
-            LOGGER.log(Level.INFO, "User no longer exists in source directory"
-                + " and will be deleted: {0}", key);
-            usersToDelete.add(userId);
-          } else {
-            // Do an additional check for Persons to make sure they
-            // still meet the selection criteria
-            if (!checkPersonSelectionFormula(userSelectionFormula,
-                    notesUserDoc)) {
-              LOGGER.log(Level.INFO, "User no longer meets selection criteria"
-                  + " and will be deleted: {0}", key);
-              usersToDelete.add(userId);
-            }
-            Util.recycle(notesUserDoc);
-          }
-        } catch (Exception e) {
-          LOGGER.log(Level.WARNING,
-              "Failure checking user deletion: " + fullName, e);
+        String notesName = rs.getString(2);
+        if (!userNames.contains(notesName)) {
+          // This person no longer exists or is no longer selected.
+          LOGGER.log(Level.INFO, "User no longer exists in source directory"
+              + " or meets selection criteria and will be deleted: {0}",
+              notesName);
+          usersToDelete.add(rs.getLong(1));
         }
       }
-    } catch (Exception e) {
+    } catch (SQLException e) {
       LOGGER.log(Level.WARNING, "Error checking deletions", e);
     } finally {
-      Util.recycle(usersView);
       Util.close(stmt);
     }
+    removeUsers(usersToDelete);
+    LOGGER.exiting(CLASS_NAME, METHOD);
+  }
+
+  /*
+   * Gets the lower case names of the people in NCCONST.DIRVIEW_VIMUSERS
+   * from the view index, or null if they could not all be read.
+   */
+  private Set<String> getDirectoryUserNames() {
+    final String METHOD = "getDirectoryUserNames";
+    LOGGER.entering(CLASS_NAME, METHOD);
 
-    for (Long userId : usersToDelete) {
+    Set<String> userNames = new HashSet<String>();
+    viewReadFailed = false;
+    ViewEntryIterator entries =
+        new ViewEntryIterator(directoryDatabase, NCCONST.DIRVIEW_VIMUSERS);
+    while (entries.hasNext()) {
+      NotesViewEntry entry = entries.next();
       try {
-        removeUser(userId);
-      } catch (SQLException e) {
-        LOGGER.log(Level.WARNING, "Error removing user: " + userId, e);
+        String fullName = getPersonFullName(entry);
+        if (fullName == null) {
+          continue;
+        }
+        String notesName = getCanonicalName(notesSession, fullName);
+        if (notesName != null) {
+          userNames.add(notesName.toLowerCase());
+        }
+      } catch (RepositoryException e) {
+        LOGGER.log(Level.WARNING, "Failed to read person in "
+            + NCCONST.DIRVIEW_VIMUSERS + " view", e);
+        viewReadFailed = true;
       }
     }
     LOGGER.exiting(CLASS_NAME, METHOD);
+    return viewReadFailed ? null : userNames;
   }
 
   /**
    * Check each group in the cache against the view
    * NCCONST.DIRVIEW_VIMGROUPS. If the cached group is not in the
-   * Notes view, delete it from the cache.
+   * Notes view, delete it from the cache. The group names are read
+   * by loadGroupGraph during an update; otherwise the view is read
+   * once here.
    */
   @VisibleForTesting
   void checkGroupDeletions() {
     final String METHOD = "checkGroupDeletions";
     LOGGER.entering(CLASS_NAME, METHOD);
 
-    NotesView groupView = null;
-    ArrayList<Long> groupsToDelete = new ArrayList<Long>();
+    Set<String> groupNames = liveGroupNames;
+    if (groupNames == null) {
+      groupNames = getDirectoryGroupNames();
+    }
+    if (groupNames == null) {
+      LOGGER.log(Level.WARNING, "Unable to read all of the groups in the "
+          + "directory; not checking for deleted groups");
+      LOGGER.exiting(CLASS_NAME, METHOD);
+      return;
+    }
+    List<Long> groupsToDelete = new ArrayList<Long>();
     Statement stmt = null;
     try {
-      groupView = directoryDatabase.getView(NCCONST.DIRVIEW_VIMGROUPS);
-      groupView.refresh();
-      stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-          ResultSet.CONCUR_READ_ONLY);
+      stmt = conn.createStatement();
       ResultSet rs = stmt.executeQuery(
           "select groupid,groupname,pseudogroup from " + groupTableName);
       while (rs.next()) {
-        long groupId;
-        String groupName;
-        boolean pseudoGroup = false;
-        try {
-          groupId = rs.getLong(1);
-          groupName = rs.getString(2);
-          pseudoGroup = rs.getBoolean(3);
-        } catch (SQLException e) {
-          LOGGER.log(Level.WARNING, "Failure reading group table data", e);
-          continue;
-        }
-
-        if (pseudoGroup) {
+        String groupName = rs.getString(2);
+        if (rs.getBoolean(3)) {
           LOGGER.log(Level.FINEST,
               "Skipping deletion check for pseudo-group: {0}", groupName);
           continue;
         }
-        try {
-          if (Util.isCanonical(groupName)) {
-            NotesName notesGroupName = notesSession.createName(groupName);
-            groupName = notesGroupName.getAbbreviated();
-          }
-          NotesDocument notesGroupDoc = groupView.getDocumentByKey(groupName);
-          if (notesGroupDoc == null) {
-            // This group no longer exists.
-            LOGGER.log(Level.INFO, "Group no longer exists in source directory"
-                + " and will be deleted: {0}", groupName);
-            groupsToDelete.add(groupId);
-          }
-          Util.recycle(notesGroupDoc);
-        } catch (Exception e) {
-          LOGGER.log(Level.WARNING,
-              "Error checking deletions for group: " + groupName, e);
+        if (!groupNames.contains(groupName)) {
+          // This group no longer exists.
+          LOGGER.log(Level.INFO, "Group no longer exists in source directory"
+              + " and will be deleted: {0}", groupName);
+          groupsToDelete.add(rs.getLong(1));
         }
       }
-    } catch (Exception e) {
+    } catch (SQLException e) {
       LOGGER.log(Level.WARNING, "Error checking deletions", e);
     } finally {
-      Util.recycle(groupView);
       Util.close(stmt);
     }
+    removeGroups(groupsToDelete);
+    LOGGER.exiting(CLASS_NAME, METHOD);
+  }
+
+  /*
+   * Gets the names of the groups in NCCONST.DIRVIEW_VIMGROUPS from the
+   * view index, or null if they could not all be read.
+   */
+  private Set<String> getDirectoryGroupNames() {
+    final String METHOD = "getDirectoryGroupNames";
+    LOGGER.entering(CLASS_NAME, METHOD);
 
-    for (Long groupId : groupsToDelete) {
+    Set<String> groupNames = new HashSet<String>();
+    viewReadFailed = false;
+    ViewEntryIterator entries =
+        new ViewEntryIterator(directoryDatabase, NCCONST.DIRVIEW_VIMGROUPS);
+    while (entries.hasNext()) {
+      NotesViewEntry entry = entries.next();
       try {
-        removeGroup(groupId);
-      } catch (SQLException e) {
-        LOGGER.log(Level.WARNING, "Error removing group: " + groupId, e);
+        String groupName = getGroupListName(entry);
+        if (!Strings.isNullOrEmpty(groupName)) {
+          addGroupName(groupNames, groupName);
+        }
+      } catch (RepositoryException e) {
+        LOGGER.log(Level.WARNING, "Failed to read group in "
+            + NCCONST.DIRVIEW_VIMGROUPS + " view", e);
+        viewReadFailed = true;
       }
     }
     LOGGER.exiting(CLASS_NAME, METHOD);
+    return viewReadFailed ? null : groupNames;
+  }
+
+  /*
+   * Gets the group name from the first column of a
+   * NCCONST.DIRVIEW_VIMGROUPS view entry, and from the document only
+   * if the column is empty.
+   */
+  private String getGroupListName(NotesViewEntry entry)
+      throws RepositoryException {
+    Vector columnValues = entry.getColumnValues();
+    if (columnValues.size() > 0) {
+      Object value = columnValues.get(0);
+      if (value instanceof Vector && ((Vector) value).size() > 0) {
+        value = ((Vector) value).get(0);
+      }
+      if (value instanceof String && ((String) value).length() > 0) {
+        return (String) value;
+      }
+    }
+    NotesDocument doc = entry.getDocument();
+    if (doc == null) {
+      return null;
+    }
+    try {
+      return doc.getItemValueString(NCCONST.GITM_LISTNAME);
+    } finally {
+      Util.recycle(doc);
+    }
+  }
+
+  /*
+   * Adds the lower case name of a directory group to a set of group
+   * names. Abbreviated hierarchical names are added in canonical form
+   * as well, to match the cached names of groups that are members of
+   * other groups.
+   */
+  private static void addGroupName(Set<String> groupNames, String groupName) {
+    groupNames.add(groupName.toLowerCase());
+    String canonicalName = Util.getCanonicalName(groupName);
+    if (canonicalName != null) {
+      groupNames.add(canonicalName.toLowerCase());
+    }
   }
 
   private void removeUser(String notesName) throws SQLException {
@@ -1872,7 +3348,7 @@ class NotesUserGroupManager {
       Util.close(pstmt);
     }
     if (userId != -1) {
-      removeUser(userId);
+      removeUsers(Collections.singletonList(userId));
     } else {
       LOGGER.log(Level.FINE,
           "Unable to find user data to remove: {0}", notesName);
@@ -1880,63 +3356,80 @@ class NotesUserGroupManager {
     LOGGER.exiting(CLASS_NAME, METHOD);
   }
 
-  private void removeUser(long userId) throws SQLException {
-    final String METHOD = "removeUser";
+  private void removeUsers(List<Long> userIds) {
+    final String METHOD = "removeUsers";
     LOGGER.entering(CLASS_NAME, METHOD);
-    LOGGER.log(Level.FINE, "Removing user: {0}", userId);
+    LOGGER.log(Level.FINE, "Removing users: {0}", userIds);
 
-    try {
-      conn.setAutoCommit(false);
-      executeUpdateWithIds("delete from " + userGroupsTableName
-          + " where userid = ?", userId);
-      executeUpdateWithIds("delete from " + userRolesTableName
-          + " where userid = ?", userId);
-      executeUpdateWithIds("delete from " + userTableName
-          + " where userid = ?", userId);
-      conn.commit();
-    } catch (SQLException e) {
-      LOGGER.log(Level.WARNING, "Caught exception", e);
-      conn.rollback();
-    } finally {
-      conn.setAutoCommit(true);
-    }
+    executeDeletes(userIds,
+        "delete from " + userGroupsTableName + " where userid = ?",
+        "delete from " + userRolesTableName + " where userid = ?",
+        "delete from " + userTableName + " where userid = ?");
     LOGGER.exiting(CLASS_NAME, METHOD);
   }
 
-  private void removeGroup(long groupId) throws SQLException {
-    final String METHOD = "removeGroup";
+  private void removeGroups(List<Long> groupIds) {
+    final String METHOD = "removeGroups";
     LOGGER.entering(CLASS_NAME, METHOD);
+    LOGGER.log(Level.FINE, "Removing groups: {0}", groupIds);
+
+    executeDeletes(groupIds,
+        "delete from " + groupChildrenTableName + " where parentgroupid = ?",
+        "delete from " + groupChildrenTableName + " where childgroupid = ?",
+        "delete from " + groupRolesTableName + " where groupid = ?",
+        "delete from " + userGroupsTableName + " where groupid = ?",
+        "delete from " + groupTableName + " where groupid = ?");
+    LOGGER.exiting(CLASS_NAME, METHOD);
+  }
 
+  /*
+   * Executes each of the delete statements for the given ids, in
+   * batches committed in windows of ids. A failed window is rolled
+   * back and the remaining windows are still deleted.
+   */
+  private void executeDeletes(List<Long> ids, String... sqls) {
+    if (ids.isEmpty()) {
+      return;
+    }
+    int commitWindow = getCommitWindow();
+    List<PreparedStatement> stmts = new ArrayList<PreparedStatement>();
     try {
       conn.setAutoCommit(false);
-      executeUpdateWithIds("delete from " + groupChildrenTableName
-          + " where parentgroupid = ? or childgroupid = ?",
-          groupId, groupId);
-      executeUpdateWithIds("delete from " + groupRolesTableName
-          + " where groupid = ?", groupId);
-      executeUpdateWithIds("delete from " + userGroupsTableName
-          + " where groupid = ?", groupId);
-      executeUpdateWithIds("delete from " + groupTableName
-          + " where groupid = ?", groupId);
-      conn.commit();
+      for (String sql : sqls) {
+        stmts.add(conn.prepareStatement(sql));
+      }
+      for (int start = 0; start < ids.size(); start += commitWindow) {
+        List<Long> window =
+            ids.subList(start, Math.min(start + commitWindow, ids.size()));
+        try {
+          for (PreparedStatement stmt : stmts) {
+            for (Long id : window) {
+              stmt.setLong(1, id);
+              stmt.addBatch();
+            }
+            stmt.executeBatch();
+          }
+          conn.commit();
+        } catch (SQLException e) {
+          LOGGER.log(Level.WARNING, "Failed to delete cache records for ids: "
+              + window, e);
+          for (PreparedStatement stmt : stmts) {
+            stmt.clearBatch();
+          }
+          conn.rollback();
+        }
+      }
     } catch (SQLException e) {
-      LOGGER.log(Level.WARNING, "Caught exception", e);
-      conn.rollback();
+      LOGGER.log(Level.WARNING, "Failed to delete cache records", e);
     } finally {
-      conn.setAutoCommit(true);
-    }
-  }
-
-  private int executeUpdateWithIds(String sql, long... ids)
-      throws SQLException {
-    PreparedStatement pstmt = conn.prepareStatement(sql);
-    try {
-      for (int i = 0; i < ids.length; i++) {
-        pstmt.setLong(i + 1, ids[i]);
+      for (PreparedStatement stmt : stmts) {
+        Util.close(stmt);
+      }
+      try {
+        conn.setAutoCommit(true);
+      } catch (SQLException e) {
+        LOGGER.log(Level.WARNING, "Reset AutoCommit failed", e);
       }
-      return pstmt.executeUpdate();
-    } finally {
-      Util.close(pstmt);
     }
   }
 
@@ -1970,6 +3463,8 @@ class NotesUserGroupManager {
       }
       docConfig.replaceItemValue(NCCONST.SITM_LASTCACHEUPDATE, dtTarget);
       docConfig.save(true);
+      // Rebuild the whole cache on the next update.
+      lastFullUpdate = 0L;
       isReset = true;
     } catch (RepositoryException e) {
       LOGGER.log(Level.SEVERE, CLASS_NAME, e);
@@ -1985,36 +3480,60 @@ class NotesUserGroupManager {
     return isReset;
   }
 
-  private void setLastCacheUpdate() {
+  private void setLastCacheUpdate(NotesDateTime updateTime) {
     final String METHOD = "setLastCacheUpdate";
     LOGGER.entering(CLASS_NAME, METHOD);
 
-    NotesDateTime now = null;
     NotesView systemView = null;
     NotesDocument systemDoc = null;
     try {
-      now = notesSession.createDateTime("1/1/1900");
-      now.setNow();
       systemView = connectorDatabase.getView(NCCONST.VIEWSYSTEMSETUP);
       systemDoc = systemView.getFirstDocument();
       if (systemDoc == null) {
         LOGGER.log(Level.SEVERE, "System configuration document not found.");
         return;
       }
-      systemDoc.replaceItemValue(NCCONST.SITM_LASTCACHEUPDATE, now);
+      systemDoc.replaceItemValue(NCCONST.SITM_LASTCACHEUPDATE, updateTime);
       systemDoc.save(true);
       LOGGER.log(Level.INFO,
-          "Directory Cache last update time set to {0}", now);
+          "Directory Cache last update time set to {0}", updateTime);
     } catch (RepositoryException e) {
       LOGGER.log(Level.SEVERE, CLASS_NAME, e);
     } finally {
       Util.recycle(systemDoc);
       Util.recycle(systemView);
-      Util.recycle(now);
     }
     LOGGER.exiting(CLASS_NAME, METHOD);
   }
 
+  /*
+   * Returns the time of the last cache update, or null if the cache
+   * has not been updated.
+   */
+  private Date getLastCacheUpdate() throws RepositoryException {
+    NotesView systemView = null;
+    NotesDocument systemDoc = null;
+    Vector<?> vecLastCacheUpdate = null;
+    try {
+      systemView = connectorDatabase.getView(NCCONST.VIEWSYSTEMSETUP);
+      systemDoc = systemView.getFirstDocument();
+      if (systemDoc == null) {
+        return null;
+      }
+      vecLastCacheUpdate = systemDoc.getItemValue(NCCONST.SITM_LASTCACHEUPDATE);
+      if (vecLastCacheUpdate.size() == 0
+          || !(vecLastCacheUpdate.firstElement() instanceof NotesDateTime)) {
+        return null;
+      }
+      // Copy the time out before the item value is recycled.
+      return ((NotesDateTime) vecLastCacheUpdate.firstElement()).toJavaDate();
+    } finally {
+      Util.recycle(systemDoc, vecLastCacheUpdate);
+      Util.recycle(systemDoc);
+      Util.recycle(systemView);
+    }
+  }
+
   private boolean shouldUpdate(NotesDatabase connectorDatabase)
       throws RepositoryException {
     final String METHOD = "shouldUpdate";
@@ -2076,8 +3595,8 @@ class NotesUserGroupManager {
    * Use the given formula to construct a PVI from the Notes user
    * document.
    */
-  private String evaluatePvi(String userNameFormula, NotesDocument doc)
-      throws RepositoryException {
+  private String evaluatePvi(NotesSession notesSession,
+      String userNameFormula, NotesDocument doc) throws RepositoryException {
     Vector<?> vecEvalResult = notesSession.evaluate(userNameFormula, doc);
     // Make sure we don't get an empty vector.
     if (vecEvalResult != null && vecEvalResult.size() > 0) {
@@ -2094,8 +3613,9 @@ class NotesUserGroupManager {
    * should return 1 or 0.
    */
   @SuppressWarnings("unchecked")
-  private boolean checkPersonSelectionFormula(String userSelectionFormula,
-      NotesDocument personDoc) throws RepositoryException {
+  private boolean checkPersonSelectionFormula(NotesSession notesSession,
+      String userSelectionFormula, NotesDocument personDoc)
+      throws RepositoryException {
     Vector<Double> vecEvalResult = (Vector<Double>) notesSession.evaluate(
         userSelectionFormula, personDoc);
     // A Selection formula will return a vector of doubles.
@@ -2145,6 +3665,10 @@ class NotesUserGroupManager {
         connectorSession.getConnector().getJdbcDatabase();
     try {
       conn = jdbcDatabase.getConnectionPool().getConnection();
+      // Repair the tables first, so an interrupted swap restores the
+      // live tables instead of having empty ones created below.
+      recoverShadowTables(conn);
+
       // Notes user names don't have a simple defined max
       // size. There are limits for each component (name, org
       // unit, org). For now, we're going with "as big as a
@@ -2152,16 +3676,22 @@ class NotesUserGroupManager {
       jdbcDatabase.verifyTableExists(userTableName, new String[] {
           "create table " + userTableName
           + " (userid long auto_increment primary key,"
-          + " gsaname varchar(128), notesname varchar(254))"});
+          + " gsaname varchar(128), notesname varchar(254),"
+          + " commonname varchar(254))"});
       LOGGER.log(Level.INFO, "Created/verified table: {0}", userTableName);
+      // The commonname column was added after the users table.
       Util.executeStatements(conn, true, new String[] {
+          "alter table " + userTableName
+          + " add column if not exists commonname varchar(254)",
           "create index if not exists idx_gsaname_" + userTableName 
           + " on " + userTableName + "(gsaname)",
           "create index if not exists idx_notesname_" + userTableName 
-          + " on " + userTableName + "(notesname)"});
-      LOGGER.log(Level.INFO,
-          "Created/verified index: idx_gsaname_{0} and idx_notesname_{0}",
-          userTableName);
+          + " on " + userTableName + "(notesname)",
+          "create index if not exists idx_commonname_" + userTableName
+          + " on " + userTableName + "(commonname)"});
+      LOGGER.log(Level.INFO, "Created/verified index: idx_gsaname_{0}, "
+          + "idx_notesname_{0} and idx_commonname_{0}", userTableName);
+      updateCommonNames(conn);
 
       // Group names have a max size of 63, but we also create
       // groups based on DN components, so make the groupname
@@ -2197,14 +3727,19 @@ class NotesUserGroupManager {
           + " groupid long)"});
       LOGGER.log(Level.INFO,
           "Created/verified table: {0}", userGroupsTableName);
+      // Earlier versions gave these indexes the same names for every
+      // connector.
       Util.executeStatements(conn, true,
-          "create index if not exists idx_userid_usergroups on "
+          "drop index if exists idx_userid_usergroups",
+          "drop index if exists idx_groupid_usergroups",
+          "create index if not exists "
+          + getIndexName("userid", userGroupsTableName) + " on "
           + userGroupsTableName + "(userid)",
-          "create index if not exists idx_groupid_usergroups on "
+          "create index if not exists "
+          + getIndexName("groupid", userGroupsTableName) + " on "
           + userGroupsTableName + "(groupid)");
       LOGGER.log(Level.INFO, "Created/verified indexes: "
-          + "idx_userid_usergroups and idx_groupid_usergroups on {0}",
-          userGroupsTableName);
+          + "idx_userid_{0} and idx_groupid_{0}", userGroupsTableName);
 
       jdbcDatabase.verifyTableExists(userRolesTableName, new String[] {
           "create table " + userRolesTableName + " (userid long, "
@@ -2239,13 +3774,17 @@ class NotesUserGroupManager {
       LOGGER.log(Level.INFO,
           "Created/verified table: {0}", groupChildrenTableName);
       Util.executeStatements(conn, true,
-          "create index if not exists idx_parentgroupid_groupchildren on "
+          "drop index if exists idx_parentgroupid_groupchildren",
+          "drop index if exists idx_childgroupid_groupchildren",
+          "create index if not exists "
+          + getIndexName("parentgroupid", groupChildrenTableName) + " on "
           + groupChildrenTableName + "(parentgroupid)",
-          "create index if not exists idx_childgroupid_groupchildren on "
+          "create index if not exists "
+          + getIndexName("childgroupid", groupChildrenTableName) + " on "
           + groupChildrenTableName + "(childgroupid)");
       LOGGER.log(Level.INFO, "Created/verified indexes: "
-          + "idx_parentgroupid_groupchildren and idx_childgroupid_groupchildren"
-          + " on {0}", groupChildrenTableName);
+          + "idx_parentgroupid_{0} and idx_childgroupid_{0}",
+          groupChildrenTableName);
     } catch (Exception e) {
       LOGGER.log(Level.SEVERE, "Failed to initialize user cache", e);
       throw new RepositoryException("Failed to initialize user cache", e);
@@ -2256,6 +3795,40 @@ class NotesUserGroupManager {
     }
   }
 
+  /*
+   * Sets the common name of the users that were added before the
+   * commonname column.
+   */
+  private void updateCommonNames(Connection conn) throws SQLException {
+    Statement stmt = conn.createStatement();
+    PreparedStatement pstmt = null;
+    ResultSet rs = null;
+    try {
+      rs = stmt.executeQuery("select userid, notesname from " + userTableName
+          + " where commonname is null");
+      pstmt = conn.prepareStatement("update " + userTableName
+          + " set commonname = ? where userid = ?");
+      int count = 0;
+      while (rs.next()) {
+        String commonName = getCommonName(rs.getString(2));
+        if (commonName != null) {
+          pstmt.setString(1, commonName);
+          pstmt.setLong(2, rs.getLong(1));
+          pstmt.addBatch();
+          count++;
+        }
+      }
+      if (count > 0) {
+        pstmt.executeBatch();
+        LOGGER.log(Level.INFO, "Set the common name of {0} users", count);
+      }
+    } finally {
+      Util.close(rs);
+      Util.close(pstmt);
+      Util.close(stmt);
+    }
+  }
+
   void clearTables(Connection conn) {
     try {
       String[] tables = { userTableName, groupTableName, roleTableName,
@@ -2268,6 +3841,8 @@ class NotesUserGroupManager {
       }
     } catch (SQLException e) {
       LOGGER.log(Level.WARNING, "Error clearing tables", e);
+    } finally {
+      userCache.invalidateAll();
     }
   }
 
@@ -2296,6 +3871,7 @@ class NotesUserGroupManager {
           LOGGER.log(Level.WARNING, "Failed to drop table: " + table, e);
         }
       }
+      dropShadowTables(conn);
     } catch (Exception e) {
       LOGGER.log(Level.WARNING, "Failed to drop tables", e);
     } finally {
@@ -2306,15 +3882,16 @@ class NotesUserGroupManager {
       } catch (SQLException e) {
         LOGGER.log(Level.WARNING, "Failure releasing connection", e);
       }
+      userCache.invalidateAll();
       LOGGER.exiting(CLASS_NAME, METHOD);
     }
   }
 
-  synchronized boolean isCacheInitialized() {
+  boolean isCacheInitialized() {
     return cacheInitialized;
   }
 
-  private synchronized void setCacheInitialized() {
+  private void setCacheInitialized() {
     cacheInitialized = true;
   }
 
@@ -2378,8 +3955,7 @@ class NotesUserGroupManager {
     public Collection<String> getRolesByDatabase(String replicaId) {
       LinkedHashSet<String> tmp = rolesByDatabase.get(replicaId);
       if (tmp == null) {
-        tmp = Sets.newLinkedHashSet();
-        rolesByDatabase.put(replicaId, tmp);
+        return Collections.emptySet();
       }
       return Collections.unmodifiableSet(tmp);
     }
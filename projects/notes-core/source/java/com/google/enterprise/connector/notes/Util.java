@@ -20,6 +20,7 @@ import com.google.enterprise.connector.notes.client.NotesBase;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.util.Base16;
 
+import java.io.File;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
@@ -128,19 +129,77 @@ public class Util {
     return name.toLowerCase().startsWith("cn=");
   }
 
-  static boolean isAttachment(String url) {
-    return url != null && url.toLowerCase().contains("/$file/");
+  /**
+   * Converts an abbreviated hierarchical Notes name, such as
+   * "John Doe/Sales/Acme/US", to canonical format, such as
+   * "CN=John Doe/OU=Sales/O=Acme/C=US", without calling Notes. A last
+   * component of two characters is taken to be a country code.
+   * Canonical names and flat names are returned unchanged.
+   *
+   * @return the canonical name, or null if the name is not in a format
+   * that can be converted without calling Notes
+   */
+  static String getCanonicalName(String name) {
+    if (name == null || name.indexOf('@') != -1) {
+      return null;
+    }
+    if (isCanonical(name)) {
+      return name;
+    }
+    if (name.indexOf('=') != -1) {
+      return null;
+    }
+    if (name.indexOf('/') == -1) {
+      return name;
+    }
+    String[] components = name.split("/", -1);
+    // A name has a common name, up to four org units, an org and
+    // an optional country.
+    if (components.length > 7) {
+      return null;
+    }
+    for (int i = 0; i < components.length; i++) {
+      components[i] = components[i].trim();
+      if (components[i].length() == 0) {
+        return null;
+      }
+    }
+    int last = components.length - 1;
+    boolean hasCountry = components.length > 2
+        && components[last].length() == 2;
+    int org = hasCountry ? last - 1 : last;
+    if (org - 1 > 4) {
+      return null;
+    }
+    StringBuilder canonicalName = new StringBuilder("CN=");
+    canonicalName.append(components[0]);
+    for (int i = 1; i < org; i++) {
+      canonicalName.append("/OU=").append(components[i]);
+    }
+    canonicalName.append("/O=").append(components[org]);
+    if (hasCountry) {
+      canonicalName.append("/C=").append(components[last]);
+    }
+    return canonicalName.toString();
   }
 
-  static void invokeGC() {
-    Runtime rt = Runtime.getRuntime();
-    LOGGER.log(Level.FINEST, "Memory free [before GC invocation]: "
-        + (rt.freeMemory() / 1024) + "kb" + ", Total: "
-        + (rt.totalMemory() / 1024) + "kb");
-    rt.gc();
-    LOGGER.log(Level.FINEST, "Memory free [after GC invocation ]: "
-        + (rt.freeMemory() / 1024) + "kb" + ", Total: "
-        + (rt.totalMemory() / 1024) + "kb");
+  /**
+   * Gets the spool file path for an attachment, creating its
+   * directory if needed. The directory is named for the crawl
+   * request, so that the files of a document that is queued twice
+   * do not collide.
+   */
+  static String getAttachmentFilePath(String spoolDir, String replicaId,
+      String crawlUnid, String fileName) {
+    String dirName = String.format("%s/attachments/%s/%s",
+        spoolDir, replicaId, crawlUnid);
+    new File(dirName).mkdirs();
+    // TODO: Ensure that filePath is a valid Windows filepath.
+    return String.format("%s/%s", dirName, fileName);
+  }
+
+  static boolean isAttachment(String url) {
+    return url != null && url.toLowerCase().contains("/$file/");
   }
 
   static String hash(String word) {
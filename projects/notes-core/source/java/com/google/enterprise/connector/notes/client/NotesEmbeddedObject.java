@@ -16,6 +16,8 @@ package com.google.enterprise.connector.notes.client;
 
 import com.google.enterprise.connector.spi.RepositoryException;
 
+import java.io.InputStream;
+
 public interface NotesEmbeddedObject extends NotesBase {
   final int EMBED_ATTACHMENT = 1454;
   final int EMBED_OBJECT = 1453;
@@ -44,4 +46,13 @@ public interface NotesEmbeddedObject extends NotesBase {
    * @throws RepositoryException
    */
   void extractFile(String path) throws RepositoryException;
+
+  /**
+   * Returns a stream for reading the file content. The stream must
+   * be closed before this object is recycled.
+   *
+   * @return an input stream for the file content
+   * @throws RepositoryException
+   */
+  InputStream getInputStream() throws RepositoryException;
 }
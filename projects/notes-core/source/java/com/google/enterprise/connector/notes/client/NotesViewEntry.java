@@ -35,4 +35,13 @@ public interface NotesViewEntry extends NotesBase {
    * @throws RepositoryException
    */
   NotesDocument getDocument() throws RepositoryException;
+
+  /**
+   * Returns the universal ID of the document, without opening the
+   * document.
+   *
+   * @return the universal ID
+   * @throws RepositoryException
+   */
+  String getUniversalID() throws RepositoryException;
 }
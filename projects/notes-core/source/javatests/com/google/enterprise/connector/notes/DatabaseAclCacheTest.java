@@ -0,0 +1,75 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+
+public class DatabaseAclCacheTest extends TestCase {
+
+  private DatabaseAcl createAcl(String... permitUsers) {
+    return new DatabaseAcl(Lists.newArrayList(permitUsers),
+        Collections.emptyList(), Lists.newArrayList("Masters"));
+  }
+
+  public void testDatabaseAcl() {
+    DatabaseAcl acl = new DatabaseAcl(
+        Lists.newArrayList("CN=Anakin Skywalker/OU=Tests/O=Tests", "yoda"),
+        Lists.newArrayList("Grievous"), Lists.newArrayList("Masters"));
+    assertFalse(acl.isDefaultAllowed());
+    assertEquals("cn=anakin skywalker/ou=tests/o=tests", acl.getAllowedUser(
+        "cn=anakin skywalker/ou=tests/o=tests", "anakin skywalker"));
+    assertEquals("yoda", acl.getAllowedUser(null, "yoda"));
+    assertNull(acl.getAllowedUser("grievous"));
+    assertEquals("grievous", acl.getDeniedUser("cn=grievous/o=tests",
+        "grievous"));
+    assertEquals("masters",
+        acl.getAllowedGroup(Lists.newArrayList("jedi", "masters")));
+    assertNull(acl.getAllowedGroup(Lists.newArrayList("jedi")));
+    assertTrue(createAcl("-Default-").isDefaultAllowed());
+  }
+
+  public void testGetAndInvalidate() {
+    DatabaseAclCache cache = new DatabaseAclCache(10);
+    DatabaseAcl acl = createAcl("yoda");
+    cache.put("85257608004F5587", acl);
+    assertSame(acl, cache.get("85257608004F5587"));
+    assertSame(acl, cache.get("85257608004f5587"));
+    assertNull(cache.get("85257608004F5588"));
+
+    cache.invalidate("85257608004F5587");
+    assertNull(cache.get("85257608004F5587"));
+
+    cache.put("85257608004F5587", acl);
+    cache.put("85257608004F5588", acl);
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+  }
+
+  public void testLeastRecentlyUsedEviction() {
+    DatabaseAclCache cache = new DatabaseAclCache(2);
+    cache.put("replica1", createAcl("a"));
+    cache.put("replica2", createAcl("b"));
+    assertNotNull(cache.get("replica1"));
+    cache.put("replica3", createAcl("c"));
+    assertEquals(2, cache.size());
+    assertNotNull(cache.get("replica1"));
+    assertNull(cache.get("replica2"));
+    assertNotNull(cache.get("replica3"));
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import junit.framework.TestCase;
+
+public class NotesCacheIdsTest extends TestCase {
+
+  private NotesCacheIds ids;
+
+  @Override
+  protected void setUp() {
+    ids = new NotesCacheIds();
+    ids.putGroup("jedi", 3L);
+    ids.putGroup("sith", 7L);
+    ids.putUser("cn=anakin skywalker/o=tests", "anakin", 5L);
+  }
+
+  public void testLookup() {
+    assertEquals(3L, ids.getGroupId("jedi"));
+    assertEquals(-1L, ids.getGroupId("clones"));
+    assertEquals(5L, ids.getUserId("cn=anakin skywalker/o=tests"));
+    assertEquals(-1L, ids.getUserId("cn=yoda/o=tests"));
+    assertEquals("anakin", ids.getGsaName("cn=anakin skywalker/o=tests"));
+    assertFalse(ids.hasPendingChanges());
+  }
+
+  public void testNewIdsFollowLoadedIds() {
+    assertEquals(8L, ids.addGroup("clones"));
+    assertEquals(9L, ids.addGroup("senators"));
+    assertEquals(6L, ids.addUser("cn=yoda/o=tests", "yoda"));
+    assertEquals(8L, ids.getGroupId("clones"));
+    assertEquals(6L, ids.getUserId("cn=yoda/o=tests"));
+    assertTrue(ids.hasPendingChanges());
+    assertEquals("{clones=8, senators=9}", ids.getNewGroups().toString());
+    assertEquals("{cn=yoda/o=tests=6}", ids.getNewUsers().toString());
+
+    ids.commit();
+    assertFalse(ids.hasPendingChanges());
+    assertEquals(8L, ids.getGroupId("clones"));
+  }
+
+  public void testRollback() {
+    ids.addGroup("clones");
+    ids.addUser("cn=yoda/o=tests", "yoda");
+    ids.setGsaName("cn=anakin skywalker/o=tests", "vader");
+    assertEquals("[cn=anakin skywalker/o=tests]",
+        ids.getChangedUsers().toString());
+
+    assertEquals("[clones]", ids.rollback().toString());
+    assertFalse(ids.hasPendingChanges());
+    assertEquals(-1L, ids.getGroupId("clones"));
+    assertEquals(-1L, ids.getUserId("cn=yoda/o=tests"));
+    assertEquals("anakin", ids.getGsaName("cn=anakin skywalker/o=tests"));
+
+    // Discarded ids are not reused.
+    assertEquals(9L, ids.addGroup("clones"));
+  }
+}
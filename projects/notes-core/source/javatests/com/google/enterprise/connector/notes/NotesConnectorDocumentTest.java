@@ -15,6 +15,7 @@
 package com.google.enterprise.connector.notes;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
 import com.google.enterprise.connector.notes.client.NotesItem;
 import com.google.enterprise.connector.notes.client.NotesSession;
 import com.google.enterprise.connector.notes.client.mock.NotesDatabaseMock;
@@ -31,6 +32,7 @@ import com.google.enterprise.connector.spi.SpiConstants.CaseSensitivityType;
 import com.google.enterprise.connector.spi.SpiConstants.DocumentType;
 import com.google.enterprise.connector.spi.SpiConstants.PrincipalType;
 import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.spiimpl.BinaryValue;
 import com.google.enterprise.connector.spiimpl.PrincipalValue;
 
 import junit.extensions.TestSetup;
@@ -38,6 +40,8 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.io.File;
+import java.io.InputStream;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
@@ -248,6 +252,75 @@ public class NotesConnectorDocumentTest extends TestCase {
         document, SpiConstants.PROPNAME_DISPLAYURL);
   }
 
+  public void testStreamAttachmentContent() throws Exception {
+    NotesDatabaseMock sourceDatabase = new NotesDatabaseMock(
+        "testserver", "stream.nsf", "STREAMREPLICA");
+    NotesDocumentMock sourceDoc = new NotesDocumentMock();
+    sourceDoc.replaceItemValue(NCCONST.NCITM_UNID, "sourceunid");
+    sourceDoc.addAttachment("filename.doc", "attachment content".getBytes());
+    sourceDatabase.addDocument(sourceDoc);
+    factory.addDatabase(sourceDatabase);
+
+    NotesDocumentMock crawlDoc = getAttachmentDoc();
+    crawlDoc.replaceItemValue(NCCONST.NCITM_SERVER, "testserver");
+    crawlDoc.replaceItemValue(NCCONST.NCITM_REPLICAID, "STREAMREPLICA");
+    crawlDoc.replaceItemValue(NCCONST.NCITM_UNID, "sourceunid");
+    crawlDoc.replaceItemValue(NCCONST.ITM_GMETAATTACHMENTFILENAME,
+        "filename.doc");
+    crawlDoc.replaceItemValue(NCCONST.ITM_STREAMCONTENT, "true");
+    NotesConnectorDocument document = new NotesConnectorDocument(
+        connectorSession, session, connectorDatabase);
+    document.setCrawlDoc("unid123", crawlDoc);
+
+    Property content = document.findProperty(SpiConstants.PROPNAME_CONTENT);
+    assertNotNull(content);
+    InputStream in = ((BinaryValue) content.nextValue()).getInputStream();
+    assertEquals("attachment content",
+        new String(ByteStreams.toByteArray(in)));
+    assertEquals("", crawlDoc.getItemValueString(NCCONST.ITM_CONTENTPATH));
+    document.closeInputStream();
+  }
+
+  public void testSpoolAttachmentContent() throws Exception {
+    NotesDatabaseMock sourceDatabase = new NotesDatabaseMock(
+        "testserver", "spool.nsf", "SPOOLREPLICA");
+    NotesDocumentMock sourceDoc = new NotesDocumentMock();
+    sourceDoc.replaceItemValue(NCCONST.NCITM_UNID, "sourceunid");
+    sourceDoc.addAttachment("filename.doc", "spooled content".getBytes(),
+        false);
+    sourceDatabase.addDocument(sourceDoc);
+    factory.addDatabase(sourceDatabase);
+
+    NotesDocumentMock crawlDoc = getAttachmentDoc();
+    crawlDoc.replaceItemValue(NCCONST.NCITM_SERVER, "testserver");
+    crawlDoc.replaceItemValue(NCCONST.NCITM_REPLICAID, "SPOOLREPLICA");
+    crawlDoc.replaceItemValue(NCCONST.NCITM_UNID, "sourceunid");
+    crawlDoc.replaceItemValue(NCCONST.ITM_GMETAATTACHMENTFILENAME,
+        "filename.doc");
+    crawlDoc.replaceItemValue(NCCONST.ITM_STREAMCONTENT, "true");
+    NotesConnectorDocument document = new NotesConnectorDocument(
+        connectorSession, session, connectorDatabase);
+    document.setCrawlDoc("unid123", crawlDoc);
+
+    // The attachment cannot be streamed, so it is spooled, and the
+    // spooled file is recorded for the checkpoint to delete.
+    String filePath = crawlDoc.getItemValueString(NCCONST.ITM_CONTENTPATH);
+    assertFalse(filePath.length() == 0);
+    File file = new File(filePath);
+    try {
+      assertTrue(file.exists());
+      Property content = document.findProperty(SpiConstants.PROPNAME_CONTENT);
+      assertNotNull(content);
+      InputStream in = ((BinaryValue) content.nextValue()).getInputStream();
+      assertEquals("spooled content",
+          new String(ByteStreams.toByteArray(in)));
+      document.recycle();
+      assertTrue(file.delete());
+    } finally {
+      file.delete();
+    }
+  }
+
   public void testAddDocumentWithReaders() throws Exception {
     NotesDocumentMock crawlDoc = getCrawlDoc(true);
     NotesConnectorDocument document = new NotesConnectorDocument(
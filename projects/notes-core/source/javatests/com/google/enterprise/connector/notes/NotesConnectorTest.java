@@ -34,8 +34,9 @@ public class NotesConnectorTest extends TestCase {
     connector.setGoogleLocalNamespace("LocalNamespace");
     connector.setGoogleGlobalNamespace("GlobalNamespace");
 
-    // Initialize this to prevent NotesConnector from creating one.
+    // Initialize these to prevent NotesConnector from creating them.
     connector.maintThread = new NotesMaintenanceThread(null, null);
+    connector.pollerService = new NotesDatabasePollerService(connector, null);
     connector.setGoogleConnectorName("notestest");
     connector.setDatabaseAccess(new ConnectorPersistentStore() {
         @Deprecated @Override
@@ -72,6 +73,11 @@ public class NotesConnectorTest extends TestCase {
     assertFalse(connector.getShutdown());
     try {
       Session session = connector.login();
+      NotesCrawlerPool crawlerPool = connector.getCrawlerPool();
+      assertNotNull(crawlerPool);
+      assertEquals(0, crawlerPool.getPoolSize());
+      assertEquals(0, crawlerPool.getActiveCount());
+      assertEquals(0, crawlerPool.getIdleCount());
     } finally {
       connector.shutdown();
     }
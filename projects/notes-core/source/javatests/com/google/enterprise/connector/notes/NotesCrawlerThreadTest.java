@@ -23,6 +23,7 @@ import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
+import com.google.common.collect.Lists;
 import com.google.enterprise.connector.notes.client.NotesDatabase;
 import com.google.enterprise.connector.notes.client.NotesDocument;
 import com.google.enterprise.connector.notes.client.NotesEmbeddedObject;
@@ -33,6 +34,7 @@ import com.google.enterprise.connector.notes.client.mock.NotesDatabaseMock;
 import com.google.enterprise.connector.notes.client.mock.NotesDocumentMock;
 import com.google.enterprise.connector.notes.client.mock.NotesItemMock;
 import com.google.enterprise.connector.notes.client.mock.SessionFactoryMock;
+import com.google.enterprise.connector.spi.RepositoryException;
 
 import junit.framework.TestCase;
 
@@ -41,6 +43,7 @@ import org.easymock.Capture;
 import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.Vector;
@@ -113,7 +116,7 @@ public class NotesCrawlerThreadTest extends TestCase {
     NotesCrawlerThread crawler =
         new NotesCrawlerThread(connector, connectorSession);
     crawler.connectQueue();
-    crawler.loadTemplateDoc("Discussion");
+    crawler.loadTemplate("Discussion");
 
     NotesDocumentMock crawlDoc = new NotesDocumentMock();
     crawlDoc.addItem(new NotesItemMock("name", NCCONST.NCITM_SERVER, "type",
@@ -151,7 +154,8 @@ public class NotesCrawlerThreadTest extends TestCase {
     mf.add(new NotesCrawlerThread.MetaField("foo"));
     mf.add(new NotesCrawlerThread.MetaField("bar=mappedbar"));
     mf.add(new NotesCrawlerThread.MetaField("bazform===baz=mappedbaz"));
-    crawler.metaFields = mf;
+    crawler.template = new NotesTemplateConfig.Template("Discussion", "",
+        "", "", mf, new HashMap<String, NotesTemplateConfig.Form>());
 
     NotesDocumentMock crawlDoc = new NotesDocumentMock();
     NotesDocumentMock sourceDoc = new NotesDocumentMock();
@@ -226,11 +230,68 @@ public class NotesCrawlerThreadTest extends TestCase {
         "testconfig.nsf");
     NotesView crawlQueue = configDb.getView(NCCONST.VIEWCRAWLQ);
     assertEquals(1, crawlQueue.getEntryCount());
-    NotesDocument docFromQueue = NotesCrawlerThread.getNextFromCrawlQueue(
-        session, crawlQueue);
+    NotesCrawlQueueDispatcher dispatcher = new NotesCrawlQueueDispatcher(10);
+    NotesDocument docFromQueue = dispatcher.getNextDocument(
+        configDb, crawlQueue);
     assertNotNull("No doc from queue", docFromQueue);
     assertEquals(NCCONST.STATEINCRAWL,
         docFromQueue.getItemValueString(NCCONST.NCITM_STATE));
+    assertEquals(0, dispatcher.getClaimedCount());
+  }
+
+  public void testClaimWindowReadFailure() throws Exception {
+    NotesDocument crawlRequestDoc = createMock(NotesDocument.class);
+    crawlRequestDoc.recycle();
+    NotesView crawlQueue = createMock(NotesView.class);
+    crawlQueue.refresh();
+    expect(crawlQueue.getFirstDocument()).andReturn(crawlRequestDoc);
+    expect(crawlQueue.getNextDocument(crawlRequestDoc))
+        .andThrow(new RepositoryException("read failed"));
+    replay(crawlRequestDoc, crawlQueue);
+
+    NotesCrawlQueueDispatcher dispatcher = new NotesCrawlQueueDispatcher(10);
+    try {
+      dispatcher.getNextDocument(null, crawlQueue);
+      fail("Expected a RepositoryException");
+    } catch (RepositoryException expected) {
+    }
+    verify(crawlRequestDoc, crawlQueue);
+    assertEquals(0, dispatcher.getClaimedCount());
+  }
+
+  public void testReleaseClaimedCrawlRequests() throws Exception {
+    NotesDatabaseMock configDatabase = factory.getDatabase("testconfig.nsf");
+    for (int i = 0; i < 3; i++) {
+      NotesDocumentMock crawlRequestDoc = new NotesDocumentMock();
+      configDatabase.addDocument(crawlRequestDoc, NCCONST.VIEWCRAWLQ);
+      crawlRequestDoc.addItem(new NotesItemMock("name", NCCONST.NCITM_STATE,
+          "type", NotesItem.TEXT, "values", NCCONST.STATENEW));
+      crawlRequestDoc.addItem(new NotesItemMock("name", NCCONST.NCITM_UNID,
+          "type", NotesItem.TEXT, "values", "sourcedocunid" + i));
+    }
+
+    NotesConnectorSession connectorSession =
+        (NotesConnectorSession) connector.login();
+    NotesSession session = connectorSession.createNotesSession();
+    NotesDatabase configDb = session.getDatabase("testserver",
+        "testconfig.nsf");
+    NotesView crawlQueue = configDb.getView(NCCONST.VIEWCRAWLQ);
+    NotesCrawlQueueDispatcher dispatcher = new NotesCrawlQueueDispatcher(10);
+    NotesDocument docFromQueue = dispatcher.getNextDocument(
+        configDb, crawlQueue);
+    assertEquals("sourcedocunid0", docFromQueue.getUniversalID());
+    assertEquals(2, dispatcher.getClaimedCount());
+    assertEquals(NCCONST.STATEINCRAWL, configDb.getDocumentByUNID(
+        "sourcedocunid1").getItemValueString(NCCONST.NCITM_STATE));
+
+    dispatcher.releaseClaimed(configDb);
+    assertEquals(0, dispatcher.getClaimedCount());
+    assertEquals(NCCONST.STATEINCRAWL,
+        docFromQueue.getItemValueString(NCCONST.NCITM_STATE));
+    assertEquals(NCCONST.STATENEW, configDb.getDocumentByUNID(
+        "sourcedocunid1").getItemValueString(NCCONST.NCITM_STATE));
+    assertEquals(NCCONST.STATENEW, configDb.getDocumentByUNID(
+        "sourcedocunid2").getItemValueString(NCCONST.NCITM_STATE));
   }
 
   public void testLoadTemplateDoc() throws Exception {
@@ -256,24 +317,24 @@ public class NotesCrawlerThreadTest extends TestCase {
         (NotesConnectorSession) connector.login();
     NotesCrawlerThread crawlerThread = new NotesCrawlerThread(connector,
         connectorSession);
-    assertNull(crawlerThread.templateDoc);
-    assertNull(crawlerThread.metaFields);
+    assertNull(crawlerThread.template);
     crawlerThread.connectQueue();
-    crawlerThread.loadTemplateDoc("testtemplate1");
-    assertNotNull(crawlerThread.templateDoc);
-    assertNotNull(crawlerThread.formsdc);
-    assertNotNull(crawlerThread.metaFields);
-    assertEquals("testtemplate1",
-        crawlerThread.templateDoc
-        .getItemValueString(NCCONST.TITM_TEMPLATENAME));
-    for (NotesCrawlerThread.MetaField mf : crawlerThread.metaFields) {
+    crawlerThread.loadTemplate("testtemplate1");
+    assertNotNull(crawlerThread.template);
+    assertEquals("testtemplate1", crawlerThread.template.getName());
+    assertEquals(2, crawlerThread.template.getMetaFields().size());
+    for (NotesCrawlerThread.MetaField mf
+             : crawlerThread.template.getMetaFields()) {
       assertTrue(mf.getFieldName().equals("foo")
           || mf.getFieldName().equals("bar"));
     }
-    crawlerThread.loadTemplateDoc("testtemplate2");
-    assertEquals("testtemplate2",
-        crawlerThread.templateDoc
-        .getItemValueString(NCCONST.TITM_TEMPLATENAME));
+    NotesTemplateConfig.Template loaded = crawlerThread.template;
+    crawlerThread.loadTemplate("testtemplate2");
+    assertEquals("testtemplate2", crawlerThread.template.getName());
+    crawlerThread.loadTemplate("testtemplate1");
+    assertSame(loaded, crawlerThread.template);
+    crawlerThread.loadTemplate("nosuchtemplate");
+    assertNull(crawlerThread.template);
   }
 
   public void testLoadForm() throws Exception {
@@ -294,11 +355,14 @@ public class NotesCrawlerThreadTest extends TestCase {
     NotesCrawlerThread crawlerThread = new NotesCrawlerThread(connector,
         connectorSession);
     crawlerThread.connectQueue();
-    crawlerThread.loadTemplateDoc("testtemplate1");
+    crawlerThread.loadTemplate("testtemplate1");
+    crawlerThread.loadForm("testtemplate1form");
+    assertNotNull(crawlerThread.form);
+    assertEquals("testtemplate1form", crawlerThread.form.getName());
     crawlerThread.loadForm("testtemplate1form");
-    assertNotNull(crawlerThread.formDoc);
-    assertEquals("testtemplate1form",
-        crawlerThread.formDoc.getItemValueString(NCCONST.FITM_LASTALIAS));
+    assertEquals("testtemplate1form", crawlerThread.form.getName());
+    crawlerThread.loadForm("otherform");
+    assertNull(crawlerThread.form);
   }
 
   public void testGetDocumentReaderNames() throws Exception {
@@ -444,11 +508,8 @@ public class NotesCrawlerThreadTest extends TestCase {
     NotesDocumentMock srcDoc = getSourceDocument();
 
     NotesCrawlerThread crawlerThread = new NotesCrawlerThread(null, null);
-    NotesDocumentMock formDoc = new NotesDocumentMock();
-    NotesItemMock item = new NotesItemMock("name", NCCONST.FITM_FIELDSTOINDEX,
-        "type", NotesItem.TEXT, "values", "field 2");
-    formDoc.addItem(item);
-    crawlerThread.formDoc = formDoc;
+    crawlerThread.form = new NotesTemplateConfig.Form("Main Topic", "", "",
+        Lists.newArrayList("field 2"));
     String content = crawlerThread.getContentFields(srcDoc);
     assertEquals("\nvalue for field 2", content);
   }
@@ -568,5 +629,131 @@ public class NotesCrawlerThreadTest extends TestCase {
       docMgr.releaseDatabaseConnection(conn);
     }
   }
-}
 
+  /** Creates a crawler that records the attachments it would send. */
+  private NotesCrawlerThread getAttachmentCrawler(final List<String> sent)
+      throws Exception {
+    NotesCrawlerThread crawler =
+        new NotesCrawlerThread(connector, connectorSession) {
+          @Override
+          String createAttachmentDoc(NotesDocument crawlDoc,
+              NotesDocument srcDoc, String attachmentName, String mimeType) {
+            sent.add(attachmentName);
+            return Util.hash(attachmentName);
+          }
+        };
+    crawler.connectQueue();
+    crawler.loadTemplate("Discussion");
+    return crawler;
+  }
+
+  private NotesDocumentMock getAttachmentCrawlDoc(String reader)
+      throws Exception {
+    NotesDocumentMock crawlDoc = new NotesDocumentMock();
+    crawlDoc.replaceItemValue(NCCONST.ITM_TITLE, "Battle plans");
+    crawlDoc.replaceItemValue(NCCONST.NCITM_DOCREADERS, reader);
+    return crawlDoc;
+  }
+
+  private NotesDocumentMock getAttachmentSourceDoc(double length,
+      Date modified) throws Exception {
+    NotesDocumentMock srcDoc = new NotesDocumentMock();
+    srcDoc.replaceItemValue("evaluate_@AttachmentNames", "plans.doc");
+    srcDoc.replaceItemValue("evaluate_@AttachmentLengths", length);
+    srcDoc.replaceItemValue("evaluate_@AttachmentModifiedTimes", modified);
+    return srcDoc;
+  }
+
+  /** Gets the fingerprints that are stored when a document is indexed. */
+  private HashMap<String, String> getCachedAttachments(
+      NotesDocumentMock crawlDoc) throws Exception {
+    HashMap<String, String> cachedAttachments = new HashMap<String, String>();
+    Vector<?> docIds =
+        crawlDoc.getItemValue(NCCONST.ITM_GMETAATTACHMENTDOCIDS);
+    Vector<?> fingerprints =
+        crawlDoc.getItemValue(NCCONST.NCITM_ATTACHMENTFINGERPRINTS);
+    for (int i = 0; i < docIds.size(); i++) {
+      cachedAttachments.put(docIds.get(i).toString(),
+          fingerprints.get(i).toString());
+    }
+    return cachedAttachments;
+  }
+
+  public void testUnchangedAttachmentSkipped() throws Exception {
+    NotesDocId notesId = new NotesDocId("http://testserver/replicaid/0/unid");
+    Date modified = new Date();
+    List<String> sent = new ArrayList<String>();
+    NotesCrawlerThread crawler = getAttachmentCrawler(sent);
+
+    NotesDocumentMock crawlDoc = getAttachmentCrawlDoc("cn=yoda");
+    crawler.extractAttachments(crawlDoc,
+        getAttachmentSourceDoc(100.0, modified), "notesurl", null);
+    assertEquals(Lists.newArrayList("plans.doc"), sent);
+    HashMap<String, String> cachedAttachments =
+        getCachedAttachments(crawlDoc);
+
+    sent.clear();
+    crawlDoc = getAttachmentCrawlDoc("cn=yoda");
+    Vector<String> docIds = crawler.extractAttachments(crawlDoc,
+        getAttachmentSourceDoc(100.0, modified), "notesurl",
+        cachedAttachments);
+    assertEquals(0, sent.size());
+    assertEquals(Lists.newArrayList(Util.hash("plans.doc")), docIds);
+    assertTrue(crawlDoc.getItemValue(NCCONST.ITM_GMETAATTACHMENTS)
+        .contains("plans.doc"));
+
+    // The skipped attachment is still current, so it is not deleted.
+    crawler.enqueue(notesId, docIds, cachedAttachments);
+    assertEquals(0, dbConfigMock.getDocumentsByField(NCCONST.ITM_DOCID,
+        String.format(NCCONST.SITM_ATTACHMENTDOCID, notesId.toString(),
+            Util.hash("plans.doc"))).size());
+  }
+
+  public void testChangedAttachmentResent() throws Exception {
+    Date modified = new Date();
+    List<String> sent = new ArrayList<String>();
+    NotesCrawlerThread crawler = getAttachmentCrawler(sent);
+
+    NotesDocumentMock crawlDoc = getAttachmentCrawlDoc("cn=yoda");
+    crawler.extractAttachments(crawlDoc,
+        getAttachmentSourceDoc(100.0, modified), "notesurl", null);
+    HashMap<String, String> cachedAttachments =
+        getCachedAttachments(crawlDoc);
+
+    // A new length.
+    sent.clear();
+    crawler.extractAttachments(getAttachmentCrawlDoc("cn=yoda"),
+        getAttachmentSourceDoc(200.0, modified), "notesurl",
+        cachedAttachments);
+    assertEquals(Lists.newArrayList("plans.doc"), sent);
+
+    // A new modified time.
+    sent.clear();
+    crawler.extractAttachments(getAttachmentCrawlDoc("cn=yoda"),
+        getAttachmentSourceDoc(100.0, new Date(modified.getTime() + 1000L)),
+        "notesurl", cachedAttachments);
+    assertEquals(Lists.newArrayList("plans.doc"), sent);
+
+    // New readers on the parent document.
+    sent.clear();
+    crawler.extractAttachments(getAttachmentCrawlDoc("cn=dooku"),
+        getAttachmentSourceDoc(100.0, modified), "notesurl",
+        cachedAttachments);
+    assertEquals(Lists.newArrayList("plans.doc"), sent);
+  }
+
+  public void testMissingFingerprintResent() throws Exception {
+    List<String> sent = new ArrayList<String>();
+    NotesCrawlerThread crawler = getAttachmentCrawler(sent);
+
+    // Attachments indexed before fingerprints were stored have none.
+    HashMap<String, String> cachedAttachments = new HashMap<String, String>();
+    cachedAttachments.put(Util.hash("plans.doc"), null);
+    Vector<String> docIds = crawler.extractAttachments(
+        getAttachmentCrawlDoc("cn=yoda"),
+        getAttachmentSourceDoc(100.0, new Date()), "notesurl",
+        cachedAttachments);
+    assertEquals(Lists.newArrayList("plans.doc"), sent);
+    assertEquals(Lists.newArrayList(Util.hash("plans.doc")), docIds);
+  }
+}
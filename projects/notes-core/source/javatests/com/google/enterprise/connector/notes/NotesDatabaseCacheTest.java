@@ -0,0 +1,76 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import com.google.enterprise.connector.notes.client.NotesDatabase;
+import com.google.enterprise.connector.notes.client.mock.NotesDatabaseMock;
+import com.google.enterprise.connector.notes.client.mock.SessionFactoryMock;
+
+import junit.framework.TestCase;
+
+public class NotesDatabaseCacheTest extends TestCase {
+  private NotesDatabaseCache cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    SessionFactoryMock factory = new SessionFactoryMock();
+    factory.addDatabase(new NotesDatabaseMock("server1", "db1.nsf", "REPLICA1"));
+    factory.addDatabase(new NotesDatabaseMock("server1", "db2.nsf", "REPLICA2"));
+    factory.addDatabase(new NotesDatabaseMock("server1", "db3.nsf", "REPLICA3"));
+    cache = new NotesDatabaseCache(
+        factory.createSessionWithFullAccess(null), 2);
+  }
+
+  public void testGet() throws Exception {
+    NotesDatabase db = cache.get("server1", "REPLICA1");
+    assertNotNull(db);
+    assertEquals("REPLICA1", db.getReplicaID());
+    assertSame(db, cache.get("server1", "REPLICA1"));
+    assertSame(db, cache.get("SERVER1", "replica1"));
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getOpens());
+  }
+
+  public void testGetUnknownDatabase() throws Exception {
+    assertNull(cache.get("server1", "REPLICA9"));
+    assertEquals(0, cache.size());
+    assertEquals(1, cache.getOpens());
+  }
+
+  public void testLeastRecentlyUsedEviction() throws Exception {
+    NotesDatabase db1 = cache.get("server1", "REPLICA1");
+    cache.get("server1", "REPLICA2");
+    assertSame(db1, cache.get("server1", "REPLICA1"));
+    cache.get("server1", "REPLICA3");
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictions());
+
+    assertSame(db1, cache.get("server1", "REPLICA1"));
+    assertEquals(3, cache.getOpens());
+    cache.get("server1", "REPLICA2");
+    assertEquals(4, cache.getOpens());
+  }
+
+  public void testRecycle() throws Exception {
+    cache.get("server1", "REPLICA1");
+    cache.get("server1", "REPLICA2");
+    cache.recycle();
+    assertEquals(0, cache.size());
+    cache.get("server1", "REPLICA1");
+    assertEquals(3, cache.getOpens());
+  }
+}
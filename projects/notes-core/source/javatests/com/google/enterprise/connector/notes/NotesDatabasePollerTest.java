@@ -39,6 +39,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
 
 public class NotesDatabasePollerTest extends TestCase {
 
@@ -256,6 +257,77 @@ public class NotesDatabasePollerTest extends TestCase {
     assertEquals(expectedLastUpdate, getLastUpdatedTime(configDb, srcDb));
   }
 
+  public void testPollDatabasesNextPollTime() throws Exception {
+    NotesDatabaseMock configDb = setUpConfigDb();
+    NotesDatabaseMock srcDb = setUpSourceDb(configDb);
+    NotesDocument srcDbDoc = configDb.getDocumentByUNID(srcDb.getReplicaID());
+    srcDbDoc.replaceItemValue(NCCONST.DITM_UPDATEFREQUENCY, 60);
+    generateSourceDocs(srcDb, NCCONST.VIEWINDEXED, "11/12/2014 10:00:00");
+
+    long before = System.currentTimeMillis();
+    int docsBeforePolling = getDocCount(configDb);
+    long nextPollTime = poller.pollDatabases(
+        connectorSession.createNotesSession(), configDb, 100);
+    assertEquals(docsBeforePolling + 1, getDocCount(configDb));
+    assertTrue(String.valueOf(nextPollTime),
+        nextPollTime >= before + 60 * 60 * 1000L);
+
+    // The database is not polled again until its update frequency
+    // has elapsed.
+    generateSourceDocs(srcDb, NCCONST.VIEWINDEXED, "11/12/2014 11:00:00");
+    docsBeforePolling = getDocCount(configDb);
+    assertEquals(nextPollTime, poller.pollDatabases(
+        connectorSession.createNotesSession(), configDb, 100));
+    assertEquals(docsBeforePolling, getDocCount(configDb));
+
+    // After a reset, the database is checked again.
+    poller.resetPollTimes();
+    poller.pollDatabases(connectorSession.createNotesSession(), configDb, 100);
+    assertEquals(docsBeforePolling + 1, getDocCount(configDb));
+  }
+
+  public void testPollDatabasesByServer() throws Exception {
+    NotesDatabaseMock configDb = setUpConfigDb();
+    NotesDatabaseMock srcDb = setUpSourceDb(configDb);
+    generateSourceDocs(srcDb, NCCONST.VIEWINDEXED, "11/12/2014 10:00:00",
+        "11/12/2014 10:00:01");
+
+    poller.setNumThreads(2);
+    int docsBeforePolling = getDocCount(configDb);
+    poller.pollDatabases(connectorSession.createNotesSession(), configDb, 100);
+    assertEquals(docsBeforePolling + 2, getDocCount(configDb));
+    assertEquals(MockFixture.parseTime("11/12/2014 10:00:01"),
+        getLastUpdatedTime(configDb, srcDb));
+  }
+
+  public void testPollDatabasesByServerReusesThreads() throws Exception {
+    NotesDatabaseMock configDb = setUpConfigDb();
+    NotesDatabaseMock srcDb = setUpSourceDb(configDb);
+    generateSourceDocs(srcDb, NCCONST.VIEWINDEXED, "11/12/2014 10:00:00");
+
+    poller.setNumThreads(2);
+    poller.pollDatabases(connectorSession.createNotesSession(), configDb, 100);
+    ExecutorService executor = poller.getExecutor();
+    poller.resetPollTimes();
+    poller.pollDatabases(connectorSession.createNotesSession(), configDb, 100);
+    assertSame(executor, poller.getExecutor());
+
+    poller.shutdown();
+    assertTrue(executor.isShutdown());
+  }
+
+  public void testPollDatabasesQueueFull() throws Exception {
+    NotesDatabaseMock configDb = setUpConfigDb();
+    NotesDatabaseMock srcDb = setUpSourceDb(configDb);
+    generateSourceDocs(srcDb, NCCONST.VIEWINDEXED, "11/12/2014 10:00:00");
+
+    // The phantom documents in the queues exceed the maximum depth.
+    int docsBeforePolling = getDocCount(configDb);
+    assertEquals(0L, poller.pollDatabases(
+        connectorSession.createNotesSession(), configDb, 0));
+    assertEquals(docsBeforePolling, getDocCount(configDb));
+  }
+
   private NotesDatabaseMock setUpConfigDb() throws Exception {
     String searchFormula =
         "Select Form *= \"Main Topic\":\"MainTopic\":\"Response\"";
@@ -32,6 +32,9 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -142,6 +145,33 @@ public class NotesDocumentManagerTest extends TestCase {
     Set<String> keys = docIds.keySet();
     assertEquals(unid, keys.iterator().next());
   }
+
+  public void testGetIndexedDocumentsWrapAround() throws RepositoryException {
+    Map<String, NotesDocId> allDocIds =
+        notesDocManager.getIndexedDocuments(null, null, NUM_OF_DOCS * 2);
+    String firstUnid = allDocIds.keySet().iterator().next();
+    NotesDocId lastDocId = null;
+    for (NotesDocId docId : allDocIds.values()) {
+      lastDocId = docId;
+    }
+
+    //Starting from the last record resets to the first record
+    Map<String, NotesDocId> docIds = notesDocManager.getIndexedDocuments(
+        lastDocId.getDocId(), lastDocId.getReplicaId(), 10);
+    assertEquals(10, docIds.size());
+    assertEquals(firstUnid, docIds.keySet().iterator().next());
+
+    //Starting from a deleted record continues with the next record
+    NotesDocument doc = docs.get(NUM_OF_DOCS / 2);
+    String unid = doc.getItemValueString(NCCONST.NCITM_UNID);
+    String replicaid = doc.getItemValueString(NCCONST.NCITM_REPLICAID);
+    String nextUnid = docs.get(NUM_OF_DOCS / 2 + 1)
+        .getItemValueString(NCCONST.NCITM_UNID);
+    assertTrue(notesDocManager.deleteDocument(unid, replicaid));
+    docIds = notesDocManager.getIndexedDocuments(unid, replicaid, 10);
+    assertEquals(10, docIds.size());
+    assertEquals(nextUnid, docIds.keySet().iterator().next());
+  }
   
   public void testGetDocumentReaders() throws RepositoryException {
     NotesDocument doc = docs.get(0);
@@ -156,6 +186,35 @@ public class NotesDocumentManagerTest extends TestCase {
         doc.getItemValueString(NCCONST.NCITM_REPLICAID));
     assertEquals(0, reader2.size());
   }
+
+  public void testGetDocumentReadersBatch() throws RepositoryException {
+    String replicaId = docs.get(0).getItemValueString(NCCONST.NCITM_REPLICAID);
+    List<String> unids = new ArrayList<String>();
+    for (int i = 0; i < 10; i++) {
+      unids.add(docs.get(i).getItemValueString(NCCONST.NCITM_UNID));
+    }
+    Map<String, Set<String>> unidsByReplicaId =
+        new HashMap<String, Set<String>>();
+    unidsByReplicaId.put(replicaId, new LinkedHashSet<String>(unids));
+    unidsByReplicaId.put("0000000000000000", new HashSet<String>(unids));
+
+    Map<String, Map<String, Set<String>>> readers =
+        notesDocManager.getDocumentReaders(unidsByReplicaId);
+    assertEquals(1, readers.size());
+    Map<String, Set<String>> readersByUnid = readers.get(replicaId);
+    // Only the even documents have readers.
+    assertEquals(5, readersByUnid.size());
+    for (int i = 0; i < 10; i++) {
+      String unid = unids.get(i);
+      Set<String> expected = notesDocManager.getDocumentReaders(unid,
+          replicaId);
+      if (i % 2 == 0) {
+        assertEquals(expected, readersByUnid.get(unid));
+      } else {
+        assertFalse(readersByUnid.containsKey(unid));
+      }
+    }
+  }
   
   public void testDeleteDocument() throws RepositoryException {
     NotesDocument doc = null;
@@ -267,6 +326,39 @@ public class NotesDocumentManagerTest extends TestCase {
     }
   }
 
+  public void testAttachmentFingerprints() throws RepositoryException {
+    Connection conn = null;
+    try {
+      conn = notesDocManager.getDatabaseConnection();
+      NotesDocument doc = docs.get(0);
+      String unid = doc.getItemValueString(NCCONST.NCITM_UNID);
+      String repid = doc.getItemValueString(NCCONST.NCITM_REPLICAID);
+
+      Vector<String> attachmentNames = new Vector<String>();
+      attachmentNames.add("attachment1.doc");
+      attachmentNames.add("attachment2.doc");
+      doc.replaceItemValue(NCCONST.ITM_GMETAATTACHMENTDOCIDS, attachmentNames);
+      Vector<String> fingerprints = new Vector<String>();
+      fingerprints.add("fingerprint1");
+      fingerprints.add("");
+      doc.replaceItemValue(NCCONST.NCITM_ATTACHMENTFINGERPRINTS, fingerprints);
+
+      notesDocManager.addIndexedDocument(doc, conn);
+      Map<String, String> attachments =
+          notesDocManager.getAttachmentFingerprints(conn, unid, repid);
+      assertEquals(2, attachments.size());
+      assertEquals("fingerprint1", attachments.get("attachment1.doc"));
+      assertTrue(attachments.containsKey("attachment2.doc"));
+      assertNull(attachments.get("attachment2.doc"));
+    } catch (SQLException e) {
+      throw new RepositoryException(e);
+    } finally {
+      if (conn != null) {
+        notesDocManager.releaseDatabaseConnection(conn);
+      }
+    }
+  }
+
   public void testClearTables() throws RepositoryException {
     assertTrue(notesDocManager.clearTables());
   }
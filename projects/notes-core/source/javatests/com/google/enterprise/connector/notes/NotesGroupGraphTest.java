@@ -0,0 +1,117 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import junit.framework.TestCase;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+public class NotesGroupGraphTest extends TestCase {
+
+  private NotesGroupGraph graph;
+
+  @Override
+  protected void setUp() {
+    graph = new NotesGroupGraph();
+  }
+
+  private void addMembers(String parent, String... members) {
+    int parentNode = graph.addGroup(parent);
+    for (String member : members) {
+      graph.addMember(parentNode, graph.addGroup(member));
+    }
+  }
+
+  private Set<String> getDescendants(String group) {
+    Set<String> names = new TreeSet<String>();
+    for (int node : graph.getDescendants(graph.getNode(group))) {
+      names.add(graph.getName(node));
+    }
+    return names;
+  }
+
+  private Set<String> getAncestors(String group) {
+    Set<String> names = new TreeSet<String>();
+    for (int node : graph.getAncestors(graph.getNode(group))) {
+      names.add(graph.getName(node));
+    }
+    return names;
+  }
+
+  public void testNestedGroups() {
+    addMembers("good guys", "jedi", "senators", "clones");
+    addMembers("jedi", "masters", "padawan learners");
+    addMembers("masters", "*/ou=tests/o=tests");
+
+    assertEquals("[*/ou=tests/o=tests, clones, jedi, masters, "
+        + "padawan learners, senators]", getDescendants("good guys").toString());
+    assertEquals("[*/ou=tests/o=tests, masters, padawan learners]",
+        getDescendants("jedi").toString());
+    assertEquals("[]", getDescendants("clones").toString());
+    assertEquals("[good guys, jedi]", getAncestors("masters").toString());
+    assertEquals("[]", getAncestors("good guys").toString());
+  }
+
+  public void testCycle() {
+    addMembers("a", "b");
+    addMembers("b", "c");
+    addMembers("c", "a", "d");
+    addMembers("e", "a");
+
+    assertEquals("[a, b, c, d]", getDescendants("a").toString());
+    assertEquals("[a, b, c, d]", getDescendants("c").toString());
+    assertEquals("[a, b, c, d]", getDescendants("e").toString());
+    assertEquals("[]", getDescendants("d").toString());
+    assertEquals("[a, b, c, e]", getAncestors("b").toString());
+  }
+
+  public void testSelfMember() {
+    addMembers("a", "a", "b");
+
+    assertEquals("[a, b]", getDescendants("a").toString());
+    assertEquals("[a]", getAncestors("b").toString());
+  }
+
+  public void testAddGroupAfterClosure() {
+    addMembers("a", "b");
+    assertEquals("[b]", getDescendants("a").toString());
+    addMembers("b", "c");
+    assertEquals("[b, c]", getDescendants("a").toString());
+  }
+
+  public void testGetNodeByUnid() {
+    int node = graph.addGroup("jedi", "unid1");
+    assertEquals(node, graph.getNodeByUnid("unid1"));
+    assertEquals(node, graph.getNode("jedi"));
+    assertEquals(-1, graph.getNodeByUnid("unid2"));
+    graph.addGroup("sith lords");
+    assertEquals("[unid1]", graph.getGroupUnids().toString());
+    assertEquals(-1, graph.getNode("sith"));
+    assertEquals(-1L, graph.getGroupId(node));
+    graph.setGroupId(node, 42L);
+    assertEquals(42L, graph.getGroupId(node));
+  }
+
+  public void testDeepNesting() {
+    int count = 2000;
+    for (int i = 0; i < count; i++) {
+      addMembers("group" + i, "group" + (i + 1));
+    }
+    assertEquals(count, graph.getDescendants(graph.getNode("group0")).length);
+    assertEquals(count,
+        graph.getAncestors(graph.getNode("group" + count)).length);
+  }
+}
@@ -0,0 +1,85 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import junit.framework.TestCase;
+
+public class NotesPollerNotifierTest extends TestCase {
+
+  private NotesConnector connector;
+  private NotesPollerNotifier npn;
+
+  @Override
+  protected void setUp() throws Exception {
+    connector = new NotesConnector(
+        "com.google.enterprise.connector.notes.client.mock.SessionFactoryMock");
+    npn = new NotesPollerNotifier(connector);
+    npn.setNumThreads(3);
+  }
+
+  public void testWakeWorkersLimitedByThreads() {
+    npn.wakeWorkers(1);
+    assertEquals(1, npn.getPermits());
+    npn.wakeWorkers(10);
+    assertEquals(3, npn.getPermits());
+    npn.wakeWorkers(0);
+    assertEquals(3, npn.getPermits());
+  }
+
+  public void testWaitForWorkTakesPermit() {
+    npn.wakeWorkers(2);
+    npn.waitForWork();
+    assertEquals(1, npn.getPermits());
+    npn.waitForWork();
+    assertEquals(0, npn.getPermits());
+  }
+
+  public void testWaitForWorkWakesOneThread() throws Exception {
+    Thread waiter = new Thread() {
+        @Override
+        public void run() {
+          npn.waitForWork();
+        }
+      };
+    waiter.start();
+    npn.wakeWorkers(1);
+    waiter.join(5000);
+    assertFalse(waiter.isAlive());
+    assertEquals(0, npn.getPermits());
+  }
+
+  public void testShutdownWakesAllThreads() throws Exception {
+    Thread crawler = new Thread() {
+        @Override
+        public void run() {
+          npn.waitForWork();
+        }
+      };
+    Thread maintenance = new Thread() {
+        @Override
+        public void run() {
+          npn.waitForMaintenance(60000L);
+        }
+      };
+    crawler.start();
+    maintenance.start();
+    connector.shutdown();
+    npn.wakeAll();
+    crawler.join(5000);
+    maintenance.join(5000);
+    assertFalse(crawler.isAlive());
+    assertFalse(maintenance.isAlive());
+  }
+}
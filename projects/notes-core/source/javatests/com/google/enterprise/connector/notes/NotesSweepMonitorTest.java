@@ -0,0 +1,38 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import junit.framework.TestCase;
+
+public class NotesSweepMonitorTest extends TestCase {
+
+  public void testChunks() {
+    NotesSweepMonitor monitor = new NotesSweepMonitor("test", 3);
+    for (int i = 1; i <= 7; i++) {
+      assertEquals(i % 3 == 0, monitor.processed());
+    }
+    monitor.finish();
+    assertEquals(7, monitor.getDocumentCount());
+    assertEquals(2, monitor.getChunkCount());
+  }
+
+  public void testMaxUsedMemory() {
+    NotesSweepMonitor monitor = new NotesSweepMonitor("test", 2);
+    monitor.processed();
+    assertEquals(0L, monitor.getMaxUsedMemory());
+    monitor.processed();
+    assertTrue(monitor.getMaxUsedMemory() > 0L);
+  }
+}
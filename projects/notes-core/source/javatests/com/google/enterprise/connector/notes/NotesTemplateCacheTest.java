@@ -0,0 +1,110 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import com.google.enterprise.connector.notes.client.NotesItem;
+import com.google.enterprise.connector.notes.client.mock.NotesDatabaseMock;
+import com.google.enterprise.connector.notes.client.mock.NotesDateTimeMock;
+import com.google.enterprise.connector.notes.client.mock.NotesDocumentMock;
+import com.google.enterprise.connector.notes.client.mock.NotesItemMock;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import junit.framework.TestCase;
+
+import java.util.Date;
+
+public class NotesTemplateCacheTest extends TestCase {
+  private long now;
+  private NotesDatabaseMock configDatabase;
+  private NotesDocumentMock templateDoc;
+  private NotesTemplateCache cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    now = 1000L;
+    configDatabase = new NotesDatabaseMock("testserver", "testconfig.nsf");
+    configDatabase.setViewFields(NCCONST.VIEWTEMPLATES,
+        NCCONST.TITM_TEMPLATENAME);
+    templateDoc = new NotesDocumentMock();
+    templateDoc.addItem(new NotesItemMock("name", NCCONST.TITM_TEMPLATENAME,
+        "type", NotesItem.TEXT, "values", "Discussion"));
+    templateDoc.addItem(new NotesItemMock("name", NCCONST.TITM_SEARCHSTRING,
+        "type", NotesItem.TEXT, "values", "Select @All"));
+    templateDoc.addItem(new NotesItemMock("name", NCCONST.TITM_METAFIELDS,
+        "type", NotesItem.TEXT, "values", "foo", "bar=mappedbar"));
+    templateDoc.addResponse(createForm("Main Topic", "Subject", "Body"));
+    configDatabase.addDocument(templateDoc, NCCONST.VIEWTEMPLATES);
+
+    cache = new NotesTemplateCache(100L) {
+      @Override
+      long currentTimeMillis() {
+        return now;
+      }
+    };
+  }
+
+  private NotesDocumentMock createForm(String name, String... fields)
+      throws RepositoryException {
+    NotesDocumentMock formDoc = new NotesDocumentMock();
+    formDoc.addItem(new NotesItemMock("name", NCCONST.FITM_LASTALIAS,
+        "type", NotesItem.TEXT, "values", name));
+    formDoc.addItem(new NotesItemMock("name", NCCONST.FITM_FIELDSTOINDEX,
+        "type", NotesItem.TEXT, "values", (Object[]) fields));
+    return formDoc;
+  }
+
+  public void testGetTemplate() throws Exception {
+    NotesTemplateConfig config = cache.get(configDatabase);
+    assertEquals(1, config.getVersion());
+    assertEquals(1, config.size());
+
+    NotesTemplateConfig.Template template = config.getTemplate("discussion");
+    assertNotNull(template);
+    assertSame(template, config.getTemplate("Discussion"));
+    assertEquals("Select @All", template.getSearchString());
+    assertEquals(2, template.getMetaFields().size());
+    assertEquals("mappedbar", template.getMetaFields().get(1).getMetaName());
+    assertNull(config.getTemplate("Mail"));
+
+    NotesTemplateConfig.Form form = template.getForm("Main Topic");
+    assertNotNull(form);
+    assertEquals(2, form.getFieldsToIndex().size());
+    assertEquals("Body", form.getFieldsToIndex().get(1));
+    assertNull(template.getForm("Response"));
+  }
+
+  public void testReloadOnlyWhenChanged() throws Exception {
+    NotesTemplateConfig config = cache.get(configDatabase);
+
+    // Added forms are not seen until the refresh interval passes.
+    templateDoc.addResponse(createForm("Response", "Body"));
+    assertSame(config, cache.get(configDatabase));
+
+    now += 101L;
+    NotesTemplateConfig reloaded = cache.get(configDatabase);
+    assertEquals(2, reloaded.getVersion());
+    assertNotNull(reloaded.getTemplate("Discussion").getForm("Response"));
+    assertNull(config.getTemplate("Discussion").getForm("Response"));
+
+    // Unchanged template documents are not reloaded.
+    now += 101L;
+    assertSame(reloaded, cache.get(configDatabase));
+
+    templateDoc.setLastModified(new NotesDateTimeMock(new Date(now)));
+    cache.invalidate();
+    assertEquals(3, cache.get(configDatabase).getVersion());
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import com.google.enterprise.connector.notes.NotesUserGroupManager.User;
+
+import junit.framework.TestCase;
+
+public class NotesUserCacheTest extends TestCase {
+  private long now;
+  private NotesUserCache cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    now = 1000L;
+    cache = new NotesUserCache(2, 100L) {
+      @Override
+      long currentTimeMillis() {
+        return now;
+      }
+    };
+  }
+
+  private User createUser(long id, String gsaName) {
+    return new User(id, "cn=" + gsaName + "/o=tests", gsaName);
+  }
+
+  public void testHitAndMiss() {
+    User yoda = createUser(1L, "yoda");
+    assertNull(cache.get("yoda"));
+    cache.put("yoda", yoda, cache.getGeneration());
+    assertSame(yoda, cache.get("yoda"));
+    assertSame(yoda, cache.get("YODA"));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  public void testExpiration() {
+    cache.put("yoda", createUser(1L, "yoda"), cache.getGeneration());
+    now += 99L;
+    assertNotNull(cache.get("yoda"));
+    now += 1L;
+    assertNull(cache.get("yoda"));
+    assertEquals(0, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  public void testSizeBound() {
+    long generation = cache.getGeneration();
+    cache.put("yoda", createUser(1L, "yoda"), generation);
+    cache.put("anakin", createUser(2L, "anakin"), generation);
+    assertNotNull(cache.get("yoda"));
+    cache.put("cody", createUser(3L, "cody"), generation);
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+    assertNotNull(cache.get("yoda"));
+    assertNull(cache.get("anakin"));
+    assertNotNull(cache.get("cody"));
+  }
+
+  public void testInvalidateAll() {
+    long generation = cache.getGeneration();
+    cache.put("yoda", createUser(1L, "yoda"), generation);
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+    assertNull(cache.get("yoda"));
+
+    // A lookup started before the invalidation is not cached.
+    cache.put("yoda", createUser(1L, "yoda"), generation);
+    assertEquals(0, cache.size());
+    cache.put("yoda", createUser(1L, "yoda"), cache.getGeneration());
+    assertEquals(1, cache.size());
+  }
+}
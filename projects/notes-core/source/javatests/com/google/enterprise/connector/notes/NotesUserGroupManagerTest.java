@@ -44,6 +44,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
 
 public class NotesUserGroupManagerTest extends TestCase {
 
@@ -511,6 +513,59 @@ public class NotesUserGroupManagerTest extends TestCase {
     assertRoleDoesNotExist("serreplicaid0123/[removablerole]");
   }
 
+  public void testUpdateRolesForDatabase() throws Exception {
+    setUpUsers();
+    userGroupManager.updateRoles(
+        session.getDatabase("JediServer", "JediTrainingManuals.nsf"));
+    getRoleData();
+    assertUserHasRole("yoda", "jtmreplicaid0123/[philosopher]");
+    assertRoleDoesNotExist("espreplicaid0123/[henchman]");
+    assertTrue(userGroupManager.queuedRoleUpdates.isEmpty());
+  }
+
+  public void testUpdateRolesQueuedWhileLocked() throws Exception {
+    setUpUsers();
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Thread cacheUpdate = new Thread() {
+      @Override
+      public void run() {
+        userGroupManager.updateLock.lock();
+        try {
+          locked.countDown();
+          release.await();
+        } catch (InterruptedException e) {
+          // Release the lock.
+        } finally {
+          userGroupManager.updateLock.unlock();
+        }
+      }
+    };
+    cacheUpdate.start();
+    try {
+      locked.await();
+      // Another thread holds the lock, so the database is queued.
+      userGroupManager.updateRoles(
+          session.getDatabase("JediServer", "JediTrainingManuals.nsf"));
+      assertEquals(Collections.singleton("jtmreplicaid0123"),
+          userGroupManager.queuedRoleUpdates);
+      getRoleData();
+      assertRoleDoesNotExist("jtmreplicaid0123/[philosopher]");
+    } finally {
+      release.countDown();
+      cacheUpdate.join();
+    }
+
+    // The next thread to take the lock updates the queued database
+    // as well as its own.
+    userGroupManager.updateRoles(
+        session.getDatabase("SenateServer", "EvilSeparatistPlots.nsf"));
+    assertTrue(userGroupManager.queuedRoleUpdates.isEmpty());
+    getRoleData();
+    assertUserHasRole("yoda", "jtmreplicaid0123/[philosopher]");
+    assertUserHasRole("dooku", "espreplicaid0123/[henchman]");
+  }
+
   public void testUserDeletions() throws Exception {
     setUpRoles();
 
@@ -586,6 +641,90 @@ public class NotesUserGroupManagerTest extends TestCase {
     }
   }
 
+  public void testCheckUserDeletionsKeepsDirectoryUsers() throws Exception {
+    setUpUsers();
+    HashMap<String, Long> before = new HashMap<String, Long>(gsaUserNames);
+    userGroupManager.checkUserDeletions();
+    getGroupData();
+    getUserData();
+    assertEquals(before, gsaUserNames);
+  }
+
+  public void testUserDeletionsCommitWindow() throws Exception {
+    setUpUsers();
+    Long rexId = assertUserExists("rex");
+    Long codyId = assertUserExists("cody");
+    NotesView nameView = namesDatabase.getView("notesnamelookup");
+    NotesDocumentMock rex = (NotesDocumentMock) nameView.getDocumentByKey(
+        "cn=Rex/ou=Tests/o=Tests");
+    NotesDocumentMock cody = (NotesDocumentMock) nameView.getDocumentByKey(
+        "cn=Cody/ou=Tests/o=Tests");
+    int commitWindow = connector.getCacheCommitWindow();
+    try {
+      // Each deleted user is committed in its own window.
+      connector.setCacheCommitWindow(1);
+      rex.remove(true);
+      cody.remove(true);
+      userGroupManager.checkUserDeletions();
+      getGroupData();
+      getUserData();
+      assertUserDoesNotExist("rex");
+      assertUserDoesNotExist("cody");
+      assertNull("user still has groups", userGroups.get(rexId));
+      assertNull("user still has groups", userGroups.get(codyId));
+      assertEquals(USER_COUNT - 2, gsaUserNames.size());
+      assertUserHasGroup("echo", "clones");
+    } finally {
+      connector.setCacheCommitWindow(commitWindow);
+      addNotesUser(namesDatabase, "cn=Rex/ou=Tests/o=Tests", "rex");
+      addNotesUser(namesDatabase, "cn=Cody/ou=Tests/o=Tests", "cody");
+    }
+  }
+
+  public void testCheckGroupDeletionsKeepsDirectoryGroups()
+      throws Exception {
+    setUpUsers();
+    HashMap<String, Long> before = new HashMap<String, Long>(groups);
+    userGroupManager.checkGroupDeletions();
+    getGroupData();
+    getUserData();
+    // The hierarchical group is kept under its canonical name, and
+    // the pseudo-groups for the user OUs are not checked at all.
+    assertEquals(before, groups);
+    assertGroupExists("cn=west coast/ou=west/o=test");
+    assertGroupExists("ou=tests/o=tests");
+    assertGroupExists("o=tests");
+  }
+
+  public void testUpdateModifiedGroup() throws Exception {
+    setUpUsers();
+    assertGroupHasChild("good guys", "clones");
+    assertUserHasGroup("echo", "good guys");
+
+    NotesView nameView = namesDatabase.getView("grouplookup");
+    NotesDocumentMock doc = (NotesDocumentMock) nameView.getDocumentByKey(
+        "good guys");
+    assertNotNull("No good guys", doc);
+    try {
+      // Remove the clones from the good guys and update only that group.
+      doc.replaceItemValue(NCCONST.GITM_MEMBERS,
+          new Vector<String>(Lists.newArrayList("Jedi", "Senators")));
+      userGroupManager.updateModifiedUsersGroups(new ArrayList<String>(),
+          Lists.newArrayList(doc.getUniversalID()));
+      getGroupData();
+      getUserData();
+      assertFalse(groupChildren.get(groups.get("good guys"))
+          .contains(groups.get("clones")));
+      assertFalse(userGroups.get(assertUserExists("echo"))
+          .contains(groups.get("good guys")));
+      assertUserHasGroup("echo", "clones");
+      assertUserHasGroup("ahsoka", "good guys");
+    } finally {
+      doc.replaceItemValue(NCCONST.GITM_MEMBERS, new Vector<String>(
+          Lists.newArrayList("Jedi", "Senators", "Clones")));
+    }
+  }
+
   public void testUserNoLongerSelected() throws Exception {
     userGroupManager.updateGroups(groupUnids);
     userGroupManager.updateUsers(userUnids);
@@ -603,16 +742,17 @@ public class NotesUserGroupManagerTest extends TestCase {
       Long id = assertUserExists("anakin");
       assertNotNull("user has no groups", userGroups.get(id));
 
-      // Change the result of the user selection formula. Call
-      // checkUserDeletions and verify that the user was removed
-      // from the user cache.
+      // Change the result of the user selection formula. Update the
+      // modified user and verify that the user was removed from the
+      // user cache.
       doc.replaceItemValue(
           "evaluate_" + connectorSession.getUserSelectionFormula(),
           new NotesItemMock("name",
               "evaluate_" + connectorSession.getUserSelectionFormula(),
               "type", NotesItem.TEXT, "values", 0.0));
 
-      userGroupManager.checkUserDeletions();
+      userGroupManager.updateModifiedUsersGroups(
+          Lists.newArrayList(doc.getUniversalID()), new ArrayList<String>());
       getGroupData();
       getUserData();
       assertUserDoesNotExist("anakin");
@@ -668,6 +808,147 @@ public class NotesUserGroupManagerTest extends TestCase {
     }
   }
 
+  public void testUpdateUsersInParallel() throws Exception {
+    userGroupManager.updateGroups(groupUnids);
+    // A small queue makes the readers wait for the writer.
+    userGroupManager.updateUsersInParallel(3, 2);
+    getGroupData();
+    getUserData();
+    assertEquals(USER_COUNT, notesUserNames.size());
+    assertUserHasGroup("ahsoka", "padawan learners");
+    assertUserHasGroup("ahsoka", "good guys");
+    assertUserHasGroup("palpatine", "bad guys");
+    assertReaderThreadsFinished();
+  }
+
+  public void testUpdateUsersInParallelWriterFailure() throws Exception {
+    userGroupManager.updateGroups(groupUnids);
+    // Without the user/group table the writer fails before it takes
+    // anything from the queue, while the readers fill it.
+    conn.createStatement().executeUpdate(
+        "drop table " + userGroupManager.userGroupsTableName);
+    try {
+      userGroupManager.updateUsersInParallel(2, 1);
+      assertReaderThreadsFinished();
+    } finally {
+      userGroupManager.initializeUserCache();
+    }
+  }
+
+  public void testCommitWindowBatching() throws Exception {
+    int commitWindow = connector.getCacheCommitWindow();
+    try {
+      // A window of one commits every record; a window of three
+      // leaves a partial batch to be committed at the end.
+      for (int window : new int[] { 1, 3 }) {
+        userGroupManager.clearTables(conn);
+        connector.setCacheCommitWindow(window);
+        setUpUsers();
+        assertEquals("window " + window, USER_COUNT, notesUserNames.size());
+        assertGroupHasChild("jedi", "masters");
+        assertUserHasGroup("ahsoka", "padawan learners");
+        assertUserHasGroup("palpatine", "bad guys");
+      }
+    } finally {
+      connector.setCacheCommitWindow(commitWindow);
+    }
+  }
+
+  public void testShadowTableSwap() throws Exception {
+    boolean cacheShadowTables = connector.getCacheShadowTables();
+    try {
+      connector.setCacheShadowTables(true);
+      userGroupManager.clearTables(conn);
+      // Swap twice, so the second swap replaces tables and indexes
+      // that came from the first one.
+      for (int i = 0; i < 2; i++) {
+        userGroupManager.updateUsersGroups(true);
+        getGroupData();
+        getUserData();
+        assertEquals(groups.toString(), GROUP_COUNT + 5, groups.size());
+        assertEquals(USER_COUNT, notesUserNames.size());
+        assertGroupHasChild("good guys", "jedi");
+        assertUserHasGroup("echo", "masters");
+
+        assertNoSwapTables();
+        assertLiveIndexNames();
+      }
+    } finally {
+      connector.setCacheShadowTables(cacheShadowTables);
+    }
+  }
+
+  public void testRecoverRenamedLiveTables() throws Exception {
+    userGroupManager.updateUsersGroups(true);
+    String userGroups = userGroupManager.userGroupsTableName;
+    String groupChildren = userGroupManager.groupChildrenTableName;
+    // A swap that failed after renaming the live tables out of the
+    // way, leaving the shadow tables behind.
+    Util.executeStatements(conn, true,
+        "alter table " + userGroups + " rename to " + userGroups + "_old",
+        "alter table " + groupChildren + " rename to " + groupChildren
+        + "_old",
+        "create table " + userGroups + "_shadow (userid long, groupid long)",
+        "create table " + groupChildren + "_shadow (parentgroupid long,"
+        + " childgroupid long)");
+
+    userGroupManager.initializeUserCache();
+    assertNoSwapTables();
+    assertLiveIndexNames();
+    getGroupData();
+    getUserData();
+    assertGroupHasChild("good guys", "jedi");
+    assertUserHasGroup("echo", "masters");
+  }
+
+  public void testRecoverSwappedLiveTables() throws Exception {
+    userGroupManager.updateUsersGroups(true);
+    String userGroups = userGroupManager.userGroupsTableName;
+    String groupChildren = userGroupManager.groupChildrenTableName;
+    // A swap that failed after renaming the shadow tables, leaving
+    // the old tables and the shadow index names behind.
+    Util.executeStatements(conn, true,
+        "create table " + userGroups + "_old (userid long, groupid long)",
+        "create table " + groupChildren + "_old (parentgroupid long,"
+        + " childgroupid long)",
+        "alter index idx_userid_" + userGroups + " rename to idx_userid_"
+        + userGroups + "_shadow",
+        "alter index idx_parentgroupid_" + groupChildren
+        + " rename to idx_parentgroupid_" + groupChildren + "_shadow");
+
+    userGroupManager.recoverShadowTables(conn);
+    assertNoSwapTables();
+    assertLiveIndexNames();
+    getGroupData();
+    getUserData();
+    assertGroupHasChild("good guys", "jedi");
+    assertUserHasGroup("echo", "masters");
+  }
+
+  private void assertNoSwapTables() throws Exception {
+    JdbcDatabase jdbcDatabase =
+        connectorSession.getConnector().getJdbcDatabase();
+    for (String table : new String[] {
+          userGroupManager.userGroupsTableName,
+          userGroupManager.groupChildrenTableName }) {
+      assertTrue(jdbcDatabase.verifyTableExists(table, null));
+      assertFalse(jdbcDatabase.verifyTableExists(table + "_shadow", null));
+      assertFalse(jdbcDatabase.verifyTableExists(table + "_old", null));
+    }
+  }
+
+  private void assertLiveIndexNames() throws Exception {
+    String userGroups = userGroupManager.userGroupsTableName.toUpperCase();
+    String groupChildren =
+        userGroupManager.groupChildrenTableName.toUpperCase();
+    assertEquals(Lists.newArrayList("IDX_GROUPID_" + userGroups,
+            "IDX_USERID_" + userGroups),
+        getIndexNames(userGroups));
+    assertEquals(Lists.newArrayList("IDX_CHILDGROUPID_" + groupChildren,
+            "IDX_PARENTGROUPID_" + groupChildren),
+        getIndexNames(groupChildren));
+  }
+
   public void testGetUser() throws Exception {
     setUpRoles();
 
@@ -678,6 +959,22 @@ public class NotesUserGroupManagerTest extends TestCase {
     assertYodaUserProperties(user);
   }
 
+  public void testGetUserByGsaNameCached() throws Exception {
+    setUpRoles();
+
+    NotesUserGroupManager.User user =
+        userGroupManager.getUserByGsaName("yoda");
+    assertSame(user, userGroupManager.getUserByGsaName("yoda"));
+    assertTrue(userGroupManager.getUserCache().getHitCount() > 0);
+
+    // Updating the roles invalidates the cached users.
+    userGroupManager.updateRoles();
+    NotesUserGroupManager.User refreshed =
+        userGroupManager.getUserByGsaName("yoda");
+    assertNotSame(user, refreshed);
+    assertYodaUserProperties(refreshed);
+  }
+
   private void assertYodaUserProperties(
       NotesUserGroupManager.User user) throws Exception {
     assertEquals("yoda", user.getGsaName());
@@ -1021,6 +1318,37 @@ public class NotesUserGroupManagerTest extends TestCase {
     }
   }
 
+  private void assertReaderThreadsFinished() throws Exception {
+    String prefix = NotesUserGroupManager.class.getSimpleName();
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (true) {
+      List<String> running = new ArrayList<String>();
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+        if (thread.getName().startsWith(prefix) && thread.isAlive()) {
+          running.add(thread.getName());
+        }
+      }
+      if (running.isEmpty()) {
+        return;
+      }
+      assertTrue("Reader threads still running: " + running,
+          System.currentTimeMillis() < deadline);
+      Thread.sleep(100L);
+    }
+  }
+
+  private List<String> getIndexNames(String tableName) throws Exception {
+    List<String> names = new ArrayList<String>();
+    ResultSet rs = conn.createStatement().executeQuery(
+        "select index_name from information_schema.indexes"
+        + " where table_name = '" + tableName.toUpperCase() + "'"
+        + " order by index_name");
+    while (rs.next()) {
+      names.add(rs.getString(1));
+    }
+    return names;
+  }
+
   private void printCache() throws Exception {
     System.out.println("**************************");
     System.out.println("Groups: " + groups.toString());
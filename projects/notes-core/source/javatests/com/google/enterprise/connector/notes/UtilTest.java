@@ -0,0 +1,44 @@
+// Copyright 2012 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.notes;
+
+import junit.framework.TestCase;
+
+public class UtilTest extends TestCase {
+
+  public void testGetCanonicalNameAbbreviated() {
+    assertEquals("CN=John Doe/O=Acme", Util.getCanonicalName("John Doe/Acme"));
+    assertEquals("CN=John Doe/OU=Sales/O=Acme",
+        Util.getCanonicalName("John Doe/Sales/Acme"));
+    assertEquals("CN=John Doe/OU=East/OU=Sales/O=Acme/C=US",
+        Util.getCanonicalName("John Doe/East/Sales/Acme/US"));
+    assertEquals("CN=John Doe/O=Acme/C=US",
+        Util.getCanonicalName("John Doe / Acme / US"));
+  }
+
+  public void testGetCanonicalNameUnchanged() {
+    assertEquals("cn=john doe/ou=sales/o=acme",
+        Util.getCanonicalName("cn=john doe/ou=sales/o=acme"));
+    assertEquals("John Doe", Util.getCanonicalName("John Doe"));
+  }
+
+  public void testGetCanonicalNameUnsupported() {
+    assertNull(Util.getCanonicalName(null));
+    assertNull(Util.getCanonicalName("John Doe/Acme@AcmeDomain"));
+    assertNull(Util.getCanonicalName("John Doe/O=Acme"));
+    assertNull(Util.getCanonicalName("John Doe//Acme"));
+    assertNull(Util.getCanonicalName("a/b/c/d/e/f/g/h"));
+  }
+}
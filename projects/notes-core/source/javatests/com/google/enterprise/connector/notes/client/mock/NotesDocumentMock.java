@@ -28,7 +28,11 @@ import com.google.enterprise.connector.spi.RepositoryException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.logging.Logger;
 
@@ -50,6 +54,11 @@ public class NotesDocumentMock extends NotesBaseMock
 
   private NotesDateTime lastModified;
 
+  private final Map<String, byte[]> attachments =
+      new HashMap<String, byte[]>();
+
+  private final Set<String> unstreamableAttachments = new HashSet<String>();
+
   /* The constructor's currently public for testing. At some
    * point, we might be able to build a more thorough test data
    * framework and remove the need for tests to construct mock
@@ -280,7 +289,27 @@ public class NotesDocumentMock extends NotesBaseMock
   public NotesEmbeddedObject getAttachment(String filename)
       throws RepositoryException {
     LOGGER.entering(CLASS_NAME, "getAttachment");
-    return null;
+    byte[] content = attachments.get(filename);
+    return (content == null) ? null : new NotesEmbeddedObjectMock(content,
+        !unstreamableAttachments.contains(filename));
+  }
+
+  public void addAttachment(String filename, byte[] content) {
+    addAttachment(filename, content, true);
+  }
+
+  /**
+   * Adds an attachment. If it is not streamable, getInputStream fails
+   * and the attachment must be extracted to a file.
+   */
+  public void addAttachment(String filename, byte[] content,
+      boolean streamable) {
+    attachments.put(filename, content);
+    if (streamable) {
+      unstreamableAttachments.remove(filename);
+    } else {
+      unstreamableAttachments.add(filename);
+    }
   }
 
   /** {@inheritDoc} */
@@ -17,6 +17,10 @@ package com.google.enterprise.connector.notes.client.mock;
 import com.google.enterprise.connector.notes.client.NotesEmbeddedObject;
 import com.google.enterprise.connector.spi.RepositoryException;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.logging.Logger;
 
 class NotesEmbeddedObjectMock extends NotesBaseMock
@@ -28,28 +32,74 @@ class NotesEmbeddedObjectMock extends NotesBaseMock
   private static final Logger LOGGER =
       Logger.getLogger(CLASS_NAME);
 
+  private final byte[] content;
+  private final boolean streamable;
+
   NotesEmbeddedObjectMock() {
+    this(null);
+  }
+
+  /**
+   * Creates an attachment with the given content.
+   */
+  NotesEmbeddedObjectMock(byte[] content) {
+    this(content, true);
+  }
+
+  /**
+   * Creates an attachment with the given content, which can only be
+   * extracted to a file if it is not streamable.
+   */
+  NotesEmbeddedObjectMock(byte[] content, boolean streamable) {
+    this.content = content;
+    this.streamable = streamable;
   }
 
   /** {@inheritDoc} */
   @Override
   public int getType() throws RepositoryException {
     LOGGER.entering(CLASS_NAME, "getType");
-    return -1;
+    return (content == null) ? -1 : EMBED_ATTACHMENT;
   }
 
   /** {@inheritDoc} */
   @Override
   public int getFileSize() throws RepositoryException {
     LOGGER.entering(CLASS_NAME, "getFileSize");
-    return -1;
+    return (content == null) ? -1 : content.length;
   }
 
   /** {@inheritDoc} */
   @Override
   public void extractFile(String path) throws RepositoryException {
-     LOGGER.entering(CLASS_NAME, "extractFile");
- }
+    LOGGER.entering(CLASS_NAME, "extractFile");
+    if (content == null) {
+      return;
+    }
+    try {
+      FileOutputStream out = new FileOutputStream(path);
+      try {
+        out.write(content);
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      throw new RepositoryException(e);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public InputStream getInputStream() throws RepositoryException {
+    LOGGER.entering(CLASS_NAME, "getInputStream");
+    if (content == null) {
+      throw new RepositoryException("Not an attachment");
+    }
+    if (!streamable) {
+      throw new RepositoryException("Attachment cannot be streamed");
+    }
+    return new ByteArrayInputStream(content);
+  }
 
   /* TODO: implement getName.
   @Override
@@ -56,4 +56,11 @@ class NotesViewEntryMock extends NotesBaseMock
     LOGGER.entering(CLASS_NAME, "getDocument");
     return document;
   }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getUniversalID() throws RepositoryException {
+    LOGGER.entering(CLASS_NAME, "getUniversalID");
+    return document.getUniversalID();
+  }
 }